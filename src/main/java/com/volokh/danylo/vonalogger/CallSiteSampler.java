@@ -0,0 +1,151 @@
+package com.volokh.danylo.vonalogger;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * This class finds the code that writes most of the logs. See {@link VoNaLogger.Builder#setCallSiteSampling(int)}
+ *
+ * One of "interval" calls of the logger takes the frame of its caller with {@link StackWalker}. Only few frames are
+ * walked, so a caller that is deeper than that is counted as {@link #UNKNOWN_CALL_SITE}.
+ * The rest of the calls only decrement the countdown. Rows of {@link VoNaLogger#writeLogs(Object[][])} are not sampled.
+ *
+ * Sampled logs are counted by the calling threads. Their length is counted by background thread when they are
+ * written, the call site is kept in the {@link LogEntry} until then.
+ *
+ * Counters are atomic and call sites are kept in {@link ConcurrentHashMap}, so writing logs never waits for
+ * the table. The number of call sites is limited, the ones that don't fit are counted as {@link #OTHER_CALL_SITES}.
+ * With shards the sampler is shared between them.
+ */
+final class CallSiteSampler {
+
+    static final String UNKNOWN_CALL_SITE = "unknown";
+    static final String OTHER_CALL_SITES = "other";
+
+    private static final int MAX_STACK_DEPTH = 16;
+    private static final int MAX_CALL_SITES = 1024;
+
+    private static final String LOGGER_PACKAGE = VoNaLogger.class.getPackage().getName() + ".";
+
+    static final class CallSite {
+
+        private final String mName;
+
+        private final AtomicLong mLogsCount = new AtomicLong();
+        private final AtomicLong mLength = new AtomicLong();
+        private final AtomicLong mNanos = new AtomicLong();
+
+        CallSite(String name) {
+            mName = name;
+        }
+
+        /**
+         * Called by the thread that wrote the log.
+         *
+         * @param nanos - time spent in the logger by the caller.
+         */
+        void recordLog(long nanos) {
+            mLogsCount.incrementAndGet();
+            mNanos.addAndGet(nanos);
+        }
+
+        /**
+         * Called by background thread when the log is written.
+         */
+        void recordLength(int length) {
+            mLength.addAndGet(length);
+        }
+    }
+
+    private final int mInterval;
+
+    /**
+     * It's decremented by all the threads without synchronization. A lost decrement only makes the next sample
+     * a bit later, while an atomic counter would be contended by every call of the logger.
+     */
+    private int mCountdown;
+
+    private final StackWalker mStackWalker = StackWalker.getInstance();
+
+    private final Function<Stream<StackFrame>, String> mFindCaller = new Function<Stream<StackFrame>, String>() {
+        @Override
+        public String apply(Stream<StackFrame> frames) {
+            Iterator<StackFrame> iterator = frames.limit(MAX_STACK_DEPTH).iterator();
+            while (iterator.hasNext()) {
+                StackFrame frame = iterator.next();
+                if (!frame.getClassName().startsWith(LOGGER_PACKAGE)) {
+                    return frame.toStackTraceElement().toString();
+                }
+            }
+            return UNKNOWN_CALL_SITE;
+        }
+    };
+
+    private final ConcurrentHashMap<String, CallSite> mCallSites = new ConcurrentHashMap<>();
+    private final CallSite mOtherCallSites = new CallSite(OTHER_CALL_SITES);
+
+    /**
+     * @param interval - one of "interval" calls is sampled.
+     */
+    CallSiteSampler(int interval) {
+        mInterval = interval;
+        mCountdown = interval;
+    }
+
+    /**
+     * @return call site of the current caller of the logger or "null" if this call is not sampled.
+     */
+    CallSite sample() {
+        if (--mCountdown > 0) {
+            return null;
+        }
+        mCountdown = mInterval;
+        return callSite(mStackWalker.walk(mFindCaller));
+    }
+
+    private CallSite callSite(String name) {
+        CallSite callSite = mCallSites.get(name);
+        if (callSite != null) {
+            return callSite;
+        }
+        if (mCallSites.size() >= MAX_CALL_SITES) {
+            return mOtherCallSites;
+        }
+        callSite = new CallSite(name);
+        CallSite existing = mCallSites.putIfAbsent(name, callSite);
+        return existing != null ? existing : callSite;
+    }
+
+    /**
+     * @return call sites sorted by the length of their logs, the biggest first.
+     */
+    List<CallSiteStats> snapshot() {
+        List<CallSiteStats> snapshot = new ArrayList<>(mCallSites.size() + 1);
+        for (CallSite callSite : mCallSites.values()) {
+            snapshot.add(snapshotOf(callSite));
+        }
+        if (mOtherCallSites.mLogsCount.get() > 0) {
+            snapshot.add(snapshotOf(mOtherCallSites));
+        }
+        Collections.sort(snapshot, new Comparator<CallSiteStats>() {
+            @Override
+            public int compare(CallSiteStats first, CallSiteStats second) {
+                return Long.compare(second.getEstimatedLength(), first.getEstimatedLength());
+            }
+        });
+        return snapshot;
+    }
+
+    private CallSiteStats snapshotOf(CallSite callSite) {
+        return new CallSiteStats(callSite.mName, mInterval, callSite.mLogsCount.get(), callSite.mLength.get(),
+                callSite.mNanos.get());
+    }
+}
@@ -0,0 +1,64 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This is a snapshot of the logs written from a single place in the code. It is returned by
+ * {@link VoNaLogger#getCallSiteStats()} and is not changed after that.
+ *
+ * Only one of "sampling interval" logs is measured, so estimated values are the sampled ones multiplied
+ * by the interval. Length of the logs is counted in characters of the written lines, which is the size in bytes
+ * for ASCII text. Encryption and framing are not counted.
+ */
+public final class CallSiteStats {
+
+    private final String mCallSite;
+    private final int mSamplingInterval;
+    private final long mSampledLogsCount;
+    private final long mSampledLength;
+    private final long mSampledNanos;
+
+    CallSiteStats(String callSite, int samplingInterval, long sampledLogsCount, long sampledLength, long sampledNanos) {
+        mCallSite = callSite;
+        mSamplingInterval = samplingInterval;
+        mSampledLogsCount = sampledLogsCount;
+        mSampledLength = sampledLength;
+        mSampledNanos = sampledNanos;
+    }
+
+    /**
+     * @return frame that called the logger, for example "com.example.Cache.evict(Cache.java:42)".
+     */
+    public String getCallSite() {
+        return mCallSite;
+    }
+
+    public long getSampledLogsCount() {
+        return mSampledLogsCount;
+    }
+
+    public long getEstimatedLogsCount() {
+        return mSampledLogsCount * mSamplingInterval;
+    }
+
+    /**
+     * Logs that are not written to file yet are counted, but their length is not.
+     */
+    public long getEstimatedLength() {
+        return mSampledLength * mSamplingInterval;
+    }
+
+    /**
+     * @return time spent by the callers in the logger. Writing to file is done by background thread and isn't counted.
+     */
+    public long getEstimatedNanos() {
+        return mSampledNanos * mSamplingInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "CallSiteStats{" + mCallSite +
+                ", logs=" + getEstimatedLogsCount() +
+                ", length=" + getEstimatedLength() +
+                ", nanos=" + getEstimatedNanos() +
+                '}';
+    }
+}
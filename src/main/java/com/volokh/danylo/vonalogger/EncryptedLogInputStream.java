@@ -0,0 +1,221 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * This stream decrypts the files that were written with encryption key:
+ * {@link VoNaLogger.Builder#setEncryptionKey(SecretKey)}
+ *
+ * Files are read one after another in the given order. Logger returns the current file first, so to read the logs
+ * in the order in which they were written pass the files in reverse order. Only one frame is kept in memory:
+ * <pre>
+ * BufferedReader reader = new BufferedReader(new InputStreamReader(new EncryptedLogInputStream(logFiles, key)));
+ * </pre>
+ *
+ * Every frame is authenticated. Frames inside a file must have growing counters, so reordered frames and frames
+ * removed from the beginning or the middle of a file are detected too. In all these cases {@link IOException}
+ * is thrown. Frames removed from the end of a file are not detected, the file looks like the logger was stopped
+ * earlier. A frame that is cut at the end of the file (process died while it was written) is skipped.
+ */
+public final class EncryptedLogInputStream extends InputStream {
+
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    private final File[] mLogFiles;
+    private final SecretKey mKey;
+    private final Cipher mCipher = LogSegmentWriter.createCipher();
+
+    private int mFileIndex = -1;
+    private FileChannel mChannel;
+    private long mPosition;
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(LogSegmentWriter.FRAME_HEADER_SIZE);
+    private final byte[] mNonce = new byte[LogSegmentWriter.NONCE_SIZE];
+    private final byte[] mPreviousNonce = new byte[LogSegmentWriter.NONCE_SIZE];
+    private boolean mHasPreviousNonce;
+
+    private ByteBuffer mPayload = ByteBuffer.allocate(DEFAULT_CAPACITY);
+
+    /**
+     * Decrypted content of the current frame.
+     */
+    private ByteBuffer mPlainBytes = ByteBuffer.allocate(DEFAULT_CAPACITY).flip();
+
+    public EncryptedLogInputStream(File[] logFiles, SecretKey key) {
+        mLogFiles = logFiles.clone();
+        mKey = key;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!mPlainBytes.hasRemaining() && !readNextFrame()) {
+            return -1;
+        }
+        return mPlainBytes.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!mPlainBytes.hasRemaining() && !readNextFrame()) {
+            return -1;
+        }
+        int count = Math.min(length, mPlainBytes.remaining());
+        mPlainBytes.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mPlainBytes.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFileIndex = mLogFiles.length;
+        closeCurrentFile();
+    }
+
+    /**
+     * @return false if there are no frames left in all the files.
+     */
+    private boolean readNextFrame() throws IOException {
+        while (true) {
+            if (mChannel == null && !openNextFile()) {
+                return false;
+            }
+
+            long fileSize = mChannel.size();
+            if (mPosition + LogSegmentWriter.FRAME_HEADER_SIZE > fileSize) {
+                // the end of the file or a header that was cut
+                closeCurrentFile();
+                continue;
+            }
+
+            long payloadLength = LogSegmentWriter.readFrameHeader(mChannel, mPosition, mHeader,
+                    LogSegmentWriter.ENCRYPTED_FRAME_START);
+            if (payloadLength < LogSegmentWriter.NONCE_SIZE + LogSegmentWriter.TAG_SIZE) {
+                throw new IOException("not an encrypted log frame at " + mPosition + " in " + currentFile());
+            }
+
+            long payloadStart = mPosition + LogSegmentWriter.FRAME_HEADER_SIZE;
+            if (payloadStart + payloadLength > fileSize) {
+                // frame was cut
+                closeCurrentFile();
+                continue;
+            }
+
+            readPayload(payloadStart, (int) payloadLength);
+            mPosition = payloadStart + payloadLength;
+
+            decryptPayload();
+            if (mPlainBytes.hasRemaining()) {
+                return true;
+            }
+        }
+    }
+
+    private boolean openNextFile() throws IOException {
+        mFileIndex++;
+        if (mFileIndex >= mLogFiles.length) {
+            return false;
+        }
+        mChannel = FileChannel.open(currentFile().toPath(), StandardOpenOption.READ);
+        mPosition = 0;
+        mHasPreviousNonce = false;
+        return true;
+    }
+
+    private void closeCurrentFile() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private File currentFile() {
+        return mLogFiles[mFileIndex];
+    }
+
+    private void readPayload(long position, int length) throws IOException {
+        if (mPayload.capacity() < length) {
+            mPayload = ByteBuffer.allocate(Math.max(length, mPayload.capacity() * 2));
+        }
+        mPayload.clear().limit(length);
+        while (mPayload.hasRemaining()) {
+            if (mChannel.read(mPayload, position + mPayload.position()) < 0) {
+                throw new IOException("unexpected end of " + currentFile());
+            }
+        }
+        mPayload.flip();
+    }
+
+    private void decryptPayload() throws IOException {
+        mPayload.get(mNonce);
+        checkFrameOrder();
+
+        int plainLength = mPayload.remaining() - LogSegmentWriter.TAG_SIZE;
+        if (mPlainBytes.capacity() < plainLength) {
+            mPlainBytes = ByteBuffer.allocate(Math.max(plainLength, mPlainBytes.capacity() * 2));
+        }
+        mPlainBytes.clear();
+        try {
+            mCipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(LogSegmentWriter.TAG_SIZE * 8, mNonce));
+            mCipher.doFinal(mPayload, mPlainBytes);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("failed to decrypt frame in " + currentFile(), e);
+        }
+        mPlainBytes.flip();
+
+        System.arraycopy(mNonce, 0, mPreviousNonce, 0, mNonce.length);
+        mHasPreviousNonce = true;
+    }
+
+    /**
+     * Within a single run of the logger frame counter grows by one. A new run (file was opened again or the counter
+     * overflowed) starts from 0 with a different random part of the nonce.
+     */
+    private void checkFrameOrder() throws IOException {
+        int counter = frameCounter(mNonce);
+        boolean valid;
+        if (!mHasPreviousNonce) {
+            valid = counter == 0;
+        } else if (sameRandomPart(mNonce, mPreviousNonce)) {
+            valid = counter == frameCounter(mPreviousNonce) + 1;
+        } else {
+            valid = counter == 0;
+        }
+        if (!valid) {
+            throw new IOException("frame is out of order in " + currentFile());
+        }
+    }
+
+    private static boolean sameRandomPart(byte[] nonce, byte[] otherNonce) {
+        for (int index = 0; index < LogSegmentWriter.NONCE_PREFIX_SIZE; index++) {
+            if (nonce[index] != otherNonce[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int frameCounter(byte[] nonce) {
+        int counter = 0;
+        for (int index = LogSegmentWriter.NONCE_PREFIX_SIZE; index < LogSegmentWriter.NONCE_SIZE; index++) {
+            counter = (counter << 8) | (nonce[index] & 0xFF);
+        }
+        return counter;
+    }
+}
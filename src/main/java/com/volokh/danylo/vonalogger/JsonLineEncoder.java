@@ -0,0 +1,165 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This class writes the parameters of a log as fields of a JSON object: {@link LogOutputFormat#JSON_LINES}
+ *
+ * Nothing is allocated while encoding. Numbers and booleans are written as JSON numbers and booleans.
+ * All the other parameters are written as strings: they are written to the buffer with {@link ParamWriter}s
+ * and then escaped in place.
+ *
+ * Every field is followed by a comma, so the caller has to remove the last one: {@link #closeObject(LogOutputBuffer)}
+ */
+final class JsonLineEncoder {
+
+    private static final char[] PARAMS_KEY = "\"params\":[".toCharArray();
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private JsonLineEncoder() {
+    }
+
+    /**
+     * Writes named parameters as separate fields and the rest of them as "params" array.
+     *
+     * @param fields - names of the first parameters or "null" if parameters are not named.
+     */
+    static void appendParameters(LogOutputBuffer outputBuffer, LogFields fields, Object[] parameters) {
+        int namedCount = fields != null ? Math.min(fields.size(), parameters.length) : 0;
+
+        for (int index = 0; index < namedCount; index++) {
+            outputBuffer.append(fields.jsonKey(index));
+            appendValue(outputBuffer, parameters[index]);
+            outputBuffer.append(',');
+        }
+
+        if (namedCount < parameters.length) {
+            outputBuffer.append(PARAMS_KEY);
+            for (int index = namedCount; index < parameters.length; index++) {
+                if (index > namedCount) {
+                    outputBuffer.append(',');
+                }
+                appendValue(outputBuffer, parameters[index]);
+            }
+            outputBuffer.append(']').append(',');
+        }
+    }
+
+    /**
+     * Writes "\"key\":"
+     */
+    static void appendKey(LogOutputBuffer outputBuffer, String key) {
+        appendString(outputBuffer, key);
+        outputBuffer.append(':');
+    }
+
+    static void appendString(LogOutputBuffer outputBuffer, CharSequence value) {
+        outputBuffer.append('"');
+        int start = outputBuffer.length();
+        outputBuffer.append(value);
+        escapeFrom(outputBuffer, start);
+        outputBuffer.append('"');
+    }
+
+    static void appendValue(LogOutputBuffer outputBuffer, Object parameter) {
+        Object value = ParamWriterRegistry.isLazy(parameter) ? ParamWriterRegistry.evaluate(parameter) : parameter;
+        if (value == null) {
+            outputBuffer.appendNull();
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            outputBuffer.append(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            outputBuffer.append(((Boolean) value).booleanValue());
+        } else if ((value instanceof Double || value instanceof Float) && isFinite(((Number) value).doubleValue())) {
+            outputBuffer.appendParameter(value);
+        } else {
+            // NaN and infinity are not valid JSON numbers, so they are written as strings too
+            outputBuffer.append('"');
+            int start = outputBuffer.length();
+            outputBuffer.appendParameter(value);
+            escapeFrom(outputBuffer, start);
+            outputBuffer.append('"');
+        }
+    }
+
+    /**
+     * Removes the comma after the last field and closes the object.
+     */
+    static void closeObject(LogOutputBuffer outputBuffer) {
+        int length = outputBuffer.length();
+        if (length > 0 && outputBuffer.array()[length - 1] == ',') {
+            outputBuffer.setLength(length - 1);
+        }
+        outputBuffer.append('}');
+    }
+
+    /**
+     * Escapes the chars from "start" to the end of the buffer. The buffer grows once by the number of escaped chars
+     * and the chars are moved to their places starting from the end.
+     */
+    static void escapeFrom(LogOutputBuffer outputBuffer, int start) {
+        int end = outputBuffer.length();
+        char[] chars = outputBuffer.array();
+
+        int extraCount = 0;
+        for (int index = start; index < end; index++) {
+            extraCount += escapedLength(chars[index]) - 1;
+        }
+        if (extraCount == 0) {
+            return;
+        }
+
+        outputBuffer.ensureCapacity(end + extraCount);
+        chars = outputBuffer.array();
+
+        int position = end + extraCount;
+        for (int index = end - 1; index >= start; index--) {
+            char c = chars[index];
+            switch (escapedLength(c)) {
+                case 1:
+                    chars[--position] = c;
+                    break;
+                case 2:
+                    chars[--position] = shortEscape(c);
+                    chars[--position] = '\\';
+                    break;
+                default:
+                    chars[--position] = HEX_DIGITS[c & 0xF];
+                    chars[--position] = HEX_DIGITS[(c >> 4) & 0xF];
+                    chars[--position] = '0';
+                    chars[--position] = '0';
+                    chars[--position] = 'u';
+                    chars[--position] = '\\';
+                    break;
+            }
+        }
+        outputBuffer.setLength(end + extraCount);
+    }
+
+    private static int escapedLength(char c) {
+        if (c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\t' || c == '\b' || c == '\f') {
+            return 2;
+        }
+        return c < 0x20 ? 6 : 1;
+    }
+
+    private static char shortEscape(char c) {
+        switch (c) {
+            case '\n':
+                return 'n';
+            case '\r':
+                return 'r';
+            case '\t':
+                return 't';
+            case '\b':
+                return 'b';
+            case '\f':
+                return 'f';
+            default:
+                // quote and backslash
+                return c;
+        }
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+}
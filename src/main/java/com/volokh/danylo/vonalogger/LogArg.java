@@ -0,0 +1,17 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This is a parameter of the log that is computed only when the log is written to file:
+ * <pre>
+ * logger.writeLog("Cache state", () -> cache.dump());
+ * </pre>
+ * It's called by background thread, unless logs are evaluated eagerly:
+ * {@link VoNaLogger.Builder#setEvaluateLogArgsEagerly(boolean)}. If the log is dropped it's not called at all.
+ *
+ * {@link java.util.function.Supplier} passed as a parameter is handled the same way.
+ */
+@FunctionalInterface
+public interface LogArg {
+
+    Object value();
+}
@@ -1,5 +1,6 @@
 package com.volokh.danylo.vonalogger;
 
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
 /**
@@ -9,40 +10,159 @@ import java.util.Arrays;
  */
 class LogEntry {
 
-    private final StringBuilder mStringBuilder = new StringBuilder();
-
     private Object[] parameters;
 
-    void setLogParameters(Object... parameters){
+    /**
+     * Names of the parameters or "null" if they are not named. See {@link VoNaLogger#writeLog(LogFields, Object...)}
+     */
+    private LogFields fields;
+
+    /**
+     * Slot of {@link OffHeapEntryArena}. If it's not null the text of the log is copied here instead of
+     * keeping the parameters.
+     */
+    private final CharBuffer offHeapSlot;
+
+    /**
+     * Length of the text in {@link #offHeapSlot} or -1 if the slot is empty.
+     */
+    private int offHeapLength = -1;
+
+    /**
+     * This entry keeps the parameters until they are written to file.
+     */
+    LogEntry(){
+        this(null);
+    }
+
+    LogEntry(CharBuffer offHeapSlot){
+        this.offHeapSlot = offHeapSlot;
+    }
+
+    /**
+     * These are filled only if timestamps or thread ids are enabled in {@link VoNaLogger.Builder}
+     */
+    private long timestampNanos;
+    private long threadId;
+
+    /**
+     * Sequence number of the entry in the logger. It's assigned for every entry.
+     */
+    private long sequence;
+
+    /**
+     * Place in the code that wrote this entry, if it was sampled. See {@link CallSiteSampler}
+     */
+    private CallSiteSampler.CallSite callSite;
+
+    void setLogParameters(LogFields fields, Object... parameters){
+        this.fields = fields;
         this.parameters = parameters;
     }
 
+    boolean isOffHeap(){
+        return offHeapSlot != null;
+    }
+
+    /**
+     * Copies the text of already merged parameters to the off heap slot. If the text doesn't fit it is cut.
+     */
+    void setMergedParameters(LogOutputBuffer mergedParameters){
+        setMergedParameters(mergedParameters.array(), 0, mergedParameters.length());
+    }
+
+    void setMergedParameters(char[] mergedParameters, int start, int length){
+        length = Math.min(length, offHeapSlot.capacity());
+        offHeapSlot.clear();
+        offHeapSlot.put(mergedParameters, start, length);
+        offHeapLength = length;
+    }
+
+    void setTimestampAndThreadId(long timestampNanos, long threadId){
+        this.timestampNanos = timestampNanos;
+        this.threadId = threadId;
+    }
+
+    void setSequence(long sequence){
+        this.sequence = sequence;
+    }
+
+    long getSequence(){
+        return sequence;
+    }
+
+    void setCallSite(CallSiteSampler.CallSite callSite){
+        this.callSite = callSite;
+    }
+
+    /**
+     * @return call site of the entry or "null" if it wasn't sampled. It's cleared, so it's counted only once.
+     */
+    CallSiteSampler.CallSite takeCallSite(){
+        CallSiteSampler.CallSite sampledCallSite = callSite;
+        callSite = null;
+        return sampledCallSite;
+    }
+
+    long getTimestampNanos(){
+        return timestampNanos;
+    }
+
+    long getThreadId(){
+        return threadId;
+    }
+
     boolean isEntryFilledWithData(){
-        return parameters != null;
+        return parameters != null || offHeapLength >= 0;
     }
 
     /**
-     * This method returns merged string of parameters passed to the logger.
-     * After creating a merged string it cleans the content to prevent reusing non-valid data.
+     * This method appends merged parameters passed to the logger directly to the output buffer.
+     * After appending it cleans the content to prevent reusing non-valid data.
      *
      * Parameters are split with tabulation sign.
      */
-    String getMergedStringAndClean(){
+    void appendMergedParametersAndClean(LogOutputBuffer outputBuffer, LogOutputFormat outputFormat){
+
+        if(offHeapLength >= 0){
+            offHeapSlot.position(0);
+            outputBuffer.append(offHeapSlot, offHeapLength);
+            offHeapLength = -1;
+            return;
+        }
+
+        appendMergedParameters(outputBuffer, fields, parameters, outputFormat);
+
+        fields = null;
+        parameters = null;
+    }
+
+    /**
+     * In {@link LogOutputFormat#TEXT} parameters are split with tabulation sign and named parameters
+     * are written like this: "name=value".
+     * In {@link LogOutputFormat#JSON_LINES} parameters are written as fields of JSON object. See {@link JsonLineEncoder}
+     */
+    static void appendMergedParameters(LogOutputBuffer outputBuffer, LogFields fields, Object[] parameters,
+                                       LogOutputFormat outputFormat){
+
+        if(outputFormat == LogOutputFormat.JSON_LINES){
+            JsonLineEncoder.appendParameters(outputBuffer, fields, parameters);
+            return;
+        }
 
-        mStringBuilder.delete(0, mStringBuilder.length());
+        int namedCount = fields != null ? fields.size() : 0;
 
         for(int index = 0; index < parameters.length; index++){
-            mStringBuilder.append(parameters[index]);
+            if(index < namedCount){
+                outputBuffer.append(fields.name(index)).append('=');
+            }
+            outputBuffer.appendParameter(parameters[index]);
 
             // we don't need to add the tab after last entry
             if(index < parameters.length - 1){
-                mStringBuilder.append("\t");
+                outputBuffer.append('\t');
             }
         }
-
-        parameters = null;
-
-        return mStringBuilder.toString();
     }
 
     @Override
@@ -0,0 +1,52 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * These are the names of the parameters of a log: {@link VoNaLogger#writeLog(LogFields, Object...)}
+ *
+ * Names are escaped once when this object is created, so it should be created once and kept in a constant:
+ * <pre>
+ * private static final LogFields REQUEST_FIELDS = LogFields.of("method", "path", "status");
+ * ...
+ * logger.writeLog(REQUEST_FIELDS, method, path, status);
+ * </pre>
+ */
+public final class LogFields {
+
+    private final String[] mNames;
+
+    /**
+     * Names as they are written in {@link LogOutputFormat#JSON_LINES}: "\"name\":"
+     */
+    private final char[][] mJsonKeys;
+
+    private LogFields(String[] names) {
+        mNames = names.clone();
+        mJsonKeys = new char[names.length][];
+
+        LogOutputBuffer key = new LogOutputBuffer(32);
+        for (int index = 0; index < names.length; index++) {
+            if (names[index] == null) {
+                throw new IllegalArgumentException("LogFields, name of the field " + index + " is null");
+            }
+            key.clear();
+            JsonLineEncoder.appendKey(key, names[index]);
+            mJsonKeys[index] = key.toString().toCharArray();
+        }
+    }
+
+    public static LogFields of(String... names) {
+        return new LogFields(names);
+    }
+
+    int size() {
+        return mNames.length;
+    }
+
+    String name(int index) {
+        return mNames[index];
+    }
+
+    char[] jsonKey(int index) {
+        return mJsonKeys[index];
+    }
+}
@@ -0,0 +1,150 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * This is the state of the log files of a single logger. It is saved next to the files: "Example_log.meta"
+ *
+ * Metadata contains:
+ * 1. Names of the log files in the order of rotation. The first one is the current file.
+ * 2. Sizes of the files at the moment when metadata was saved.
+ * 3. Sequence number of the last written entry, so sequence numbers continue growing after restart.
+ *
+ * It is saved when files are rotated and when logger is stopped. On start it allows to resume writing
+ * to the current file without checking every file. See {@link VoNaLogger.Builder#setFastRestart(boolean)}
+ */
+final class LogFilesMetadata {
+
+    static final String METADATA_FILE_SUFFIX = ".meta";
+
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x564E4C4D; // "VNLM"
+    private static final int VERSION = 2;
+
+    private final String[] mFileNames;
+    private final long[] mFileSizes;
+    private final long mLastSequence;
+    private final boolean mCrashSafeMode;
+    private final boolean mEncrypted;
+
+    private LogFilesMetadata(String[] fileNames, long[] fileSizes, long lastSequence, boolean crashSafeMode,
+                             boolean encrypted) {
+        mFileNames = fileNames;
+        mFileSizes = fileSizes;
+        mLastSequence = lastSequence;
+        mCrashSafeMode = crashSafeMode;
+        mEncrypted = encrypted;
+    }
+
+    static File metadataFileFor(File logDir, String logFileName) {
+        return new File(logDir, logFileName + METADATA_FILE_SUFFIX);
+    }
+
+    /**
+     * Metadata is written to a temporary file that replaces the previous one, so it's never read half written.
+     *
+     * @param fileSizes - size of every file from "logFiles"
+     */
+    static void writeTo(File metadataFile, File[] logFiles, long[] fileSizes, long lastSequence, boolean crashSafeMode,
+                        boolean encrypted) throws IOException {
+        File temporaryFile = new File(metadataFile.getPath() + TEMPORARY_FILE_SUFFIX);
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeBoolean(crashSafeMode);
+            output.writeBoolean(encrypted);
+            output.writeLong(lastSequence);
+            output.writeInt(logFiles.length);
+            for (int index = 0; index < logFiles.length; index++) {
+                output.writeUTF(logFiles[index].getName());
+                output.writeLong(fileSizes[index]);
+            }
+        } finally {
+            output.close();
+        }
+
+        if (!temporaryFile.renameTo(metadataFile)) {
+            throw new IOException("failed to save metadata " + metadataFile);
+        }
+    }
+
+    /**
+     * @return metadata or "null" if the file doesn't exist or is not a metadata file.
+     */
+    static LogFilesMetadata readFrom(File metadataFile) throws IOException {
+        DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(metadataFile)));
+        } catch (FileNotFoundException e) {
+            // opening the file is cheaper than checking that it exists and then opening it
+            return null;
+        }
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            boolean crashSafeMode = input.readBoolean();
+            boolean encrypted = input.readBoolean();
+            long lastSequence = input.readLong();
+
+            int filesCount = input.readInt();
+            String[] fileNames = new String[filesCount];
+            long[] fileSizes = new long[filesCount];
+            for (int index = 0; index < filesCount; index++) {
+                fileNames[index] = input.readUTF();
+                fileSizes[index] = input.readLong();
+            }
+            return new LogFilesMetadata(fileNames, fileSizes, lastSequence, crashSafeMode, encrypted);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+    int filesCount() {
+        return mFileNames.length;
+    }
+
+    /**
+     * @return files in the order of rotation. Existence of the files is not checked.
+     */
+    File[] files(File logDir) {
+        File[] files = new File[mFileNames.length];
+        for (int index = 0; index < mFileNames.length; index++) {
+            files[index] = new File(logDir, mFileNames[index]);
+        }
+        return files;
+    }
+
+    long[] fileSizes() {
+        return mFileSizes.clone();
+    }
+
+    long currentFileSize() {
+        return mFileSizes[0];
+    }
+
+    long lastSequence() {
+        return mLastSequence;
+    }
+
+    boolean isCrashSafeMode() {
+        return mCrashSafeMode;
+    }
+
+    boolean isEncrypted() {
+        return mEncrypted;
+    }
+}
@@ -0,0 +1,266 @@
+package com.volokh.danylo.vonalogger;
+
+import java.nio.CharBuffer;
+
+/**
+ * This is a reusable buffer of characters that is filled by the background thread with the content of
+ * the whole list of {@link LogEntry} before it is written to file.
+ *
+ * The buffer is owned by a single thread, that's why it is not synchronized.
+ * The array is only reallocated when the content doesn't fit into it. After few batches it reaches
+ * the needed size and no new objects are created while rendering log entries.
+ *
+ * Primitives are written digit by digit directly into the array, without {@link String#valueOf(long)}.
+ * Other parameters are written by {@link ParamWriter}s found in {@link ParamWriterRegistry}.
+ */
+final class LogOutputBuffer implements Appendable, CharSequence, ParamOutput {
+
+    private static final int DEFAULT_CAPACITY = 8 * 1024;
+
+    private static final char[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+
+    private static final char[] MIN_LONG_CHARS = String.valueOf(Long.MIN_VALUE).toCharArray();
+
+    private static final char[] TRUE_CHARS = "true".toCharArray();
+    private static final char[] FALSE_CHARS = "false".toCharArray();
+    private static final char[] NULL_CHARS = "null".toCharArray();
+
+    /**
+     * Floating point numbers are the only primitives that are not formatted manually.
+     * {@link StringBuilder#append(double)} formats them without creating a String so we copy from it.
+     */
+    private final StringBuilder mFloatingPointScratch = new StringBuilder(32);
+
+    /**
+     * Collections might contain themselves, so nested parameters are not written deeper than this.
+     */
+    private static final int MAX_PARAMETER_DEPTH = 8;
+
+    private static final char[] TOO_DEEP_CHARS = "...".toCharArray();
+
+    private ParamWriterRegistry mParamWriters = ParamWriterRegistry.DEFAULT;
+
+    private int mParameterDepth;
+
+    /**
+     * It's "null" if stack traces are written in full.
+     */
+    private StackTraceCache mStackTraceCache;
+
+    private char[] mChars;
+
+    private int mLength;
+
+    LogOutputBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    LogOutputBuffer(int initialCapacity) {
+        mChars = new char[initialCapacity];
+    }
+
+    void setParamWriters(ParamWriterRegistry paramWriters) {
+        mParamWriters = paramWriters;
+    }
+
+    void setStackTraceCache(StackTraceCache stackTraceCache) {
+        mStackTraceCache = stackTraceCache;
+    }
+
+    StackTraceCache getStackTraceCache() {
+        return mStackTraceCache;
+    }
+
+    void clear() {
+        mLength = 0;
+    }
+
+    /**
+     * Chars after the new length are dropped. If the length grows, chars up to it have to be written
+     * directly to {@link #array()} after {@link #ensureCapacity(int)}.
+     */
+    void setLength(int length) {
+        if (length < 0 || length > mChars.length) {
+            throw new IndexOutOfBoundsException("length " + length + ", capacity " + mChars.length);
+        }
+        mLength = length;
+    }
+
+    /**
+     * This gives a direct access to the underlying array. Only first {@link #length()} chars are valid.
+     */
+    char[] array() {
+        return mChars;
+    }
+
+    @Override
+    public LogOutputBuffer append(CharSequence csq) {
+        if (csq == null) {
+            return appendNull();
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public LogOutputBuffer append(CharSequence csq, int start, int end) {
+        if (csq == null) {
+            return appendNull();
+        }
+        int count = end - start;
+        ensureCapacity(mLength + count);
+
+        if (csq instanceof String) {
+            ((String) csq).getChars(start, end, mChars, mLength);
+        } else if (csq instanceof StringBuilder) {
+            ((StringBuilder) csq).getChars(start, end, mChars, mLength);
+        } else {
+            for (int index = start; index < end; index++) {
+                mChars[mLength + index - start] = csq.charAt(index);
+            }
+        }
+        mLength += count;
+        return this;
+    }
+
+    @Override
+    public LogOutputBuffer append(char c) {
+        ensureCapacity(mLength + 1);
+        mChars[mLength++] = c;
+        return this;
+    }
+
+    @Override
+    public LogOutputBuffer appendParameter(Object value) {
+        if (mParameterDepth >= MAX_PARAMETER_DEPTH) {
+            return append(TOO_DEEP_CHARS);
+        }
+        mParameterDepth++;
+        try {
+            mParamWriters.appendParameter(this, value);
+        } finally {
+            mParameterDepth--;
+        }
+        return this;
+    }
+
+    @Override
+    public LogOutputBuffer append(boolean value) {
+        return append(value ? TRUE_CHARS : FALSE_CHARS);
+    }
+
+    @Override
+    public LogOutputBuffer append(int value) {
+        return append((long) value);
+    }
+
+    @Override
+    public LogOutputBuffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            // cannot be negated, so it is copied as is
+            return append(MIN_LONG_CHARS);
+        }
+
+        int digitsCount = digitsCount(value);
+        ensureCapacity(mLength + digitsCount);
+
+        int position = mLength + digitsCount;
+        long rest = value;
+        if (rest < 0) {
+            mChars[mLength] = '-';
+            rest = -rest;
+        }
+        do {
+            mChars[--position] = DIGITS[(int) (rest % 10)];
+            rest /= 10;
+        } while (rest != 0);
+
+        mLength += digitsCount;
+        return this;
+    }
+
+    @Override
+    public LogOutputBuffer append(double value) {
+        mFloatingPointScratch.setLength(0);
+        mFloatingPointScratch.append(value);
+        return append(mFloatingPointScratch);
+    }
+
+    LogOutputBuffer append(float value) {
+        mFloatingPointScratch.setLength(0);
+        mFloatingPointScratch.append(value);
+        return append(mFloatingPointScratch);
+    }
+
+    LogOutputBuffer append(char[] chars) {
+        return append(chars, 0, chars.length);
+    }
+
+    LogOutputBuffer append(char[] chars, int offset, int count) {
+        ensureCapacity(mLength + count);
+        System.arraycopy(chars, offset, mChars, mLength, count);
+        mLength += count;
+        return this;
+    }
+
+    /**
+     * Copies "count" chars from the current position of the buffer.
+     */
+    LogOutputBuffer append(CharBuffer chars, int count) {
+        ensureCapacity(mLength + count);
+        chars.get(mChars, mLength, count);
+        mLength += count;
+        return this;
+    }
+
+    LogOutputBuffer appendNull() {
+        return append(NULL_CHARS);
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mChars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(mChars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > mChars.length) {
+            char[] newChars = new char[Math.max(capacity, mChars.length * 2)];
+            System.arraycopy(mChars, 0, newChars, 0, mLength);
+            mChars = newChars;
+        }
+    }
+
+    /**
+     * Returns number of chars needed for the value, including "-" sign. Value cannot be {@link Long#MIN_VALUE}
+     */
+    private static int digitsCount(long value) {
+        int count = 1;
+        long rest = value;
+        if (rest < 0) {
+            count++;
+            rest = -rest;
+        }
+        while (rest >= 10) {
+            rest /= 10;
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,19 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This is the format of the lines written to log files. See {@link VoNaLogger.Builder#setOutputFormat(LogOutputFormat)}
+ */
+public enum LogOutputFormat {
+
+    /**
+     * Parameters are separated with tabulation sign. It's the default format.
+     */
+    TEXT,
+
+    /**
+     * Every line is a JSON object: {"seq":1,"ts":"2017-01-21T19:28:35.123456Z","thread":1,"params":["Log",1]}
+     * "seq", "ts" and "thread" are written only if they are enabled in {@link VoNaLogger.Builder}.
+     * Parameters named with {@link LogFields} are written as separate fields instead of "params".
+     */
+    JSON_LINES
+}
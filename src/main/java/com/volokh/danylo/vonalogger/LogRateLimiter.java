@@ -0,0 +1,137 @@
+package com.volokh.danylo.vonalogger;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class limits how many logs with the same template can be written per second.
+ * Template of the log is its first parameter, which is usually a string constant of a single call site.
+ *
+ * Templates are spread between a fixed number of stripes and every stripe is a token bucket. Templates are compared
+ * by identity and their {@link Object#hashCode()} is never called, so string constants of different call sites
+ * are always different templates, even if they are equal.
+ *
+ * Every stripe remembers the template that uses it. A template that finds its home stripe taken by another one
+ * tries few next stripes. A stripe whose bucket is full is taken over by any template, because a full bucket is
+ * the same as a new one, so templates that are not logged anymore don't keep their stripes.
+ * Stripes are shared only if all the stripes that a template tries belong to other templates that are being
+ * limited right now. Then these templates share the limit too.
+ *
+ * A bucket is stored as a single "theoretical arrival time" (GCRA): every permitted log moves it forward by
+ * "1 second / logsPerSecond" and a log is suppressed if it is further in the future than the burst allows.
+ * That's why a bucket is updated by a single compare-and-set, without locks.
+ * Stripes are placed in different cache lines so threads that log different templates don't slow down each other.
+ *
+ * See {@link VoNaLogger.Builder#setRateLimit(int, int)}
+ */
+final class LogRateLimiter {
+
+    private static final int STRIPES_COUNT = 256;
+
+    private static final int MAX_PROBES = 8;
+
+    /**
+     * Stripe of the logs without parameters.
+     */
+    private static final Object NO_TEMPLATE = new Object();
+
+    /**
+     * 8 longs = 64 bytes, size of a cache line on most of the CPUs.
+     */
+    private static final int STRIPE_PADDING = 8;
+
+    private static final long NANOS_IN_SECOND = 1_000_000_000L;
+
+    private final AtomicLongArray mArrivalTimes = new AtomicLongArray(STRIPES_COUNT * STRIPE_PADDING);
+
+    /**
+     * Template that uses the stripe or "null" if the stripe was never used.
+     */
+    private final AtomicReferenceArray<Object> mTemplates = new AtomicReferenceArray<>(STRIPES_COUNT);
+
+    private final long mIntervalNanos;
+
+    private final long mBurstToleranceNanos;
+
+    private final LongAdder mSuppressedCount = new LongAdder();
+
+    /**
+     * @param logsPerSecond - how many logs of a single template are written per second on average.
+     * @param burst         - how many logs of a single template can be written at once.
+     */
+    LogRateLimiter(int logsPerSecond, int burst) {
+        if (logsPerSecond <= 0) {
+            throw new IllegalArgumentException("LogRateLimiter, logsPerSecond should be positive: " + logsPerSecond);
+        }
+        mIntervalNanos = Math.max(1, NANOS_IN_SECOND / logsPerSecond);
+        mBurstToleranceNanos = mIntervalNanos * Math.max(0, burst - 1);
+
+        long now = System.nanoTime();
+        for (int stripe = 0; stripe < STRIPES_COUNT; stripe++) {
+            mArrivalTimes.set(stripe * STRIPE_PADDING, now);
+        }
+    }
+
+    /**
+     * @return true if the log can be written, false if it is suppressed.
+     */
+    boolean tryAcquire(Object[] parameters) {
+        Object template = parameters != null && parameters.length > 0 && parameters[0] != null
+                ? parameters[0] : NO_TEMPLATE;
+
+        long now = System.nanoTime();
+        int index = stripeOf(template, now) * STRIPE_PADDING;
+        while (true) {
+            long arrivalTime = mArrivalTimes.get(index);
+            long start = arrivalTime - now < 0 ? now : arrivalTime;
+
+            if (start - now > mBurstToleranceNanos) {
+                mSuppressedCount.increment();
+                return false;
+            }
+            if (mArrivalTimes.compareAndSet(index, arrivalTime, start + mIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return stripe that belongs to the template or its home stripe if all the tried stripes belong to others.
+     */
+    private int stripeOf(Object template, long now) {
+        int hash = System.identityHashCode(template);
+        // spread the higher bits so small hash codes are distributed well
+        hash ^= (hash >>> 16);
+        int homeStripe = hash & (STRIPES_COUNT - 1);
+
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int stripe = (homeStripe + probe) & (STRIPES_COUNT - 1);
+            Object owner = mTemplates.get(stripe);
+            if (owner == template) {
+                return stripe;
+            }
+            if (owner == null) {
+                // stripes are never released, so the template has no stripe after an unused one
+                break;
+            }
+        }
+        // a template never takes a new stripe while it has one, otherwise it would get a full bucket
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int stripe = (homeStripe + probe) & (STRIPES_COUNT - 1);
+            Object owner = mTemplates.get(stripe);
+            if (owner == template) {
+                return stripe;
+            }
+            boolean bucketFull = mArrivalTimes.get(stripe * STRIPE_PADDING) - now <= 0;
+            if ((owner == null || bucketFull) && mTemplates.compareAndSet(stripe, owner, template)) {
+                return stripe;
+            }
+        }
+        return homeStripe;
+    }
+
+    long suppressedCount() {
+        return mSuppressedCount.sum();
+    }
+}
@@ -0,0 +1,124 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * This class removes old files of a single logger, so all of them together don't take more than the total
+ * disk budget and are not older than max age. See {@link VoNaLogger.Builder#setTotalDiskBudget(long)}
+ *
+ * Files of the logger are the ones that have its name: current and rotated files, snapshots and their indexes,
+ * for example "Example_log_1.log", "Example_log_1_snapshot.log" and "Example_log_1.log.idx".
+ * Files with other extensions after ".log" (for example compressed copies) are counted too.
+ * Metadata file is not removed.
+ *
+ * Files are removed from the oldest by the time of their last modification. The current file and its index are
+ * never removed.
+ *
+ * It is used by the retention thread of {@link VoNaLoggerImpl}, so removing files doesn't delay writing logs.
+ * Background thread doesn't wait for it, so if a rotated file is shifted at the same moment the next file
+ * might be removed instead of it. Both of them are the oldest ones anyway.
+ */
+final class LogRetention {
+
+    /**
+     * Last modification time and size are read once, because they can be changed while files are sorted.
+     */
+    private static final class RetainedFile implements Comparable<RetainedFile> {
+
+        private final File mFile;
+        private final long mLastModified;
+        private final long mLength;
+
+        RetainedFile(File file) {
+            mFile = file;
+            mLastModified = file.lastModified();
+            mLength = file.length();
+        }
+
+        @Override
+        public int compareTo(RetainedFile other) {
+            return Long.compare(mLastModified, other.mLastModified);
+        }
+    }
+
+    private final File mLogDir;
+    private final String mCurrentFileName;
+
+    /**
+     * "0" means that total size is not limited.
+     */
+    private final long mTotalBudget;
+
+    /**
+     * "0" means that age is not limited.
+     */
+    private final long mMaxAgeMillis;
+
+    private final FileFilter mLoggerFilesFilter;
+
+    /**
+     * @param currentFileName - name of the current file. It's always the file with index "0".
+     */
+    LogRetention(File logDir, String logFileName, String currentFileName, long totalBudget, long maxAgeMillis) {
+        mLogDir = logDir;
+        mCurrentFileName = currentFileName;
+        mTotalBudget = totalBudget;
+        mMaxAgeMillis = maxAgeMillis;
+
+        final Pattern fileNamePattern = Pattern.compile(Pattern.quote(logFileName) + "_\\d+(_snapshot)?\\.log(\\..+)?");
+        mLoggerFilesFilter = new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && fileNamePattern.matcher(file.getName()).matches();
+            }
+        };
+    }
+
+    long maxAgeMillis() {
+        return mMaxAgeMillis;
+    }
+
+    /**
+     * @return number of removed files
+     */
+    int removeOldFiles() {
+        File[] files = mLogDir.listFiles(mLoggerFilesFilter);
+        if (files == null) {
+            return 0;
+        }
+
+        List<RetainedFile> retainedFiles = new ArrayList<>(files.length);
+        long totalSize = 0;
+        for (File file : files) {
+            RetainedFile retainedFile = new RetainedFile(file);
+            retainedFiles.add(retainedFile);
+            totalSize += retainedFile.mLength;
+        }
+        Collections.sort(retainedFiles);
+
+        long oldestAllowed = mMaxAgeMillis > 0 ? System.currentTimeMillis() - mMaxAgeMillis : Long.MIN_VALUE;
+
+        int removedCount = 0;
+        for (RetainedFile retainedFile : retainedFiles) {
+            boolean tooOld = retainedFile.mLastModified < oldestAllowed;
+            boolean overBudget = mTotalBudget > 0 && totalSize > mTotalBudget;
+            if (!tooOld && !overBudget) {
+                // the rest of the files are newer
+                break;
+            }
+            if (retainedFile.mFile.getName().startsWith(mCurrentFileName)) {
+                continue;
+            }
+            if (retainedFile.mFile.delete()) {
+                totalSize -= retainedFile.mLength;
+                removedCount++;
+            }
+        }
+        return removedCount;
+    }
+}
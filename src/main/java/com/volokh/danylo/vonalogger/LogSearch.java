@@ -0,0 +1,142 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class searches log lines in the files that were written with segment index:
+ * {@link VoNaLogger.Builder#setSegmentIndexInterval(int)}
+ *
+ * Index allows to skip the files that don't contain logs from the given time window and to start reading a file
+ * from the position close to the start of the window. Critical logs are written before older regular logs,
+ * {@link VoNaLogger#writeCriticalLog(Object...)}, so timestamps don't always grow inside a file and the rest of
+ * the file is read after the end of the window too. If words of the first parameter are indexed,
+ * {@link VoNaLogger.Builder#setIndexFirstParameterTokens(boolean)}, files that don't contain the word are skipped too.
+ *
+ * Files without index are not searched.
+ */
+public final class LogSearch {
+
+    private static final int NANOS_IN_MILLI = 1_000_000;
+
+    private static final int TIMESTAMP_LENGTH = 27;
+
+    private LogSearch() {
+    }
+
+    /**
+     * @param logFiles        - files returned by the {@link VoNaLogger}. Index files are found automatically.
+     * @param fromEpochMillis - start of the time window, inclusive.
+     * @param toEpochMillis   - end of the time window, exclusive.
+     * @param token           - a word that first parameter of the log has to contain or "null" to return all the logs
+     *                        in the time window.
+     * @return matching lines. Lines of every file are in the order in which they were written.
+     */
+    public static List<String> findLines(File[] logFiles, long fromEpochMillis, long toEpochMillis, String token)
+            throws IOException {
+
+        long fromNanos = fromEpochMillis * NANOS_IN_MILLI;
+        long toNanos = toEpochMillis * NANOS_IN_MILLI;
+
+        // timestamps in files have fixed width, so they can be compared as strings
+        String from = formatTimestamp(fromNanos);
+        String to = formatTimestamp(toNanos);
+
+        List<String> result = new ArrayList<>();
+
+        for (File logFile : logFiles) {
+            SegmentIndex index = SegmentIndex.readFrom(SegmentIndex.indexFileFor(logFile));
+            if (index == null || !logFile.exists()) {
+                continue;
+            }
+            if (!index.overlaps(fromNanos, toNanos)) {
+                continue;
+            }
+            if (token != null && !index.mightContainToken(token)) {
+                continue;
+            }
+            searchFile(logFile, index, index.startOffset(fromNanos), from, to, token, result);
+        }
+        return result;
+    }
+
+    private static void searchFile(File logFile, SegmentIndex index, long startOffset, String from, String to,
+                                   String token, List<String> result) throws IOException {
+
+        FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+        BufferedReader reader = new BufferedReader(Channels.newReader(channel.position(startOffset),
+                Charset.defaultCharset().newDecoder(), -1));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                String timestamp = field(line, index.timestampFieldIndex());
+                if (timestamp == null || !isTimestamp(timestamp)) {
+                    // frame header of crash safe mode or continuation of a multi line log
+                    continue;
+                }
+                if (timestamp.compareTo(from) < 0 || timestamp.compareTo(to) >= 0) {
+                    // older regular logs might still follow a critical log from after the window
+                    continue;
+                }
+                if (token == null || containsToken(field(line, index.headerFieldsCount()), token)) {
+                    result.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String formatTimestamp(long epochNanos) {
+        LogOutputBuffer buffer = new LogOutputBuffer(32);
+        new LogTimestampFormatter().appendTimestamp(buffer, epochNanos);
+        return buffer.toString();
+    }
+
+    /**
+     * Timestamps are written like this: "2017-01-21T19:28:35.123456Z"
+     */
+    private static boolean isTimestamp(String field) {
+        return field.length() == TIMESTAMP_LENGTH && field.charAt(10) == 'T' && field.charAt(TIMESTAMP_LENGTH - 1) == 'Z';
+    }
+
+    /**
+     * @return field with the given index or "null" if line doesn't have it.
+     */
+    private static String field(String line, int fieldIndex) {
+        int start = 0;
+        for (int index = 0; index < fieldIndex; index++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) {
+                return null;
+            }
+        }
+        int end = line.indexOf('\t', start);
+        return line.substring(start, end < 0 ? line.length() : end);
+    }
+
+    private static boolean containsToken(String text, String token) {
+        if (text == null) {
+            return false;
+        }
+        int position = text.indexOf(token);
+        while (position >= 0) {
+            int end = position + token.length();
+            boolean startsToken = position == 0 || !SegmentIndex.isTokenChar(text.charAt(position - 1));
+            boolean endsToken = end == text.length() || !SegmentIndex.isTokenChar(text.charAt(end));
+            if (startsToken && endsToken) {
+                return true;
+            }
+            position = text.indexOf(token, position + 1);
+        }
+        return false;
+    }
+}
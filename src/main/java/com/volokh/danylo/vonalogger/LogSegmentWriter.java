@@ -0,0 +1,513 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * This class writes the content of {@link LogOutputBuffer} to the current log file.
+ *
+ * Characters are encoded into reusable direct buffers and written to a {@link FileChannel}.
+ * The size of the file is tracked here so the background thread doesn't need to ask the file system for it
+ * before every batch.
+ *
+ * Several batches can be encoded one after another with {@link #append(LogOutputBuffer)}, every batch into its own
+ * buffer, and then written with a single gathering write: {@link #flush()}
+ *
+ * If crash safe mode is enabled every batch is written as a frame:
+ * <pre>
+ * #LLLLLLLL:CCCCCCCC\n
+ * payload
+ * </pre>
+ * where "LLLLLLLL" is the length of the payload in bytes and "CCCCCCCC" is the CRC32C of the payload,
+ * both in hex. Header is a text line so the log files can still be read as text files.
+ * See {@link #recoverFramedFile(File, boolean)}
+ *
+ * If encryption key is specified every batch is encrypted with AES-GCM and written as a frame that starts with "%"
+ * instead of "#". Payload of such frame is:
+ * <pre>
+ * nonce (12 bytes) | encrypted batch | authentication tag (16 bytes)
+ * </pre>
+ * Nonce is 8 random bytes that are generated every time a file is opened and 4 bytes of the frame counter in this
+ * file. See {@link EncryptedLogInputStream}
+ *
+ * Instance of this class should be used only under {@link VoNaLoggerImpl} "write to file" lock.
+ */
+final class LogSegmentWriter {
+
+    static final int FRAME_HEADER_SIZE = 19;
+
+    static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    static final int NONCE_SIZE = 12;
+    static final int NONCE_PREFIX_SIZE = 8;
+    static final int TAG_SIZE = 16;
+
+    static final char FRAME_START = '#';
+    static final char ENCRYPTED_FRAME_START = '%';
+
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    private static final char FRAME_SEPARATOR = ':';
+    private static final char FRAME_END = '\n';
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    private final CharsetEncoder mEncoder;
+
+    private final boolean mCrashSafeMode;
+
+    private final CRC32C mChecksum = new CRC32C();
+
+    private final char mFrameStart;
+
+    /**
+     * These are null if logs are not encrypted.
+     */
+    private final SecretKey mEncryptionKey;
+    private final Cipher mCipher;
+    private final SecureRandom mRandom;
+    private final byte[] mNonce = new byte[NONCE_SIZE];
+    private int mFrameCounter;
+
+    /**
+     * Batch is encoded here before it's encrypted into one of {@link #mBuffers}
+     */
+    private ByteBuffer mPlainBytes;
+
+    /**
+     * Buffers of the batches that are appended, but not written yet. Buffers are reused.
+     */
+    private ByteBuffer[] mBuffers = new ByteBuffer[]{ByteBuffer.allocateDirect(DEFAULT_CAPACITY)};
+    private int mPendingCount;
+    private long mPendingSize;
+
+    /**
+     * This wraps the array of {@link LogOutputBuffer}. It's re-wrapped only if that array was reallocated.
+     */
+    private CharBuffer mChars;
+
+    /**
+     * Volatile because the channel is also read by the sync thread.
+     */
+    private volatile FileChannel mChannel;
+
+    private long mSize;
+
+    /**
+     * @param encryptionKey - AES key or null if logs are not encrypted. Encrypted logs are always written as frames.
+     */
+    LogSegmentWriter(Charset charset, boolean crashSafeMode, SecretKey encryptionKey) {
+        mEncoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mCrashSafeMode = crashSafeMode || encryptionKey != null;
+        mFrameStart = encryptionKey != null ? ENCRYPTED_FRAME_START : FRAME_START;
+        mEncryptionKey = encryptionKey;
+        if (encryptionKey != null) {
+            mCipher = createCipher();
+            mRandom = new SecureRandom();
+            mPlainBytes = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+            try {
+                // wrong key is reported when logger is created and not when the first batch is written.
+                // Nothing is encrypted with this nonce, the random one is generated when file is opened
+                mCipher.init(Cipher.ENCRYPT_MODE, mEncryptionKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException("Encryption key cannot be used for " + CIPHER_TRANSFORMATION, e);
+            }
+        } else {
+            mCipher = null;
+            mRandom = null;
+        }
+    }
+
+    static Cipher createCipher() {
+        try {
+            return Cipher.getInstance(CIPHER_TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(CIPHER_TRANSFORMATION + " is not supported", e);
+        }
+    }
+
+    /**
+     * @param append - if false the file content is removed.
+     */
+    void open(File file, boolean append) throws IOException {
+        if (mEncryptionKey != null) {
+            // new random part of the nonce, so nonces of the previous runs are not repeated
+            mRandom.nextBytes(mNonce);
+            mFrameCounter = 0;
+        }
+        if (append) {
+            mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            mSize = mChannel.size();
+            mChannel.position(mSize);
+        } else {
+            mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            mSize = 0;
+        }
+    }
+
+    boolean isOpen() {
+        return mChannel != null;
+    }
+
+    /**
+     * @return size of the current file in bytes, including the batches that are appended but not written yet.
+     */
+    long size() {
+        return mSize + mPendingSize;
+    }
+
+    FileChannel channel() {
+        return mChannel;
+    }
+
+    /**
+     * Batches that were appended but not flushed are not written.
+     */
+    void close() throws IOException {
+        mPendingCount = 0;
+        mPendingSize = 0;
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Encodes the content of the buffer and writes it to file.
+     *
+     * @return number of bytes written to file
+     */
+    int write(LogOutputBuffer outputBuffer) throws IOException {
+        int bytesCount = append(outputBuffer);
+        flush();
+        return bytesCount;
+    }
+
+    /**
+     * Encodes the content of the buffer into the next pending buffer. It's written to file by {@link #flush()}
+     *
+     * @return number of bytes that will be written to file
+     */
+    int append(LogOutputBuffer outputBuffer) throws IOException {
+        if (outputBuffer.length() == 0) {
+            return 0;
+        }
+
+        if (mPendingCount == mBuffers.length) {
+            mBuffers = Arrays.copyOf(mBuffers, mBuffers.length * 2);
+        }
+        ByteBuffer bytes = encode(outputBuffer, mPendingCount);
+        mPendingCount++;
+        mPendingSize += bytes.remaining();
+        return bytes.remaining();
+    }
+
+    /**
+     * Writes all the appended batches with a single gathering write.
+     *
+     * @return number of bytes written to file
+     */
+    long flush() throws IOException {
+        if (mPendingCount == 0) {
+            return 0;
+        }
+
+        long written = 0;
+        ByteBuffer last = mBuffers[mPendingCount - 1];
+        while (last.hasRemaining()) {
+            written += mChannel.write(mBuffers, 0, mPendingCount);
+        }
+        mSize += written;
+
+        mPendingCount = 0;
+        mPendingSize = 0;
+        return written;
+    }
+
+    /**
+     * Puts all the appended batches to the shared ring as a single batch instead of writing them to file.
+     * Size of the file is not changed. See {@link SharedLogRing}
+     *
+     * @return write position of the ring after the batch or "-1" if there is no space in the ring now.
+     * In the latter case batches stay appended.
+     */
+    long publishTo(SharedLogRing ring) throws IOException {
+        if (mPendingCount == 0) {
+            return 0;
+        }
+        long position = ring.offer(mBuffers, mPendingCount, (int) mPendingSize);
+        if (position >= 0) {
+            mPendingCount = 0;
+            mPendingSize = 0;
+        }
+        return position;
+    }
+
+    /**
+     * @return size of the batches that are appended but not written yet.
+     */
+    long pendingSize() {
+        return mPendingSize;
+    }
+
+    /**
+     * Appended batches are not written.
+     */
+    void discardPending() {
+        mPendingCount = 0;
+        mPendingSize = 0;
+    }
+
+    /**
+     * Writes bytes that are already encoded, for example by another process. See {@link SharedLogRing}
+     */
+    void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            mSize += mChannel.write(bytes);
+        }
+    }
+
+    /**
+     * @return buffer from {@link #mBuffers} that is ready to be written to the channel.
+     */
+    private ByteBuffer encode(LogOutputBuffer outputBuffer, int bufferIndex) throws IOException {
+        int headerSize = mCrashSafeMode ? FRAME_HEADER_SIZE : 0;
+        int maxEncodedSize = (int) Math.ceil(outputBuffer.length() * mEncoder.maxBytesPerChar());
+
+        ByteBuffer bytes;
+        if (mCipher == null) {
+            bytes = ensureCapacity(bufferIndex, headerSize + maxEncodedSize);
+            bytes.clear();
+            bytes.position(headerSize);
+
+            encodeCharacters(outputBuffer, bytes);
+        } else {
+            if (mPlainBytes.capacity() < maxEncodedSize) {
+                mPlainBytes = ByteBuffer.allocateDirect(Math.max(maxEncodedSize, mPlainBytes.capacity() * 2));
+            }
+            mPlainBytes.clear();
+            encodeCharacters(outputBuffer, mPlainBytes);
+            mPlainBytes.flip();
+
+            bytes = ensureCapacity(bufferIndex, headerSize + NONCE_SIZE + mPlainBytes.remaining() + TAG_SIZE);
+            bytes.clear();
+            bytes.position(headerSize);
+
+            encrypt(mPlainBytes, bytes);
+        }
+
+        int end = bytes.position();
+
+        if (mCrashSafeMode) {
+            bytes.limit(end).position(headerSize);
+
+            mChecksum.reset();
+            mChecksum.update(bytes);
+
+            writeFrameHeader(bytes, end - headerSize, (int) mChecksum.getValue());
+        }
+
+        bytes.limit(end).position(0);
+        return bytes;
+    }
+
+    private void encodeCharacters(LogOutputBuffer outputBuffer, ByteBuffer target) {
+        if (mChars == null || mChars.array() != outputBuffer.array()) {
+            mChars = CharBuffer.wrap(outputBuffer.array());
+        }
+        mChars.limit(outputBuffer.length()).position(0);
+
+        mEncoder.reset();
+        mEncoder.encode(mChars, target, true);
+        mEncoder.flush(target);
+    }
+
+    /**
+     * Writes nonce, encrypted bytes and authentication tag to the target.
+     */
+    private void encrypt(ByteBuffer plainBytes, ByteBuffer target) throws IOException {
+        nextNonce();
+        target.put(mNonce);
+        try {
+            // GCMParameterSpec is immutable and cipher must be initialized with a new nonce for every batch,
+            // so this is the only allocation per batch that is left. It is per batch and not per log.
+            mCipher.init(Cipher.ENCRYPT_MODE, mEncryptionKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+            mCipher.doFinal(plainBytes, target);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("failed to encrypt logs", e);
+        }
+    }
+
+    /**
+     * Last 4 bytes of the nonce are the frame counter. Before it overflows random part is generated again
+     * and the counter starts from 0, like in a newly opened file.
+     */
+    private void nextNonce() {
+        if (mFrameCounter == -1) {
+            mRandom.nextBytes(mNonce);
+            mFrameCounter = 0;
+        }
+        int counter = mFrameCounter++;
+        for (int index = NONCE_SIZE - 1; index >= NONCE_PREFIX_SIZE; index--) {
+            mNonce[index] = (byte) counter;
+            counter >>>= 8;
+        }
+    }
+
+    private ByteBuffer ensureCapacity(int bufferIndex, int capacity) {
+        ByteBuffer bytes = mBuffers[bufferIndex];
+        if (bytes == null) {
+            bytes = ByteBuffer.allocateDirect(Math.max(capacity, DEFAULT_CAPACITY));
+            mBuffers[bufferIndex] = bytes;
+        } else if (bytes.capacity() < capacity) {
+            bytes = ByteBuffer.allocateDirect(Math.max(capacity, bytes.capacity() * 2));
+            mBuffers[bufferIndex] = bytes;
+        }
+        return bytes;
+    }
+
+    private void writeFrameHeader(ByteBuffer bytes, int payloadLength, int checksum) {
+        bytes.put(0, (byte) mFrameStart);
+        putHex(bytes, 1, payloadLength);
+        bytes.put(9, (byte) FRAME_SEPARATOR);
+        putHex(bytes, 10, checksum);
+        bytes.put(18, (byte) FRAME_END);
+    }
+
+    private static void putHex(ByteBuffer bytes, int offset, int value) {
+        for (int index = offset + 7; index >= offset; index--) {
+            bytes.put(index, HEX_DIGITS[value & 0xF]);
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * This method walks the frame headers from the beginning of the file, skipping the payloads, and truncates
+     * the file after the last complete frame. A frame can be broken only if the process died while it was written,
+     * so it's always at the end: a header that is cut or not valid, a cut payload or a wrong checksum of the last frame.
+     * Only the checksum of the last frame is verified, so recovery doesn't read the whole file.
+     *
+     * @return length of the file after recovery or -1 if the file doesn't start with a frame.
+     * In the latter case the file is not modified because it was not written in crash safe mode.
+     *
+     * @param encrypted - if true only encrypted frames are valid, otherwise only plain ones.
+     */
+    static long recoverFramedFile(File file, boolean encrypted) throws IOException {
+        char frameStart = encrypted ? ENCRYPTED_FRAME_START : FRAME_START;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long fileSize = channel.size();
+
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+
+            long validLength = 0;
+            long lastFrameStart = -1;
+            int lastFrameChecksum = 0;
+            while (validLength < fileSize) {
+
+                long payloadLength = readFrameHeader(channel, validLength, header, frameStart);
+                if (payloadLength < 0) {
+                    if (validLength == 0) {
+                        return -1;
+                    }
+                    break;
+                }
+
+                long frameEnd = validLength + FRAME_HEADER_SIZE + payloadLength;
+                if (frameEnd > fileSize) {
+                    break;
+                }
+
+                lastFrameStart = validLength;
+                lastFrameChecksum = parseHex(header, 10);
+                validLength = frameEnd;
+            }
+
+            if (lastFrameStart >= 0 && !hasValidChecksum(channel, lastFrameStart + FRAME_HEADER_SIZE, validLength,
+                    lastFrameChecksum)) {
+                validLength = lastFrameStart;
+            }
+
+            if (validLength < fileSize) {
+                channel.truncate(validLength);
+            }
+            return validLength;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean hasValidChecksum(FileChannel channel, long payloadStart, long payloadEnd, int expected)
+            throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate((int) Math.min(DEFAULT_CAPACITY, payloadEnd - payloadStart));
+        CRC32C checksum = new CRC32C();
+
+        long position = payloadStart;
+        while (position < payloadEnd) {
+            payload.clear();
+            payload.limit((int) Math.min(payload.capacity(), payloadEnd - position));
+            int read = channel.read(payload, position);
+            if (read <= 0) {
+                return false;
+            }
+            payload.flip();
+            checksum.update(payload);
+            position += read;
+        }
+        return (int) checksum.getValue() == expected;
+    }
+
+    /**
+     * @return payload length or -1 if there is no valid header at this position
+     */
+    static long readFrameHeader(FileChannel channel, long position, ByteBuffer header, char frameStart)
+            throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) <= 0) {
+                return -1;
+            }
+        }
+        if (header.get(0) != frameStart || header.get(9) != FRAME_SEPARATOR || header.get(18) != FRAME_END) {
+            return -1;
+        }
+        if (!isHex(header, 1) || !isHex(header, 10)) {
+            return -1;
+        }
+        return parseHex(header, 1) & 0xFFFFFFFFL;
+    }
+
+    private static boolean isHex(ByteBuffer bytes, int offset) {
+        for (int index = offset; index < offset + 8; index++) {
+            if (Character.digit(bytes.get(index), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseHex(ByteBuffer bytes, int offset) {
+        int value = 0;
+        for (int index = offset; index < offset + 8; index++) {
+            value = (value << 4) | Character.digit(bytes.get(index), 16);
+        }
+        return value;
+    }
+}
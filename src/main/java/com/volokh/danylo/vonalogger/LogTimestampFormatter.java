@@ -0,0 +1,120 @@
+package com.volokh.danylo.vonalogger;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * This class writes ISO-8601 timestamps in UTC with microseconds, for example: "2017-01-21T19:28:35.123456Z"
+ *
+ * The "date and seconds" part is cached and recalculated only when the second changes,
+ * so for most of the entries only the sub-second digits are written.
+ *
+ * Instance of this class should be used only by background thread.
+ */
+final class LogTimestampFormatter {
+
+    private static final int NANOS_IN_SECOND = 1_000_000_000;
+
+    private static final int NANOS_IN_MICRO = 1_000;
+
+    private static final long NANOS_IN_MILLI = 1_000_000L;
+
+    private static final int MICROS_DIGITS_COUNT = 6;
+
+    /**
+     * "yyyy-MM-ddTHH:mm:ss."
+     */
+    private final char[] mSecondPrefix = new char[20];
+
+    private long mCachedSecond = Long.MIN_VALUE;
+
+    private final char[] mMicros = new char[MICROS_DIGITS_COUNT];
+
+    /**
+     * Timestamps are taken from {@link System#nanoTime()} which has a good resolution but is not bound to
+     * the wall clock. That's why it is anchored to the wall clock when the clock is created and checked against it
+     * once a second, so adjustments of the wall clock (NTP) are followed.
+     *
+     * Wall clock has only millisecond resolution, so the anchor is moved only if the difference is bigger than that.
+     * Otherwise timestamps would jitter on every check.
+     *
+     * It's used under the processing lock of the logger, so it's not synchronized.
+     */
+    static final class Clock {
+
+        private static final long REANCHOR_INTERVAL_NANOS = NANOS_IN_SECOND;
+
+        private final java.time.Clock mWallClock;
+
+        private long mAnchorEpochNanos;
+        private long mAnchorNanoTime;
+
+        Clock(java.time.Clock wallClock) {
+            mWallClock = wallClock;
+            mAnchorEpochNanos = wallClock.millis() * NANOS_IN_MILLI;
+            mAnchorNanoTime = System.nanoTime();
+        }
+
+        long currentEpochNanos() {
+            long nanoTime = System.nanoTime();
+            if (nanoTime - mAnchorNanoTime >= REANCHOR_INTERVAL_NANOS) {
+                reanchor(nanoTime);
+            }
+            return mAnchorEpochNanos + (nanoTime - mAnchorNanoTime);
+        }
+
+        private void reanchor(long nanoTime) {
+            long epochNanos = mAnchorEpochNanos + (nanoTime - mAnchorNanoTime);
+            long wallEpochNanos = mWallClock.millis() * NANOS_IN_MILLI;
+
+            mAnchorEpochNanos = Math.abs(wallEpochNanos - epochNanos) >= NANOS_IN_MILLI ? wallEpochNanos : epochNanos;
+            mAnchorNanoTime = nanoTime;
+        }
+    }
+
+    void appendTimestamp(LogOutputBuffer outputBuffer, long epochNanos) {
+        long second = Math.floorDiv(epochNanos, NANOS_IN_SECOND);
+
+        if (second != mCachedSecond) {
+            fillSecondPrefix(second);
+            mCachedSecond = second;
+        }
+
+        int micros = Math.floorMod(epochNanos, NANOS_IN_SECOND) / NANOS_IN_MICRO;
+        for (int index = MICROS_DIGITS_COUNT - 1; index >= 0; index--) {
+            mMicros[index] = (char) ('0' + micros % 10);
+            micros /= 10;
+        }
+
+        outputBuffer.append(mSecondPrefix)
+                .append(mMicros)
+                .append('Z');
+    }
+
+    /**
+     * This is called once a second, so it's fine to create a date object here.
+     */
+    private void fillSecondPrefix(long second) {
+        LocalDateTime dateTime = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+
+        writeDigits(dateTime.getYear(), 0, 4);
+        mSecondPrefix[4] = '-';
+        writeDigits(dateTime.getMonthValue(), 5, 2);
+        mSecondPrefix[7] = '-';
+        writeDigits(dateTime.getDayOfMonth(), 8, 2);
+        mSecondPrefix[10] = 'T';
+        writeDigits(dateTime.getHour(), 11, 2);
+        mSecondPrefix[13] = ':';
+        writeDigits(dateTime.getMinute(), 14, 2);
+        mSecondPrefix[16] = ':';
+        writeDigits(dateTime.getSecond(), 17, 2);
+        mSecondPrefix[19] = '.';
+    }
+
+    private void writeDigits(int value, int offset, int count) {
+        for (int index = offset + count - 1; index >= offset; index--) {
+            mSecondPrefix[index] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
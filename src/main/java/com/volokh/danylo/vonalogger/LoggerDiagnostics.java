@@ -0,0 +1,118 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This is a snapshot of the time spent by the logger in every {@link LoggerPhase}.
+ * It is returned by {@link VoNaLogger#getDiagnostics()} and is not changed after that.
+ *
+ * Durations are kept in a histogram with power of two buckets: bucket "i" counts durations
+ * from 2^i to 2^(i+1) nanoseconds. So percentiles are precise up to a factor of two.
+ */
+public final class LoggerDiagnostics {
+
+    static final int BUCKETS_COUNT = 64;
+
+    private final long[] mCounts;
+    private final long[] mTotalNanos;
+    private final long[] mMaxNanos;
+    private final long[][] mHistograms;
+
+    LoggerDiagnostics(long[] counts, long[] totalNanos, long[] maxNanos, long[][] histograms) {
+        mCounts = counts;
+        mTotalNanos = totalNanos;
+        mMaxNanos = maxNanos;
+        mHistograms = histograms;
+    }
+
+    static LoggerDiagnostics empty() {
+        int phasesCount = LoggerPhase.values().length;
+        return new LoggerDiagnostics(new long[phasesCount], new long[phasesCount], new long[phasesCount],
+                new long[phasesCount][BUCKETS_COUNT]);
+    }
+
+    /**
+     * @return how many times the phase was measured.
+     */
+    public long getCount(LoggerPhase phase) {
+        return mCounts[phase.ordinal()];
+    }
+
+    public long getTotalNanos(LoggerPhase phase) {
+        return mTotalNanos[phase.ordinal()];
+    }
+
+    public long getMaxNanos(LoggerPhase phase) {
+        return mMaxNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return copy of the histogram of the phase. See {@link LoggerDiagnostics}
+     */
+    public long[] getHistogram(LoggerPhase phase) {
+        return mHistograms[phase.ordinal()].clone();
+    }
+
+    /**
+     * @param percentile - from 0 to 100
+     * @return upper bound of the bucket that contains the percentile or "0" if the phase was not measured.
+     */
+    public long getPercentileNanos(LoggerPhase phase, double percentile) {
+        long count = getCount(phase);
+        if (count == 0) {
+            return 0;
+        }
+        long[] histogram = mHistograms[phase.ordinal()];
+        long rank = (long) Math.ceil(count * percentile / 100);
+
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS_COUNT; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank && seen > 0) {
+                return Math.min(getMaxNanos(phase), bucketUpperBound(bucket));
+            }
+        }
+        return getMaxNanos(phase);
+    }
+
+    /**
+     * Sums the measurements of few loggers, for example of all the shards.
+     */
+    LoggerDiagnostics merge(LoggerDiagnostics other) {
+        int phasesCount = mCounts.length;
+        long[] counts = new long[phasesCount];
+        long[] totalNanos = new long[phasesCount];
+        long[] maxNanos = new long[phasesCount];
+        long[][] histograms = new long[phasesCount][BUCKETS_COUNT];
+
+        for (int phase = 0; phase < phasesCount; phase++) {
+            counts[phase] = mCounts[phase] + other.mCounts[phase];
+            totalNanos[phase] = mTotalNanos[phase] + other.mTotalNanos[phase];
+            maxNanos[phase] = Math.max(mMaxNanos[phase], other.mMaxNanos[phase]);
+            for (int bucket = 0; bucket < BUCKETS_COUNT; bucket++) {
+                histograms[phase][bucket] = mHistograms[phase][bucket] + other.mHistograms[phase][bucket];
+            }
+        }
+        return new LoggerDiagnostics(counts, totalNanos, maxNanos, histograms);
+    }
+
+    static int bucketOf(long durationNanos) {
+        return durationNanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(durationNanos);
+    }
+
+    private static long bucketUpperBound(int bucket) {
+        return bucket >= 62 ? Long.MAX_VALUE : (1L << (bucket + 1)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("LoggerDiagnostics{");
+        for (LoggerPhase phase : LoggerPhase.values()) {
+            result.append(phase)
+                    .append("[count=").append(getCount(phase))
+                    .append(", p50=").append(getPercentileNanos(phase, 50))
+                    .append(", p99=").append(getPercentileNanos(phase, 99))
+                    .append(", max=").append(getMaxNanos(phase))
+                    .append("] ");
+        }
+        return result.append('}').toString();
+    }
+}
@@ -0,0 +1,87 @@
+package com.volokh.danylo.vonalogger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * These are the JFR events committed by {@link VoNaLoggerImpl}.
+ * They allow to see the cost of logging next to GC and safepoints in JDK Mission Control.
+ *
+ * Events are filled and committed only if JFR records them, see {@link Event#shouldCommit()}.
+ * Events are not even created if their type is disabled, see {@link #BATCH_WRITTEN} and the other types.
+ */
+final class LoggerEvents {
+
+    static final EventType BATCH_WRITTEN = EventType.getEventType(BatchWrittenEvent.class);
+    static final EventType LOG_DROPPED = EventType.getEventType(LogDroppedEvent.class);
+    static final EventType ROTATION = EventType.getEventType(RotationEvent.class);
+    static final EventType SNAPSHOT = EventType.getEventType(SnapshotEvent.class);
+
+    private LoggerEvents() {
+    }
+
+    @Name("com.volokh.danylo.vonalogger.BatchWritten")
+    @Label("VoNaLogger Batch Written")
+    @Category("VoNaLogger")
+    @Description("A list of log entries was rendered and written to file by background thread")
+    static final class BatchWrittenEvent extends Event {
+
+        @Label("Log File Name")
+        String logFileName;
+
+        @Label("Entries Count")
+        int entriesCount;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.volokh.danylo.vonalogger.Rotation")
+    @Label("VoNaLogger Rotation")
+    @Category("VoNaLogger")
+    @Description("Log files were shifted and a new current file was created")
+    static final class RotationEvent extends Event {
+
+        @Label("Log File Name")
+        String logFileName;
+
+        @Label("Rotated File Size")
+        @DataAmount
+        long rotatedFileSize;
+    }
+
+    @Name("com.volokh.danylo.vonalogger.Snapshot")
+    @Label("VoNaLogger Snapshot")
+    @Category("VoNaLogger")
+    @Description("Snapshot of the log files was created")
+    static final class SnapshotEvent extends Event {
+
+        @Label("Log File Name")
+        String logFileName;
+
+        @Label("Files Count")
+        int filesCount;
+    }
+
+    @Name("com.volokh.danylo.vonalogger.LogDropped")
+    @Label("VoNaLogger Log Dropped")
+    @Category("VoNaLogger")
+    @Description("A log was not written because the logger was over its capacity or rate limit")
+    static final class LogDroppedEvent extends Event {
+
+        static final String REASON_CAPACITY = "capacity";
+        static final String REASON_RATE_LIMIT = "rate limit";
+
+        @Label("Log File Name")
+        String logFileName;
+
+        @Label("Reason")
+        String reason;
+    }
+}
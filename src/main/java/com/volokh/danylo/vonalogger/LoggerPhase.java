@@ -0,0 +1,33 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * These are the places where the logger might spend time. See {@link LoggerDiagnostics}
+ */
+public enum LoggerPhase {
+
+    /**
+     * Time that {@link VoNaLogger#writeLog(Object...)} waited for the lock of the current list of entries.
+     * Only some of the calls are measured.
+     */
+    PRODUCER_LOCK_WAIT,
+
+    /**
+     * Time that background thread spent rendering a batch of entries into text.
+     */
+    ENCODE,
+
+    /**
+     * Time that background thread spent writing a batch of entries to file.
+     */
+    WRITE,
+
+    /**
+     * Time spent syncing the current file to the storage device.
+     */
+    SYNC,
+
+    /**
+     * Time spent rotating the files, including renames of the old files.
+     */
+    ROTATE
+}
@@ -0,0 +1,114 @@
+package com.volokh.danylo.vonalogger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * This class collects the durations of {@link LoggerPhase} of a single logger.
+ * It's created only if diagnostics are enabled: {@link VoNaLogger.Builder#setCollectDiagnostics(boolean)},
+ * otherwise the logger doesn't even read the clock.
+ *
+ * Phases are recorded by producer threads, background thread and sync thread, so all the counters are atomic.
+ * Every measurement is also committed as {@link PhaseEvent} if JFR records it. The event is not even created
+ * if its type is disabled, like the events in {@link LoggerEvents}.
+ */
+final class LoggerPhaseRecorder {
+
+    /**
+     * One of 32 calls of {@link VoNaLogger#writeLog(Object...)} measures the wait for the lock.
+     */
+    private static final int PRODUCER_SAMPLING_MASK = 31;
+
+    private static final EventType PHASE = EventType.getEventType(PhaseEvent.class);
+
+    @Name("com.volokh.danylo.vonalogger.Phase")
+    @Label("VoNaLogger Phase")
+    @Category("VoNaLogger")
+    @Description("Time spent by the logger in a single phase")
+    static final class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Log File Name")
+        String logFileName;
+
+        @Label("Phase Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long phaseDuration;
+    }
+
+    private final String mLogFileName;
+
+    private final int mPhasesCount = LoggerPhase.values().length;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(mPhasesCount);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(mPhasesCount);
+    private final AtomicLongArray mMaxNanos = new AtomicLongArray(mPhasesCount);
+    private final AtomicLongArray mHistograms = new AtomicLongArray(mPhasesCount * LoggerDiagnostics.BUCKETS_COUNT);
+
+    LoggerPhaseRecorder(String logFileName) {
+        mLogFileName = logFileName;
+    }
+
+    /**
+     * @return true if the current call to the logger should be measured.
+     */
+    boolean shouldSampleProducer() {
+        return (ThreadLocalRandom.current().nextInt() & PRODUCER_SAMPLING_MASK) == 0;
+    }
+
+    void recordSince(LoggerPhase phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    void record(LoggerPhase phase, long durationNanos) {
+        int index = phase.ordinal();
+
+        mCounts.incrementAndGet(index);
+        mTotalNanos.addAndGet(index, durationNanos);
+        mHistograms.incrementAndGet(index * LoggerDiagnostics.BUCKETS_COUNT + LoggerDiagnostics.bucketOf(durationNanos));
+
+        long max;
+        do {
+            max = mMaxNanos.get(index);
+        } while (durationNanos > max && !mMaxNanos.compareAndSet(index, max, durationNanos));
+
+        if (!PHASE.isEnabled()) {
+            return;
+        }
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase.name();
+        event.logFileName = mLogFileName;
+        event.phaseDuration = durationNanos;
+        event.commit();
+    }
+
+    /**
+     * Counters are read one by one, so a snapshot taken while logging might be slightly inconsistent.
+     */
+    LoggerDiagnostics snapshot() {
+        long[] counts = new long[mPhasesCount];
+        long[] totalNanos = new long[mPhasesCount];
+        long[] maxNanos = new long[mPhasesCount];
+        long[][] histograms = new long[mPhasesCount][LoggerDiagnostics.BUCKETS_COUNT];
+
+        for (int phase = 0; phase < mPhasesCount; phase++) {
+            counts[phase] = mCounts.get(phase);
+            totalNanos[phase] = mTotalNanos.get(phase);
+            maxNanos[phase] = mMaxNanos.get(phase);
+            for (int bucket = 0; bucket < LoggerDiagnostics.BUCKETS_COUNT; bucket++) {
+                histograms[phase][bucket] = mHistograms.get(phase * LoggerDiagnostics.BUCKETS_COUNT + bucket);
+            }
+        }
+        return new LoggerDiagnostics(counts, totalNanos, maxNanos, histograms);
+    }
+}
@@ -0,0 +1,252 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class reads log lines from many log files in the order of their sequence numbers.
+ * It is used to read the files returned by a logger with few shards: {@link VoNaLogger.Builder#setShardCount(int)}
+ *
+ * Every line has to start with a sequence number: {@link VoNaLogger.Builder#setLogSequenceNumbers(boolean)}
+ * Critical logs are written before older regular logs, {@link VoNaLogger#writeCriticalLog(Object...)}, so lines
+ * inside a file are not always in the right order. Every file is read twice: first only its smallest sequence
+ * number is found, and when its turn comes its lines are read and sorted. Files of a shard have different ranges
+ * of sequence numbers, so only about one file of every shard is kept in memory.
+ *
+ * Lines that don't start with a sequence number (for example if a parameter of the log contained a new line)
+ * are returned right after the line before them. Frame headers of crash safe mode are skipped.
+ */
+public final class MergedLogReader implements Closeable {
+
+    /**
+     * Current line of a single file. Lines of the file are read only when they are needed.
+     */
+    private static final class FileCursor implements Comparable<FileCursor> {
+
+        private final File mFile;
+
+        /**
+         * This is used to keep the order of the files if sequence numbers are equal.
+         */
+        private final int mFileIndex;
+
+        /**
+         * Lines of the file sorted by sequence numbers. This is "null" until the file is needed.
+         */
+        private String[] mLines;
+        private int mLineIndex;
+
+        private String mLine;
+        private long mSequence;
+
+        FileCursor(File file, int fileIndex) {
+            mFile = file;
+            mFileIndex = fileIndex;
+        }
+
+        /**
+         * Finds the smallest sequence number of the file without keeping its lines.
+         *
+         * @return false if the file has no lines.
+         */
+        boolean scan() throws IOException {
+            BufferedReader reader = new BufferedReader(new FileReader(mFile));
+            try {
+                boolean hasLines = false;
+                long smallestSequence = Long.MAX_VALUE;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (isFrameHeader(line)) {
+                        continue;
+                    }
+                    long sequence = parseSequence(line);
+                    if (!hasLines) {
+                        // lines before the first sequence number are returned first, like in the sorted lines
+                        smallestSequence = Math.max(sequence, 0);
+                        hasLines = true;
+                    } else if (sequence >= 0) {
+                        smallestSequence = Math.min(smallestSequence, sequence);
+                    }
+                }
+                mSequence = smallestSequence;
+                return hasLines;
+            } finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * @return false if there are no lines left
+         */
+        boolean advance() throws IOException {
+            if (mLines == null) {
+                mLines = readSortedLines(mFile);
+            }
+            if (mLineIndex == mLines.length) {
+                // lines of the file are not needed anymore
+                mLines = new String[0];
+                mLineIndex = 0;
+                mLine = null;
+                return false;
+            }
+            mLine = mLines[mLineIndex++];
+            long sequence = parseSequence(mLine);
+            // a line without sequence is the continuation of the previous line
+            if (sequence >= 0) {
+                mSequence = sequence;
+            }
+            return true;
+        }
+
+        @Override
+        public int compareTo(FileCursor other) {
+            int result = Long.compare(mSequence, other.mSequence);
+            return result != 0 ? result : Integer.compare(mFileIndex, other.mFileIndex);
+        }
+    }
+
+    /**
+     * Lines of a single log: the line with sequence number and the lines without it that follow.
+     */
+    private static final class LogLines {
+
+        private final long mSequence;
+        private final List<String> mLines = new ArrayList<>(1);
+
+        LogLines(long sequence) {
+            mSequence = sequence;
+        }
+    }
+
+    private static final Comparator<LogLines> SEQUENCE_ORDER = new Comparator<LogLines>() {
+        @Override
+        public int compare(LogLines first, LogLines second) {
+            return Long.compare(first.mSequence, second.mSequence);
+        }
+    };
+
+    private static final String JSON_SEQUENCE_PREFIX = "{\"seq\":";
+
+    private final PriorityQueue<FileCursor> mCursors = new PriorityQueue<>();
+
+    /**
+     * Previous line is returned before the next one is read, so the cursor is moved on the next call.
+     */
+    private FileCursor mLastCursor;
+
+    public MergedLogReader(File[] logFiles) throws IOException {
+        for (int index = 0; index < logFiles.length; index++) {
+            FileCursor cursor = new FileCursor(logFiles[index], index);
+            if (cursor.scan()) {
+                mCursors.add(cursor);
+            }
+        }
+    }
+
+    /**
+     * @return next log line in the order of sequence numbers or "null" if all the lines were read.
+     */
+    public String readLine() throws IOException {
+        if (mLastCursor != null) {
+            if (mLastCursor.advance()) {
+                mCursors.add(mLastCursor);
+            }
+            mLastCursor = null;
+        }
+
+        FileCursor cursor = mCursors.poll();
+        while (cursor != null && cursor.mLines == null) {
+            // turn of this file came, its first line is the one with the smallest sequence number
+            if (cursor.advance()) {
+                mCursors.add(cursor);
+            }
+            cursor = mCursors.poll();
+        }
+        if (cursor == null) {
+            return null;
+        }
+        mLastCursor = cursor;
+        return cursor.mLine;
+    }
+
+    /**
+     * Files are open only while they are read, so only the lines that are kept in memory are released.
+     */
+    @Override
+    public void close() {
+        mCursors.clear();
+        mLastCursor = null;
+    }
+
+    /**
+     * @return lines of the file, sorted by sequence numbers. Lines of the same log are kept together.
+     */
+    private static String[] readSortedLines(File file) throws IOException {
+        List<LogLines> logs = new ArrayList<>();
+        int linesCount = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (isFrameHeader(line)) {
+                    continue;
+                }
+                long sequence = parseSequence(line);
+                if (sequence >= 0 || logs.isEmpty()) {
+                    logs.add(new LogLines(Math.max(sequence, 0)));
+                }
+                logs.get(logs.size() - 1).mLines.add(line);
+                linesCount++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        LogLines[] sortedLogs = logs.toArray(new LogLines[0]);
+        // sort is stable, so lines with equal sequence numbers stay in the order in which they were written
+        Arrays.sort(sortedLogs, SEQUENCE_ORDER);
+
+        String[] lines = new String[linesCount];
+        int index = 0;
+        for (LogLines log : sortedLogs) {
+            for (String logLine : log.mLines) {
+                lines[index++] = logLine;
+            }
+        }
+        return lines;
+    }
+
+    private static boolean isFrameHeader(String line) {
+        return line.length() == LogSegmentWriter.FRAME_HEADER_SIZE - 1 && line.charAt(0) == '#';
+    }
+
+    /**
+     * @return sequence number at the start of the line or "-1" if line doesn't start with it.
+     * Lines of {@link LogOutputFormat#JSON_LINES} start with "{\"seq\":".
+     */
+    private static long parseSequence(String line) {
+        int start = line.startsWith(JSON_SEQUENCE_PREFIX) ? JSON_SEQUENCE_PREFIX.length() : 0;
+
+        long sequence = 0;
+        int index = start;
+        for (; index < line.length(); index++) {
+            char c = line.charAt(index);
+            if (c == '\t' || (start > 0 && (c == ',' || c == '}'))) {
+                break;
+            }
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sequence = sequence * 10 + (c - '0');
+        }
+        return index == start ? -1 : sequence;
+    }
+}
@@ -0,0 +1,47 @@
+package com.volokh.danylo.vonalogger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class creates lists of {@link LogEntry} that keep the text of the log outside of the java heap.
+ *
+ * All the entries of a single list share one direct buffer which is split into fixed size slots.
+ * Log entries don't hold references to the parameters passed to the logger, so the pool of entries is a small graph
+ * of objects that doesn't reference young objects. Garbage collector doesn't need to track the changes in it and
+ * its size doesn't depend on the length of the logs.
+ *
+ * See {@link VoNaLogger.Builder#setOffHeapEntrySlotSize(int)}
+ */
+final class OffHeapEntryArena {
+
+    private final int mSlotSizeBytes;
+
+    OffHeapEntryArena(int slotSizeBytes) {
+        // a slot contains chars, 2 bytes each
+        mSlotSizeBytes = slotSizeBytes & ~1;
+    }
+
+    /**
+     * @return maximum length of the log in chars. Longer logs are cut.
+     */
+    int slotChars() {
+        return mSlotSizeBytes / 2;
+    }
+
+    List<LogEntry> createEntries(int count) {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(count * mSlotSizeBytes);
+
+        List<LogEntry> entries = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            chunk.limit((index + 1) * mSlotSizeBytes).position(index * mSlotSizeBytes);
+
+            CharBuffer slot = chunk.slice().order(ByteOrder.nativeOrder()).asCharBuffer();
+            entries.add(new LogEntry(slot));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,29 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This is the text of the log that {@link ParamWriter} writes a parameter to.
+ *
+ * Numbers and booleans are written without creating Strings.
+ */
+public interface ParamOutput {
+
+    ParamOutput append(CharSequence csq);
+
+    ParamOutput append(CharSequence csq, int start, int end);
+
+    ParamOutput append(char c);
+
+    ParamOutput append(int value);
+
+    ParamOutput append(long value);
+
+    ParamOutput append(double value);
+
+    ParamOutput append(boolean value);
+
+    /**
+     * Writes the value the same way as a parameter of the log, using the registered {@link ParamWriter}s.
+     * It's used to write elements of collections and fields of objects.
+     */
+    ParamOutput appendParameter(Object value);
+}
@@ -0,0 +1,14 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This writes a parameter of the log directly to the text of the log, without calling {@link Object#toString()}.
+ * It's registered for a class: {@link VoNaLogger.Builder#registerParamWriter(Class, ParamWriter)}
+ *
+ * Writers are called by the background thread, unless off heap entries are used:
+ * {@link VoNaLogger.Builder#setOffHeapEntrySlotSize(int)}. In that case they are called by the thread that writes the log.
+ * So writers have to be thread safe.
+ */
+public interface ParamWriter<T> {
+
+    void write(T value, ParamOutput output);
+}
@@ -0,0 +1,337 @@
+package com.volokh.danylo.vonalogger;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * This class finds the {@link ParamWriter} for every parameter of the log.
+ *
+ * Strings and boxed primitives are always written directly. For other parameters the writer is found once per class
+ * and cached in a {@link ClassValue}. Writers registered for the class or its superclass are preferred, then the
+ * writers registered for its interfaces in the order of registration, then the built-in writers:
+ *
+ * 1. Enums are written by name.
+ * 2. {@link UUID} is written in the standard form.
+ * 3. byte arrays are written as hex, up to {@link #MAX_BYTES}.
+ * 4. Throwables are written with up to {@link #MAX_STACK_DEPTH} frames of up to {@link #MAX_CAUSES} causes.
+ *    Repeated stack traces are replaced with references if {@link StackTraceCache} is used.
+ * 5. Collections, maps and object arrays are written with up to {@link #MAX_ELEMENTS} elements.
+ * 6. {@link LogArg} and {@link Supplier} are called and their values are written.
+ *
+ * Everything else is written with {@link String#valueOf(Object)}.
+ * Registry is not changed after the logger is created, so it can be used by few threads.
+ */
+final class ParamWriterRegistry {
+
+    static final int MAX_BYTES = 256;
+    static final int MAX_STACK_DEPTH = 16;
+    static final int MAX_CAUSES = 4;
+    static final int MAX_ELEMENTS = 64;
+
+    static final ParamWriterRegistry DEFAULT = new ParamWriterRegistry(new LinkedHashMap<Class<?>, ParamWriter<?>>());
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Map<Class<?>, ParamWriter<?>> mRegisteredWriters;
+
+    private final ClassValue<ParamWriter<Object>> mWriters = new ClassValue<ParamWriter<Object>>() {
+        @Override
+        protected ParamWriter<Object> computeValue(Class<?> type) {
+            return findWriter(type);
+        }
+    };
+
+    /**
+     * @param registeredWriters - writers in the order of registration. Map is copied.
+     */
+    ParamWriterRegistry(Map<Class<?>, ParamWriter<?>> registeredWriters) {
+        mRegisteredWriters = new LinkedHashMap<>(registeredWriters);
+    }
+
+    /**
+     * Boxed primitives are appended without calling {@link Object#toString()}
+     */
+    void appendParameter(LogOutputBuffer outputBuffer, Object parameter) {
+        if (parameter instanceof String) {
+            outputBuffer.append((String) parameter);
+        } else if (parameter instanceof Integer) {
+            outputBuffer.append(((Integer) parameter).intValue());
+        } else if (parameter instanceof Long) {
+            outputBuffer.append(((Long) parameter).longValue());
+        } else if (parameter instanceof Character) {
+            outputBuffer.append(((Character) parameter).charValue());
+        } else if (parameter instanceof Boolean) {
+            outputBuffer.append(((Boolean) parameter).booleanValue());
+        } else if (parameter instanceof Short || parameter instanceof Byte) {
+            outputBuffer.append(((Number) parameter).intValue());
+        } else if (parameter instanceof Double) {
+            outputBuffer.append(((Double) parameter).doubleValue());
+        } else if (parameter instanceof Float) {
+            outputBuffer.append(((Float) parameter).floatValue());
+        } else if (parameter == null) {
+            outputBuffer.appendNull();
+        } else {
+            mWriters.get(parameter.getClass()).write(parameter, outputBuffer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ParamWriter<Object> findWriter(Class<?> type) {
+        for (Class<?> superclass = type; superclass != null; superclass = superclass.getSuperclass()) {
+            ParamWriter<?> writer = mRegisteredWriters.get(superclass);
+            if (writer != null) {
+                return (ParamWriter<Object>) writer;
+            }
+        }
+        for (Map.Entry<Class<?>, ParamWriter<?>> registered : mRegisteredWriters.entrySet()) {
+            if (registered.getKey().isAssignableFrom(type)) {
+                return (ParamWriter<Object>) registered.getValue();
+            }
+        }
+        return findBuiltInWriter(type);
+    }
+
+    private static ParamWriter<Object> findBuiltInWriter(Class<?> type) {
+        if (CharSequence.class.isAssignableFrom(type)) {
+            return CHAR_SEQUENCE_WRITER;
+        } else if (LogArg.class.isAssignableFrom(type) || Supplier.class.isAssignableFrom(type)) {
+            return LAZY_WRITER;
+        } else if (Enum.class.isAssignableFrom(type)) {
+            return ENUM_WRITER;
+        } else if (type == UUID.class) {
+            return UUID_WRITER;
+        } else if (type == byte[].class) {
+            return BYTES_WRITER;
+        } else if (Throwable.class.isAssignableFrom(type)) {
+            return THROWABLE_WRITER;
+        } else if (Collection.class.isAssignableFrom(type)) {
+            return COLLECTION_WRITER;
+        } else if (Map.class.isAssignableFrom(type)) {
+            return MAP_WRITER;
+        } else if (Object[].class.isAssignableFrom(type)) {
+            return ARRAY_WRITER;
+        }
+        return TO_STRING_WRITER;
+    }
+
+    private static final ParamWriter<Object> CHAR_SEQUENCE_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            output.append((CharSequence) value);
+        }
+    };
+
+    private static final ParamWriter<Object> LAZY_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            output.appendParameter(evaluate(value));
+        }
+    };
+
+    private static final ParamWriter<Object> ENUM_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            output.append(((Enum<?>) value).name());
+        }
+    };
+
+    private static final ParamWriter<Object> UUID_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            UUID uuid = (UUID) value;
+            long mostSignificantBits = uuid.getMostSignificantBits();
+            long leastSignificantBits = uuid.getLeastSignificantBits();
+
+            // 8-4-4-4-12 hex digits
+            appendHex(output, mostSignificantBits >>> 32, 8);
+            output.append('-');
+            appendHex(output, mostSignificantBits >>> 16, 4);
+            output.append('-');
+            appendHex(output, mostSignificantBits, 4);
+            output.append('-');
+            appendHex(output, leastSignificantBits >>> 48, 4);
+            output.append('-');
+            appendHex(output, leastSignificantBits, 12);
+        }
+    };
+
+    private static final ParamWriter<Object> BYTES_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            byte[] bytes = (byte[]) value;
+            int count = Math.min(bytes.length, MAX_BYTES);
+            for (int index = 0; index < count; index++) {
+                appendHex(output, bytes[index], 2);
+            }
+            appendMoreCount(output, "", bytes.length - count);
+        }
+    };
+
+    private static final ParamWriter<Object> THROWABLE_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            Throwable throwable = (Throwable) value;
+            for (int cause = 0; cause < MAX_CAUSES && throwable != null; cause++) {
+                if (cause > 0) {
+                    output.append("\nCaused by: ");
+                }
+                StackTraceCache stackTraceCache = output instanceof LogOutputBuffer
+                        ? ((LogOutputBuffer) output).getStackTraceCache()
+                        : null;
+                if (stackTraceCache != null) {
+                    stackTraceCache.appendThrowable((LogOutputBuffer) output, throwable);
+                } else {
+                    appendThrowableMessage(output, throwable);
+                    appendStackTrace(output, throwable.getStackTrace());
+                }
+
+                Throwable next = throwable.getCause();
+                throwable = next != throwable ? next : null;
+            }
+        }
+    };
+
+    private static final ParamWriter<Object> COLLECTION_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            Collection<?> collection = (Collection<?>) value;
+            output.append('[');
+            Iterator<?> iterator = collection.iterator();
+            int count = 0;
+            for (; count < MAX_ELEMENTS && iterator.hasNext(); count++) {
+                if (count > 0) {
+                    output.append(", ");
+                }
+                output.appendParameter(iterator.next());
+            }
+            appendMoreCount(output, ", ", collection.size() - count);
+            output.append(']');
+        }
+    };
+
+    private static final ParamWriter<Object> MAP_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.append('{');
+            Iterator<? extends Map.Entry<?, ?>> iterator = map.entrySet().iterator();
+            int count = 0;
+            for (; count < MAX_ELEMENTS && iterator.hasNext(); count++) {
+                if (count > 0) {
+                    output.append(", ");
+                }
+                Map.Entry<?, ?> entry = iterator.next();
+                output.appendParameter(entry.getKey());
+                output.append('=');
+                output.appendParameter(entry.getValue());
+            }
+            appendMoreCount(output, ", ", map.size() - count);
+            output.append('}');
+        }
+    };
+
+    private static final ParamWriter<Object> ARRAY_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            Object[] array = (Object[]) value;
+            int count = Math.min(array.length, MAX_ELEMENTS);
+            output.append('[');
+            for (int index = 0; index < count; index++) {
+                if (index > 0) {
+                    output.append(", ");
+                }
+                output.appendParameter(array[index]);
+            }
+            appendMoreCount(output, ", ", array.length - count);
+            output.append(']');
+        }
+    };
+
+    private static final ParamWriter<Object> TO_STRING_WRITER = new ParamWriter<Object>() {
+        @Override
+        public void write(Object value, ParamOutput output) {
+            output.append(String.valueOf(value));
+        }
+    };
+
+    /**
+     * @return value of {@link LogArg} or {@link Supplier}, or the parameter itself if it is not lazy.
+     * Lazy parameters are called by background thread, so their exceptions are written instead of the value.
+     */
+    static Object evaluate(Object parameter) {
+        try {
+            if (parameter instanceof LogArg) {
+                return ((LogArg) parameter).value();
+            } else if (parameter instanceof Supplier) {
+                return ((Supplier<?>) parameter).get();
+            }
+            return parameter;
+        } catch (RuntimeException e) {
+            return "<failed to evaluate: " + e + ">";
+        }
+    }
+
+    static boolean isLazy(Object parameter) {
+        return parameter instanceof LogArg || parameter instanceof Supplier;
+    }
+
+    /**
+     * Throwables are written like {@link Throwable#printStackTrace()} does, but without suppressed exceptions
+     * and with limited number of frames. See {@link #THROWABLE_WRITER}
+     */
+    static void appendThrowableMessage(ParamOutput output, Throwable throwable) {
+        output.append(throwable.getClass().getName());
+        String message = throwable.getLocalizedMessage();
+        if (message != null) {
+            output.append(": ").append(message);
+        }
+    }
+
+    static void appendStackTrace(ParamOutput output, StackTraceElement[] stackTrace) {
+        int depth = Math.min(stackTrace.length, MAX_STACK_DEPTH);
+        for (int index = 0; index < depth; index++) {
+            output.append("\n\tat ");
+            appendStackTraceElement(output, stackTrace[index]);
+        }
+        if (stackTrace.length > depth) {
+            output.append("\n\t... ").append(stackTrace.length - depth).append(" more");
+        }
+    }
+
+    /**
+     * Writes the same text as {@link StackTraceElement#toString()} without module information.
+     */
+    private static void appendStackTraceElement(ParamOutput output, StackTraceElement element) {
+        output.append(element.getClassName()).append('.').append(element.getMethodName()).append('(');
+        if (element.isNativeMethod()) {
+            output.append("Native Method");
+        } else if (element.getFileName() == null) {
+            output.append("Unknown Source");
+        } else {
+            output.append(element.getFileName());
+            if (element.getLineNumber() >= 0) {
+                output.append(':').append(element.getLineNumber());
+            }
+        }
+        output.append(')');
+    }
+
+    private static void appendMoreCount(ParamOutput output, String separator, int moreCount) {
+        if (moreCount > 0) {
+            output.append(separator).append("...(").append(moreCount).append(" more)");
+        }
+    }
+
+    /**
+     * Writes "digitsCount" lowest hex digits of the value.
+     */
+    private static void appendHex(ParamOutput output, long value, int digitsCount) {
+        for (int digit = digitsCount - 1; digit >= 0; digit--) {
+            output.append(HEX_DIGITS[(int) (value >>> (digit * 4)) & 0xF]);
+        }
+    }
+}
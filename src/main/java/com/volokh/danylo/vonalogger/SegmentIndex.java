@@ -0,0 +1,334 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This is a sparse index of a single log file. It is built by background thread while the entries are written and
+ * saved next to the log file: "Example_log_0.log" -> "Example_log_0.log.idx"
+ *
+ * Index contains:
+ * 1. Index points: offset of a batch in the file and the biggest timestamp of the entries before it and of the first
+ *    entry of the batch. Critical entries are written before older regular entries, so timestamps don't always grow
+ *    inside a file, but timestamps of the points do. A point is added not more often than once per "index interval"
+ *    entries.
+ * 2. Bloom filter of the tokens of the first parameter of every entry, if enabled.
+ *    It is used to skip the whole file if it definitely doesn't contain a token.
+ *
+ * See {@link LogSearch}
+ */
+final class SegmentIndex {
+
+    static final String INDEX_FILE_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x564E4C49; // "VNLI"
+    private static final int VERSION = 1;
+
+    private static final int BLOOM_FILTER_LONGS = 1024; // 64K bits
+    private static final int BLOOM_FILTER_HASHES = 4;
+
+    private static final int DEFAULT_POINTS_CAPACITY = 64;
+
+    /**
+     * How many fields are written before the parameters of the entry. See {@link VoNaLoggerImpl}
+     */
+    private final int mHeaderFieldsCount;
+    private final int mTimestampFieldIndex;
+
+    private long[] mPointTimestamps = new long[DEFAULT_POINTS_CAPACITY];
+    private long[] mPointOffsets = new long[DEFAULT_POINTS_CAPACITY];
+    private int mPointsCount;
+
+    private long mMinTimestamp = Long.MAX_VALUE;
+    private long mMaxTimestamp = Long.MIN_VALUE;
+
+    private long mEntriesCount;
+    private long mEntriesSinceLastPoint;
+
+    /**
+     * "null" if tokens are not indexed
+     */
+    private long[] mBloomFilter;
+
+    /**
+     * This is set only in the index that is read from file.
+     */
+    private long mIndexedLength;
+
+    SegmentIndex(int headerFieldsCount, int timestampFieldIndex, boolean indexTokens) {
+        mHeaderFieldsCount = headerFieldsCount;
+        mTimestampFieldIndex = timestampFieldIndex;
+        if (indexTokens) {
+            mBloomFilter = new long[BLOOM_FILTER_LONGS];
+        }
+    }
+
+    static File indexFileFor(File logFile) {
+        return new File(logFile.getPath() + INDEX_FILE_SUFFIX);
+    }
+
+    int headerFieldsCount() {
+        return mHeaderFieldsCount;
+    }
+
+    int timestampFieldIndex() {
+        return mTimestampFieldIndex;
+    }
+
+    /**
+     * Clears the index. Arrays are reused.
+     */
+    void reset() {
+        mPointsCount = 0;
+        mMinTimestamp = Long.MAX_VALUE;
+        mMaxTimestamp = Long.MIN_VALUE;
+        mEntriesCount = 0;
+        mEntriesSinceLastPoint = 0;
+        if (mBloomFilter != null) {
+            Arrays.fill(mBloomFilter, 0);
+        }
+    }
+
+    /**
+     * Has to be called before entries of the batch are added.
+     *
+     * @param firstTimestampNanos - timestamp of the first entry in the batch.
+     * @param offset              - position in the file where the batch starts.
+     */
+    void onBatchStart(long firstTimestampNanos, long offset, int indexInterval) {
+        if (mPointsCount > 0 && mEntriesSinceLastPoint < indexInterval) {
+            return;
+        }
+        if (mPointsCount == mPointTimestamps.length) {
+            mPointTimestamps = Arrays.copyOf(mPointTimestamps, mPointsCount * 2);
+            mPointOffsets = Arrays.copyOf(mPointOffsets, mPointsCount * 2);
+        }
+        mPointTimestamps[mPointsCount] = Math.max(firstTimestampNanos, mMaxTimestamp);
+        mPointOffsets[mPointsCount] = offset;
+        mPointsCount++;
+        mEntriesSinceLastPoint = 0;
+    }
+
+    void onEntry(long timestampNanos) {
+        mMinTimestamp = Math.min(mMinTimestamp, timestampNanos);
+        mMaxTimestamp = Math.max(mMaxTimestamp, timestampNanos);
+        mEntriesCount++;
+        mEntriesSinceLastPoint++;
+    }
+
+    boolean indexesTokens() {
+        return mBloomFilter != null;
+    }
+
+    /**
+     * Splits the chars into tokens and adds all of them to the bloom filter. No objects are created.
+     */
+    void addTokens(char[] chars, int start, int end) {
+        int tokenStart = -1;
+        for (int index = start; index <= end; index++) {
+            boolean tokenChar = index < end && isTokenChar(chars[index]);
+            if (tokenChar && tokenStart < 0) {
+                tokenStart = index;
+            } else if (!tokenChar && tokenStart >= 0) {
+                addToBloomFilter(hash(chars, tokenStart, index));
+                tokenStart = -1;
+            }
+        }
+    }
+
+    /**
+     * @return false if none of the entries in this file has the token in the first parameter.
+     * True means that the token might be there.
+     */
+    boolean mightContainToken(String token) {
+        if (mBloomFilter == null) {
+            return true;
+        }
+        char[] chars = token.toCharArray();
+        long hash = hash(chars, 0, chars.length);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int index = 0; index < BLOOM_FILTER_HASHES; index++) {
+            int bit = bloomBit(first + index * second);
+            if ((mBloomFilter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if there might be entries with timestamps in [fromNanos, toNanos)
+     */
+    boolean overlaps(long fromNanos, long toNanos) {
+        return mEntriesCount > 0 && mMinTimestamp < toNanos && mMaxTimestamp >= fromNanos;
+    }
+
+    /**
+     * @return offset from which the entries with timestamp >= fromNanos might be found. All the entries before it
+     * are older.
+     */
+    long startOffset(long fromNanos) {
+        long offset = 0;
+        for (int index = 0; index < mPointsCount && mPointTimestamps[index] < fromNanos; index++) {
+            offset = mPointOffsets[index];
+        }
+        return offset;
+    }
+
+    /**
+     * This is called if the log file contains entries that are not in the index, for example if the process
+     * died before the index was saved. Such file is always searched from the beginning.
+     */
+    void markUnindexedContent() {
+        reset();
+        onBatchStart(Long.MIN_VALUE, 0, 0);
+        mMinTimestamp = Long.MIN_VALUE;
+        mMaxTimestamp = Long.MAX_VALUE;
+        mEntriesCount = 1;
+        if (mBloomFilter != null) {
+            // tokens of these entries are unknown
+            Arrays.fill(mBloomFilter, -1L);
+        }
+    }
+
+    /**
+     * Copies the content of the index that was saved before, so it can be continued.
+     */
+    void copyFrom(SegmentIndex other) {
+        mPointTimestamps = Arrays.copyOf(other.mPointTimestamps, Math.max(other.mPointsCount, DEFAULT_POINTS_CAPACITY));
+        mPointOffsets = Arrays.copyOf(other.mPointOffsets, mPointTimestamps.length);
+        mPointsCount = other.mPointsCount;
+        mMinTimestamp = other.mMinTimestamp;
+        mMaxTimestamp = other.mMaxTimestamp;
+        mEntriesCount = other.mEntriesCount;
+        mEntriesSinceLastPoint = other.mEntriesSinceLastPoint;
+        if (mBloomFilter != null) {
+            System.arraycopy(other.mBloomFilter, 0, mBloomFilter, 0, mBloomFilter.length);
+        }
+    }
+
+    long indexedLength() {
+        return mIndexedLength;
+    }
+
+    /**
+     * @param indexedLength - length of the log file at the moment when index is saved.
+     */
+    void writeTo(File indexFile, long indexedLength) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(mHeaderFieldsCount);
+            output.writeInt(mTimestampFieldIndex);
+            output.writeLong(indexedLength);
+            output.writeLong(mMinTimestamp);
+            output.writeLong(mMaxTimestamp);
+            output.writeLong(mEntriesCount);
+            output.writeLong(mEntriesSinceLastPoint);
+            output.writeInt(mPointsCount);
+            for (int index = 0; index < mPointsCount; index++) {
+                output.writeLong(mPointTimestamps[index]);
+                output.writeLong(mPointOffsets[index]);
+            }
+            output.writeInt(mBloomFilter == null ? 0 : mBloomFilter.length);
+            if (mBloomFilter != null) {
+                for (long bits : mBloomFilter) {
+                    output.writeLong(bits);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return index or "null" if the file doesn't exist or is not an index file.
+     */
+    static SegmentIndex readFrom(File indexFile) throws IOException {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            SegmentIndex index = new SegmentIndex(input.readInt(), input.readInt(), false);
+            index.mIndexedLength = input.readLong();
+            index.mMinTimestamp = input.readLong();
+            index.mMaxTimestamp = input.readLong();
+            index.mEntriesCount = input.readLong();
+            index.mEntriesSinceLastPoint = input.readLong();
+
+            index.mPointsCount = input.readInt();
+            index.mPointTimestamps = new long[Math.max(index.mPointsCount, DEFAULT_POINTS_CAPACITY)];
+            index.mPointOffsets = new long[index.mPointTimestamps.length];
+            for (int point = 0; point < index.mPointsCount; point++) {
+                index.mPointTimestamps[point] = input.readLong();
+                index.mPointOffsets[point] = input.readLong();
+            }
+
+            int bloomFilterLength = input.readInt();
+            if (bloomFilterLength > 0) {
+                index.mBloomFilter = new long[bloomFilterLength];
+                for (int position = 0; position < bloomFilterLength; position++) {
+                    index.mBloomFilter[position] = input.readLong();
+                }
+            }
+            return index;
+        } catch (IOException e) {
+            // index was not fully written, the log file can be searched without it
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Index can be continued after restart only if the same fields are written.
+     */
+    boolean isCompatible(SegmentIndex other) {
+        return mHeaderFieldsCount == other.mHeaderFieldsCount
+                && mTimestampFieldIndex == other.mTimestampFieldIndex
+                && (mBloomFilter == null ? other.mBloomFilter == null
+                        : other.mBloomFilter != null && mBloomFilter.length == other.mBloomFilter.length);
+    }
+
+    static boolean isTokenChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private void addToBloomFilter(long hash) {
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int index = 0; index < BLOOM_FILTER_HASHES; index++) {
+            int bit = bloomBit(first + index * second);
+            mBloomFilter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private int bloomBit(int hash) {
+        return Math.floorMod(hash, mBloomFilter.length * 64);
+    }
+
+    /**
+     * FNV-1a 64 bit hash
+     */
+    private static long hash(char[] chars, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int index = start; index < end; index++) {
+            hash ^= chars[index];
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,63 @@
+package com.volokh.danylo.vonalogger;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This is a queue of futures that are waiting for some sequence number of {@link LogEntry} to be reached.
+ * For example: to be written to file or to be synced to disk.
+ *
+ * Futures have to be added in the order of sequence numbers. In {@link VoNaLoggerImpl} they are added under
+ * the same lock that assigns sequence numbers, so the queue is always sorted.
+ */
+final class SequenceWaiters {
+
+    /**
+     * Future knows its own sequence number so only one object is created per waiter.
+     */
+    private static final class SequenceFuture extends CompletableFuture<Long> {
+
+        private final long mSequence;
+
+        SequenceFuture(long sequence) {
+            mSequence = sequence;
+        }
+    }
+
+    private final Queue<SequenceFuture> mWaiters = new ConcurrentLinkedQueue<>();
+
+    private final Object mCompletionSyncObject = new Object();
+
+    CompletableFuture<Long> add(long sequence) {
+        SequenceFuture future = new SequenceFuture(sequence);
+        mWaiters.add(future);
+        return future;
+    }
+
+    boolean isEmpty() {
+        return mWaiters.isEmpty();
+    }
+
+    /**
+     * Completes all the futures that are waiting for the sequence number that is less or equal than given one.
+     */
+    void completeUpTo(long sequence) {
+        synchronized (mCompletionSyncObject) {
+            SequenceFuture future;
+            while ((future = mWaiters.peek()) != null && future.mSequence <= sequence) {
+                mWaiters.poll();
+                future.complete(future.mSequence);
+            }
+        }
+    }
+
+    void failAll(Throwable throwable) {
+        synchronized (mCompletionSyncObject) {
+            SequenceFuture future;
+            while ((future = mWaiters.poll()) != null) {
+                future.completeExceptionally(throwable);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This defines to which shard the log goes if shard count is specified.
+ * See {@link VoNaLogger.Builder#setShardCount(int)}
+ */
+public enum ShardRouting {
+
+    /**
+     * The shard is chosen by the hash code of the first parameter passed to {@link VoNaLogger#writeLog(Object...)}.
+     * If first parameter is a tag then all the logs with the same tag are stored in the same shard.
+     */
+    FIRST_PARAMETER,
+
+    /**
+     * The shard is chosen by the id of the thread that calls {@link VoNaLogger#writeLog(Object...)}.
+     * Threads don't compete for the same shard unless there are more threads than shards.
+     */
+    THREAD_ID
+}
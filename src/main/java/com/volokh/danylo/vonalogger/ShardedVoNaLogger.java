@@ -0,0 +1,324 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * This logger splits the logs between few independent {@link VoNaLoggerImpl}. Each of them has its own list of entries,
+ * background thread and log files, so the logs can be written to files in parallel.
+ *
+ * All the shards take sequence numbers from the same source, so logs can be merged in the original order.
+ * See {@link MergedLogReader}
+ *
+ * Methods that return files return files of all the shards: files of shard "0" first, then files of shard "1" etc.
+ */
+final class ShardedVoNaLogger implements VoNaLogger {
+
+    private final VoNaLoggerImpl[] mShards;
+
+    private final ShardRouting mShardRouting;
+
+    ShardedVoNaLogger(VoNaLoggerConfig config, int shardCount, File[] shardDirs, ShardRouting shardRouting) throws IOException {
+        mShardRouting = shardRouting;
+        mShards = new VoNaLoggerImpl[shardCount];
+
+        AtomicLong sequenceSource = new AtomicLong();
+
+        for (int index = 0; index < shardCount; index++) {
+            VoNaLoggerConfig shardConfig = config.copy();
+            shardConfig.logFileName = config.logFileName + "_shard" + index;
+            shardConfig.logFileMaxSize = config.logFileMaxSize / shardCount;
+            shardConfig.totalDiskBudget = config.totalDiskBudget / shardCount;
+            shardConfig.logSequenceNumbers = true;
+            shardConfig.sequenceSource = sequenceSource;
+
+            if (shardDirs != null && shardDirs.length > 0) {
+                shardConfig.logDir = shardDirs[index % shardDirs.length];
+            }
+
+            try {
+                mShards[index] = new VoNaLoggerImpl(shardConfig);
+            } catch (IOException e) {
+                // shards that were already created have running threads
+                for (int created = 0; created < index; created++) {
+                    mShards[created].releaseResources();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private VoNaLoggerImpl shardFor(Object[] parameters) {
+        return mShards[shardIndexFor(parameters)];
+    }
+
+    private int shardIndexFor(Object[] parameters) {
+        return shardIndexForFirstParameter(parameters != null && parameters.length > 0 ? parameters[0] : null);
+    }
+
+    private int shardIndexForFirstParameter(Object firstParameter) {
+        int hash;
+        switch (mShardRouting) {
+            case THREAD_ID:
+                hash = Long.hashCode(Thread.currentThread().getId());
+                break;
+            case FIRST_PARAMETER:
+            default:
+                hash = firstParameter != null ? firstParameter.hashCode() : 0;
+                break;
+        }
+        // spread the higher bits so small hash codes are distributed well
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, mShards.length);
+    }
+
+    @Override
+    public int writeLog(Object parameter) {
+        return mShards[shardIndexForFirstParameter(parameter)].writeLog(parameter);
+    }
+
+    @Override
+    public int writeLog(Object... parameters) {
+        return shardFor(parameters).writeLog(parameters);
+    }
+
+    /**
+     * Rows are split between the shards keeping their order, so every shard takes its lock once.
+     */
+    @Override
+    public int writeLogs(Object[][] rows) {
+        if (rows == null) {
+            throw new IllegalArgumentException("rows cannot be null");
+        }
+        int[] rowShards = new int[rows.length];
+        int[] shardRowsCounts = new int[mShards.length];
+        for (int row = 0; row < rows.length; row++) {
+            rowShards[row] = shardIndexFor(rows[row]);
+            shardRowsCounts[rowShards[row]]++;
+        }
+
+        int writtenCount = 0;
+        for (int shard = 0; shard < mShards.length; shard++) {
+            if (shardRowsCounts[shard] == 0) {
+                continue;
+            }
+            Object[][] shardRows = new Object[shardRowsCounts[shard]][];
+            int position = 0;
+            for (int row = 0; row < rows.length; row++) {
+                if (rowShards[row] == shard) {
+                    shardRows[position++] = rows[row];
+                }
+            }
+            writtenCount += mShards[shard].writeLogs(shardRows);
+        }
+        return writtenCount;
+    }
+
+    @Override
+    public int writeCriticalLog(Object... parameters) {
+        return shardFor(parameters).writeCriticalLog(parameters);
+    }
+
+    @Override
+    public LoggerDiagnostics getDiagnostics() {
+        LoggerDiagnostics diagnostics = mShards[0].getDiagnostics();
+        for (int index = 1; index < mShards.length; index++) {
+            diagnostics = diagnostics.merge(mShards[index].getDiagnostics());
+        }
+        return diagnostics;
+    }
+
+    @Override
+    public List<CallSiteStats> getCallSiteStats() {
+        // call site sampler is shared between shards
+        return mShards[0].getCallSiteStats();
+    }
+
+    @Override
+    public long getRateLimitedLogsCount() {
+        // rate limiter is shared between shards
+        return mShards[0].getRateLimitedLogsCount();
+    }
+
+    @Override
+    public int writeLog(Object firstParameter, LogArg... lazyParameters) {
+        return mShards[shardIndexForFirstParameter(firstParameter)].writeLog(firstParameter, lazyParameters);
+    }
+
+    @Override
+    public int writeLog(LogFields fields, Object... parameters) {
+        return shardFor(parameters).writeLog(fields, parameters);
+    }
+
+    @Override
+    public CompletableFuture<Long> writeDurableLog(Object... parameters) {
+        return shardFor(parameters).writeDurableLog(parameters);
+    }
+
+    @Override
+    public void initVoNaLoggerAfterStopping() throws IOException {
+        for (VoNaLoggerImpl shard : mShards) {
+            shard.initVoNaLoggerAfterStopping();
+        }
+    }
+
+    @Override
+    public void releaseResources() {
+        for (VoNaLoggerImpl shard : mShards) {
+            shard.releaseResources();
+        }
+    }
+
+    @Override
+    public File[] stopLoggingAndGetLogFilesSync() {
+        File[][] shardFiles = new File[mShards.length][];
+        for (int index = 0; index < mShards.length; index++) {
+            shardFiles[index] = mShards[index].stopLoggingAndGetLogFilesSync();
+        }
+        return concat(shardFiles);
+    }
+
+    @Override
+    public File[] processPendingLogsStopAndGetLogFilesSync() {
+        File[][] shardFiles = new File[mShards.length][];
+        for (int index = 0; index < mShards.length; index++) {
+            shardFiles[index] = mShards[index].processPendingLogsStopAndGetLogFilesSync();
+        }
+        return concat(shardFiles);
+    }
+
+    @Override
+    public void stopLoggingAndGetLogFiles(final GetFilesCallback filesCallback) {
+        if (filesCallback == null) {
+            throw new IllegalArgumentException("filesCallback cannot be null");
+        }
+        stopLoggingAndGetLogFilesAsync().thenAccept(new Consumer<File[]>() {
+            @Override
+            public void accept(File[] logFiles) {
+                filesCallback.onFilesReady(logFiles);
+            }
+        });
+    }
+
+    @Override
+    public void processPendingLogsStopAndGetLogFiles(final GetFilesCallback filesCallback) {
+        if (filesCallback == null) {
+            throw new IllegalArgumentException("filesCallback cannot be null");
+        }
+        processPendingLogsStopAndGetLogFilesAsync().thenAccept(new Consumer<File[]>() {
+            @Override
+            public void accept(File[] logFiles) {
+                filesCallback.onFilesReady(logFiles);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<File[]> stopLoggingAndGetLogFilesAsync() {
+        CompletableFuture<File[]>[] shardFiles = newFutures(mShards.length);
+        for (int index = 0; index < mShards.length; index++) {
+            shardFiles[index] = mShards[index].stopLoggingAndGetLogFilesAsync();
+        }
+        return concatWhenReady(shardFiles);
+    }
+
+    @Override
+    public CompletableFuture<File[]> processPendingLogsStopAndGetLogFilesAsync() {
+        CompletableFuture<File[]>[] shardFiles = newFutures(mShards.length);
+        for (int index = 0; index < mShards.length; index++) {
+            shardFiles[index] = mShards[index].processPendingLogsStopAndGetLogFilesAsync();
+        }
+        return concatWhenReady(shardFiles);
+    }
+
+    /**
+     * Every shard flushes its own logs. Sequence numbers are shared between shards, so the future is completed
+     * with the biggest of them.
+     */
+    @Override
+    public CompletableFuture<Long> flush() {
+        final CompletableFuture<Long>[] shardFlushes = newFutures(mShards.length);
+        for (int index = 0; index < mShards.length; index++) {
+            shardFlushes[index] = mShards[index].flush();
+        }
+        return CompletableFuture.allOf(shardFlushes).thenApply(new Function<Void, Long>() {
+            @Override
+            public Long apply(Void ignored) {
+                long sequence = 0;
+                for (CompletableFuture<Long> shardFlush : shardFlushes) {
+                    sequence = Math.max(sequence, shardFlush.join());
+                }
+                return sequence;
+            }
+        });
+    }
+
+    /**
+     * Max file size is split evenly between the shards, the same way as in {@link VoNaLogger.Builder#build()}
+     */
+    @Override
+    public CompletableFuture<Void> reconfigure(Reconfiguration reconfiguration) {
+        if (reconfiguration == null) {
+            throw new IllegalArgumentException("reconfiguration cannot be null");
+        }
+        Reconfiguration shardReconfiguration = reconfiguration.copy();
+        if (shardReconfiguration.mLogFileMaxSize != null) {
+            shardReconfiguration.mLogFileMaxSize = shardReconfiguration.mLogFileMaxSize / mShards.length;
+        }
+
+        CompletableFuture<Void>[] shardsApplied = newFutures(mShards.length);
+        for (int index = 0; index < mShards.length; index++) {
+            shardsApplied[index] = mShards[index].reconfigure(shardReconfiguration);
+        }
+        return CompletableFuture.allOf(shardsApplied);
+    }
+
+    @Override
+    public File[] getLoggingFilesSnapShotSync() {
+        File[][] shardFiles = new File[mShards.length][];
+        for (int index = 0; index < mShards.length; index++) {
+            shardFiles[index] = mShards[index].getLoggingFilesSnapShotSync();
+            if (shardFiles[index] == null) {
+                return null;
+            }
+        }
+        return concat(shardFiles);
+    }
+
+    private static File[] concat(File[][] shardFiles) {
+        int count = 0;
+        for (File[] files : shardFiles) {
+            count += files.length;
+        }
+        File[] result = new File[count];
+        int position = 0;
+        for (File[] files : shardFiles) {
+            System.arraycopy(files, 0, result, position, files.length);
+            position += files.length;
+        }
+        return result;
+    }
+
+    private static CompletableFuture<File[]> concatWhenReady(final CompletableFuture<File[]>[] shardFiles) {
+        return CompletableFuture.allOf(shardFiles).thenApply(new Function<Void, File[]>() {
+            @Override
+            public File[] apply(Void ignored) {
+                File[][] files = new File[shardFiles.length][];
+                for (int index = 0; index < shardFiles.length; index++) {
+                    files[index] = shardFiles[index].join();
+                }
+                return concat(files);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> CompletableFuture<T>[] newFutures(int count) {
+        return (CompletableFuture<T>[]) new CompletableFuture<?>[count];
+    }
+}
@@ -0,0 +1,288 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This is a ring buffer in a memory mapped file, "Example_log.ring", that is shared by all the processes that write
+ * to the same log files. See {@link VoNaLogger.Builder#setMultiProcessMode(boolean)}
+ *
+ * Every process puts the batches that it rendered to the ring. Only one process, the elected writer, takes them from
+ * the ring and writes them to the log files, so files are never rotated by two processes at once.
+ * The writer is the process that holds the "writer" lock of the ring file. If it dies the lock is released by
+ * the operating system and the next process that tries the lock becomes the writer. Batches that were put to the ring
+ * before that are not lost, because the ring is in the file. The writer moves the read position only after
+ * the batches are written to the log file, so if it dies in between the next writer writes them again
+ * and their lines are duplicated in the file.
+ *
+ * File layout:
+ * <pre>
+ * magic (4 bytes) | capacity (4 bytes) | write position (8 bytes) | read position (8 bytes) | ... | ring
+ * </pre>
+ * Positions only grow, the place in the ring is "position % capacity". Every record in the ring is the length of
+ * the batch (4 bytes) followed by the batch. Records and positions are changed only under the "append" lock.
+ *
+ * File locks are held by the whole process, so two threads of the same process use the ring under
+ * this object's monitor. There should be only one ring instance for the file in a process.
+ */
+final class SharedLogRing implements Closeable {
+
+    static final String RING_FILE_SUFFIX = ".ring";
+
+    private static final int MAGIC = 0x564E4C52; // "VNLR"
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int WRITE_POSITION_OFFSET = 8;
+    private static final int READ_POSITION_OFFSET = 16;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    /**
+     * Locked regions are after the end of the file, so they never cover the data.
+     */
+    private static final long APPEND_LOCK_POSITION = Long.MAX_VALUE - 2;
+    private static final long WRITER_LOCK_POSITION = Long.MAX_VALUE - 1;
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMapped;
+    private final int mCapacity;
+
+    /**
+     * View of {@link #mMapped} for bulk copies, so the position of the mapped buffer is never moved and no view
+     * is created per copy. It's used only under this object's monitor.
+     */
+    private final ByteBuffer mRingView;
+
+    private FileLock mWriterLock;
+
+    /**
+     * @param capacity - capacity of the ring if the file is created. Existing file keeps its capacity.
+     */
+    SharedLogRing(File ringFile, int capacity) throws IOException {
+        mChannel = FileChannel.open(ringFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock appendLock = mChannel.lock(APPEND_LOCK_POSITION, 1, false);
+            try {
+                if (mChannel.size() >= HEADER_SIZE && readInt(MAGIC_OFFSET) == MAGIC) {
+                    capacity = readInt(CAPACITY_OFFSET);
+                    mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+                } else {
+                    mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+                    mMapped.putInt(CAPACITY_OFFSET, capacity);
+                    mMapped.putLong(WRITE_POSITION_OFFSET, 0);
+                    mMapped.putLong(READ_POSITION_OFFSET, 0);
+                    // magic is written the last, so a half created ring is created again
+                    mMapped.putInt(MAGIC_OFFSET, MAGIC);
+                }
+                mCapacity = capacity;
+                mRingView = mMapped.duplicate();
+            } finally {
+                appendLock.release();
+            }
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        while (bytes.hasRemaining()) {
+            if (mChannel.read(bytes, position + bytes.position()) < 0) {
+                return 0;
+            }
+        }
+        return bytes.getInt(0);
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return true if a batch of this size can ever be put to the ring.
+     */
+    boolean fits(long batchLength) {
+        return RECORD_HEADER_SIZE + batchLength <= mCapacity;
+    }
+
+    /**
+     * Puts the batch to the ring. Positions of the buffers are moved to their limits.
+     *
+     * @param batchLength - total number of remaining bytes in the buffers.
+     * @return write position after the batch or "-1" if there is not enough free space in the ring now.
+     */
+    synchronized long offer(ByteBuffer[] buffers, int count, int batchLength) throws IOException {
+        FileLock appendLock = mChannel.lock(APPEND_LOCK_POSITION, 1, false);
+        try {
+            long writePosition = mMapped.getLong(WRITE_POSITION_OFFSET);
+            long readPosition = mMapped.getLong(READ_POSITION_OFFSET);
+            if (mCapacity - (writePosition - readPosition) < RECORD_HEADER_SIZE + batchLength) {
+                return -1;
+            }
+
+            writePosition = putInt(writePosition, batchLength);
+            for (int index = 0; index < count; index++) {
+                writePosition = put(writePosition, buffers[index]);
+            }
+            mMapped.putLong(WRITE_POSITION_OFFSET, writePosition);
+            return writePosition;
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    /**
+     * Copies whole batches from the ring and puts them one after another to the target. Batches are taken while
+     * they start before the limit, like batches are written to a log file before it's rotated.
+     * The target is ready to be read after that. Batches stay in the ring until {@link #commitRead(long)}.
+     *
+     * @param target - buffer with capacity of the ring, so any batch fits into it.
+     * @return read position after the copied batches or "-1" if the ring is empty.
+     */
+    synchronized long peekTo(ByteBuffer target, long limit) throws IOException {
+        target.clear();
+
+        long readPosition;
+        FileLock appendLock = mChannel.lock(APPEND_LOCK_POSITION, 1, false);
+        try {
+            long writePosition = mMapped.getLong(WRITE_POSITION_OFFSET);
+            readPosition = mMapped.getLong(READ_POSITION_OFFSET);
+
+            while (readPosition < writePosition && target.position() < limit) {
+                int batchLength = getInt(readPosition);
+                if (target.remaining() < batchLength) {
+                    break;
+                }
+                readPosition = get(readPosition + RECORD_HEADER_SIZE, target, batchLength);
+            }
+        } finally {
+            appendLock.release();
+        }
+
+        target.flip();
+        return target.hasRemaining() ? readPosition : -1;
+    }
+
+    /**
+     * Frees the space of the batches that were taken by {@link #peekTo(ByteBuffer, long)} and written.
+     * Only the writer takes batches, so nobody moved the read position since then.
+     *
+     * @param readPosition - position returned by {@link #peekTo(ByteBuffer, long)}
+     */
+    synchronized void commitRead(long readPosition) throws IOException {
+        FileLock appendLock = mChannel.lock(APPEND_LOCK_POSITION, 1, false);
+        try {
+            mMapped.putLong(READ_POSITION_OFFSET, readPosition);
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    /**
+     * @return position up to which the batches were taken by the writer.
+     */
+    synchronized long readPosition() throws IOException {
+        FileLock appendLock = mChannel.lock(APPEND_LOCK_POSITION, 1, false);
+        try {
+            return mMapped.getLong(READ_POSITION_OFFSET);
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    /**
+     * Writes the ring to the storage device, so the batches that were put to it are not lost if the system crashes.
+     * It doesn't change the ring, so it's not done under the monitor and doesn't wait for the writer.
+     */
+    void force() {
+        mMapped.force();
+    }
+
+    /**
+     * @return true if this process is the writer.
+     */
+    synchronized boolean tryBecomeWriter() throws IOException {
+        if (mWriterLock == null) {
+            try {
+                mWriterLock = mChannel.tryLock(WRITER_LOCK_POSITION, 1, false);
+            } catch (OverlappingFileLockException e) {
+                // another ring of the same file in this process is the writer
+                return false;
+            }
+        }
+        return mWriterLock != null;
+    }
+
+    synchronized void resignWriter() throws IOException {
+        if (mWriterLock != null) {
+            mWriterLock.release();
+            mWriterLock = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWriterLock = null;
+        // locks are released with the channel
+        mChannel.close();
+    }
+
+    private long putInt(long position, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            mMapped.put(HEADER_SIZE + (int) (position++ % mCapacity), (byte) (value >>> shift));
+        }
+        return position;
+    }
+
+    private int getInt(long position) {
+        int value = 0;
+        for (int index = 0; index < RECORD_HEADER_SIZE; index++) {
+            value = (value << 8) | (mMapped.get(HEADER_SIZE + (int) (position++ % mCapacity)) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Copies the bytes to the ring, in two parts if they are wrapped around the end of the ring.
+     */
+    private long put(long position, ByteBuffer bytes) {
+        int bytesLimit = bytes.limit();
+        while (bytes.hasRemaining()) {
+            int offset = (int) (position % mCapacity);
+            int length = Math.min(bytes.remaining(), mCapacity - offset);
+
+            mRingView.limit(HEADER_SIZE + offset + length).position(HEADER_SIZE + offset);
+            bytes.limit(bytes.position() + length);
+            mRingView.put(bytes);
+            bytes.limit(bytesLimit);
+
+            position += length;
+        }
+        return position;
+    }
+
+    private long get(long position, ByteBuffer target, int length) {
+        while (length > 0) {
+            int offset = (int) (position % mCapacity);
+            int partLength = Math.min(length, mCapacity - offset);
+
+            mRingView.limit(HEADER_SIZE + offset + partLength).position(HEADER_SIZE + offset);
+            target.put(mRingView);
+
+            length -= partLength;
+            position += partLength;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,88 @@
+package com.volokh.danylo.vonalogger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class renders stack traces of the logged throwables on background thread without repeating them.
+ * See {@link VoNaLogger.Builder#setDeduplicateStackTraces(boolean)}
+ *
+ * Every throwable and every cause is identified by a fingerprint of its class and its stack frames.
+ * 1. First time a stack is written to the current file it gets a short id: "java.io.IOException: boom [stack#1]"
+ *    and its frames are written after it.
+ * 2. Next time only the first line with the same id is written. Frames are found above it,
+ *    at the last line with this id that is followed by frames.
+ *
+ * Ids are started from "1" in every new file. Rendered frames are kept between files, so a stack that is written
+ * to a new file is copied instead of being rendered again.
+ *
+ * It's used only by background thread, that's why it is not synchronized.
+ */
+final class StackTraceCache {
+
+    private static final int MAX_CACHED_STACKS = 256;
+
+    private static final char[] ID_START = " [stack#".toCharArray();
+
+    private final Map<Long, char[]> mRenderedFrames = new HashMap<>();
+
+    private final Map<Long, Integer> mFileIds = new HashMap<>();
+
+    private int mNextFileId = 1;
+
+    /**
+     * Has to be called when logs start to be written to a new file.
+     */
+    void onNewFile() {
+        mFileIds.clear();
+        mNextFileId = 1;
+    }
+
+    /**
+     * Writes a single throwable without its causes.
+     */
+    void appendThrowable(LogOutputBuffer outputBuffer, Throwable throwable) {
+        ParamWriterRegistry.appendThrowableMessage(outputBuffer, throwable);
+
+        StackTraceElement[] stackTrace = throwable.getStackTrace();
+        Long fingerprint = fingerprint(throwable, stackTrace);
+
+        outputBuffer.append(ID_START);
+        Integer fileId = mFileIds.get(fingerprint);
+        if (fileId != null) {
+            outputBuffer.append(fileId.intValue()).append(']');
+            return;
+        }
+
+        if (mFileIds.size() >= MAX_CACHED_STACKS) {
+            // ids are never reused in the same file, so the old stacks are just written again
+            mFileIds.clear();
+        }
+        fileId = mNextFileId++;
+        mFileIds.put(fingerprint, fileId);
+        outputBuffer.append(fileId.intValue()).append(']');
+
+        char[] frames = mRenderedFrames.get(fingerprint);
+        if (frames != null) {
+            outputBuffer.append(frames);
+            return;
+        }
+
+        int framesStart = outputBuffer.length();
+        ParamWriterRegistry.appendStackTrace(outputBuffer, stackTrace);
+
+        if (mRenderedFrames.size() >= MAX_CACHED_STACKS) {
+            mRenderedFrames.clear();
+        }
+        mRenderedFrames.put(fingerprint, Arrays.copyOfRange(outputBuffer.array(), framesStart, outputBuffer.length()));
+    }
+
+    private static Long fingerprint(Throwable throwable, StackTraceElement[] stackTrace) {
+        long fingerprint = throwable.getClass().getName().hashCode();
+        for (StackTraceElement element : stackTrace) {
+            fingerprint = fingerprint * 0x9E3779B97F4A7C15L + element.hashCode();
+        }
+        return fingerprint * 0x9E3779B97F4A7C15L + stackTrace.length;
+    }
+}
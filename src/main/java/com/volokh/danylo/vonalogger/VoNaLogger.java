@@ -2,6 +2,13 @@ package com.volokh.danylo.vonalogger;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.SecretKey;
 
 public interface VoNaLogger {
 
@@ -19,6 +26,28 @@ public interface VoNaLogger {
     void stopLoggingAndGetLogFiles(GetFilesCallback filesCallback);
     void processPendingLogsStopAndGetLogFiles(GetFilesCallback filesCallback);
 
+    /**
+     * Same as {@link #stopLoggingAndGetLogFilesSync()}, but the caller is not blocked.
+     * The future is completed with log files after writing to file is finished. It's never completed
+     * on the background thread, so dependent actions cannot block the writing.
+     */
+    CompletableFuture<File[]> stopLoggingAndGetLogFilesAsync();
+
+    /**
+     * Same as {@link #processPendingLogsStopAndGetLogFilesSync()}, but the caller is not blocked.
+     * See {@link #stopLoggingAndGetLogFilesAsync()}
+     */
+    CompletableFuture<File[]> processPendingLogsStopAndGetLogFilesAsync();
+
+    /**
+     * Sends all the logs that were written so far for writing to file and syncs the file to the storage device.
+     * Logging is not stopped.
+     *
+     * @return future that is completed with the sequence number of the last flushed log
+     * when all these logs are on the storage device. It fails if the logger is stopped before that.
+     */
+    CompletableFuture<Long> flush();
+
     /**
      * This method returns a files that contain a snapshot of a current files that are being logged.
      * @return array of snapshot files.
@@ -33,15 +62,233 @@ public interface VoNaLogger {
      */
     int writeLog(Object... parameters);
 
+    /**
+     * Same as {@link #writeLog(Object...)} with a single parameter. It's needed because a call with a single
+     * parameter would be bound to {@link #writeLog(Object, LogArg...)} and would create the arrays for nothing.
+     */
+    int writeLog(Object parameter);
+
+    /**
+     * This method is used to write log with named parameters. First "fields.size()" parameters get the names
+     * from "fields", the rest of them are written as in {@link #writeLog(Object...)}.
+     *
+     * In {@link LogOutputFormat#TEXT} named parameters are written like this: "name=value".
+     * In {@link LogOutputFormat#JSON_LINES} they are written as separate fields of the JSON object.
+     */
+    int writeLog(LogFields fields, Object... parameters);
+
+    /**
+     * This method is used to write log with parameters that are expensive to compute:
+     * <pre>
+     * logger.writeLog("Cache state", () -> cache.dump(), () -> cache.size());
+     * </pre>
+     * Lazy parameters are called only when the log is written to file. If the log is dropped
+     * they are not called. See {@link LogArg}
+     */
+    int writeLog(Object firstParameter, LogArg... lazyParameters);
+
+    /**
+     * This method is used to write many logs at once, for example events that were buffered by the caller.
+     * Every row is written the same way as {@link #writeLog(Object...)}, but the lock is taken once for all
+     * the rows and all of them get the same timestamp.
+     *
+     * @return how many rows were written. Rows can be dropped by the rate limit or because of capacity.
+     */
+    int writeLogs(Object[][] rows);
+
+    /**
+     * This method is used to write log that has to reach the file as soon as possible, even if background thread is
+     * far behind. Critical logs have their own lists of entries that background thread writes before the regular ones.
+     * They are not rate limited and not dropped because of {@link Builder#setMaxPendingEntriesLists(int)}
+     *
+     * Critical log might be written to file before the regular logs that were written before it.
+     * Sequence numbers show the original order. See {@link Builder#setSyncCriticalLogs(boolean)}
+     */
+    int writeCriticalLog(Object... parameters);
+
+    /**
+     * This method is used to write log into file when the caller needs to know that the log reached the storage device.
+     * It requires sync interval to be specified: {@link Builder#setSyncInterval(long)}
+     *
+     * The log is written the same way as in {@link #writeLog(Object...)}. Returned future is completed with the
+     * sequence number of the log after the file with this log was synced. If logger is stopped before that
+     * the future is completed exceptionally.
+     */
+    CompletableFuture<Long> writeDurableLog(Object... parameters);
+
+    /**
+     * @return how many logs were not written because of the rate limit: {@link Builder#setRateLimit(int, int)}
+     */
+    long getRateLimitedLogsCount();
+
+    /**
+     * @return time spent by the logger in every {@link LoggerPhase} since it was created.
+     * It's empty if diagnostics are not enabled: {@link Builder#setCollectDiagnostics(boolean)}
+     */
+    LoggerDiagnostics getDiagnostics();
+
+    /**
+     * @return places in the code that write logs, the ones that write the most first.
+     * It's empty if call sites are not sampled: {@link Builder#setCallSiteSampling(int)}
+     */
+    List<CallSiteStats> getCallSiteStats();
+
+    /**
+     * This method changes the options of the running logger without stopping it. See {@link Reconfiguration}
+     *
+     * Changes are applied by background thread between two lists of entries, so logs are neither lost
+     * nor delayed. If the logger is stopped they are applied when it's initialized again.
+     *
+     * @return future that is completed when the changes are applied.
+     */
+    CompletableFuture<Void> reconfigure(Reconfiguration reconfiguration);
+
+    /**
+     * These are the options that can be changed by {@link #reconfigure(Reconfiguration)}.
+     * Only the options that are set are changed, the rest of them stay as they were specified in {@link Builder}
+     */
+    class Reconfiguration {
+
+        Long mLogFileMaxSize;
+        Integer mLogFilesCount;
+        Long mSyncIntervalMillis;
+        Integer mMinimumEntriesCount;
+        Integer mMaxPendingEntriesLists;
+
+        /**
+         * See {@link Builder#setLogFileMaxSize(long)}
+         * If the current file is bigger than the new size it's rotated before the next list of entries is written.
+         */
+        public Reconfiguration setLogFileMaxSize(long sizeInBytes){
+            if(sizeInBytes <= 0){
+                throw new IllegalArgumentException("sizeInBytes has to be positive");
+            }
+            this.mLogFileMaxSize = sizeInBytes;
+            return this;
+        }
+
+        /**
+         * See {@link Builder#setLogFilesCount(int)}
+         * If the count is decreased the oldest files are deleted.
+         */
+        public Reconfiguration setLogFilesCount(int logFilesCount){
+            if(logFilesCount < 2){
+                throw new IllegalArgumentException("logFilesCount cannot be less than 2");
+            }
+            this.mLogFilesCount = logFilesCount;
+            return this;
+        }
+
+        /**
+         * See {@link Builder#setSyncInterval(long)}
+         * Sync thread is started if it wasn't specified before. It cannot be stopped while logging, because
+         * futures of {@link #writeDurableLog(Object...)} rely on it.
+         */
+        public Reconfiguration setSyncInterval(long intervalMillis){
+            if(intervalMillis <= 0){
+                throw new IllegalArgumentException("intervalMillis has to be positive");
+            }
+            this.mSyncIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * See {@link Builder#setMinimumEntriesCount(int)}
+         * Entries that are already written to the current list are sent for writing to file right away.
+         */
+        public Reconfiguration setMinimumEntriesCount(int minimumEntriesCount){
+            if(minimumEntriesCount < 1){
+                throw new IllegalArgumentException("minimumEntriesCount cannot be less than 1");
+            }
+            this.mMinimumEntriesCount = minimumEntriesCount;
+            return this;
+        }
+
+        /**
+         * See {@link Builder#setMaxPendingEntriesLists(int)}. "0" removes the limit.
+         */
+        public Reconfiguration setMaxPendingEntriesLists(int maxPendingLists){
+            if(maxPendingLists < 0){
+                throw new IllegalArgumentException("maxPendingLists cannot be negative");
+            }
+            this.mMaxPendingEntriesLists = maxPendingLists;
+            return this;
+        }
+
+        /**
+         * Logger keeps a copy, so the caller can change and reuse this object.
+         */
+        Reconfiguration copy(){
+            Reconfiguration copy = new Reconfiguration();
+            copy.mLogFileMaxSize = mLogFileMaxSize;
+            copy.mLogFilesCount = mLogFilesCount;
+            copy.mSyncIntervalMillis = mSyncIntervalMillis;
+            copy.mMinimumEntriesCount = mMinimumEntriesCount;
+            copy.mMaxPendingEntriesLists = mMaxPendingEntriesLists;
+            return copy;
+        }
+    }
+
     class Builder {
 
         private String mLogFileName;
         private File mLogDir;
         private long mLogFileMaxSize;
+        private int mLogFilesCount;
 
         private Integer mMinimumEntriesCount;
         private Boolean mShowLogs;
 
+        private boolean mLogTimestamps;
+        private Clock mTimestampClock = Clock.systemUTC();
+        private boolean mLogThreadIds;
+
+        private boolean mCrashSafeMode;
+
+        private boolean mFastRestart;
+
+        private boolean mSyncCriticalLogs;
+
+        private WriterWaitStrategy mWaitStrategy = WriterWaitStrategy.BLOCKING;
+
+        private SecretKey mEncryptionKey;
+
+        private long mTotalDiskBudget;
+        private long mMaxLogAgeMillis;
+
+        private boolean mMultiProcessMode;
+
+        private long mSyncIntervalMillis;
+
+        private boolean mLogSequenceNumbers;
+
+        private int mSegmentIndexInterval;
+        private boolean mIndexFirstParameterTokens;
+
+        private int mOffHeapEntrySlotSize;
+
+        private int mRateLimitLogsPerSecond;
+        private int mRateLimitBurst;
+
+        private boolean mCollapseRepeatedLogs;
+
+        private LogOutputFormat mOutputFormat = LogOutputFormat.TEXT;
+
+        private boolean mDeduplicateStackTraces;
+
+        private boolean mEvaluateLogArgsEagerly;
+
+        private boolean mCollectDiagnostics;
+        private int mCallSiteSamplingInterval;
+
+        private int mMaxPendingEntriesLists;
+
+        private final Map<Class<?>, ParamWriter<?>> mParamWriters = new LinkedHashMap<>();
+
+        private int mShardCount = 1;
+        private File[] mShardDirs;
+        private ShardRouting mShardRouting = ShardRouting.FIRST_PARAMETER;
+
         /**
          * This method sets the file name for a logging.
          * This file name is passed to the concrete constructor - {@link VoNaLoggerImpl}
@@ -73,11 +320,363 @@ public interface VoNaLogger {
             return this;
         }
 
+        /**
+         * This sets how many files the logs are rotated between. Default is 3.
+         * Every file gets an equal part of max size: {@link #setLogFileMaxSize(long)}
+         */
+        public Builder setLogFilesCount(int logFilesCount){
+            if(logFilesCount < 2){
+                throw new IllegalArgumentException("logFilesCount cannot be less than 2");
+            }
+            this.mLogFilesCount = logFilesCount;
+            return this;
+        }
+
         public Builder setShowLogs(Boolean showLogs){
             this.mShowLogs = showLogs;
             return this;
         }
 
+        /**
+         * If this is enabled every log line starts with the time when {@link #writeLog(Object...)} was called.
+         * Time is written in ISO-8601 format in UTC with microseconds: "2017-01-21T19:28:35.123456Z"
+         */
+        public Builder setLogTimestamps(boolean logTimestamps){
+            this.mLogTimestamps = logTimestamps;
+            return this;
+        }
+
+        /**
+         * Wall clock that timestamps are taken from. Default is {@link Clock#systemUTC()}
+         *
+         * Timestamps are measured with {@link System#nanoTime()} and are checked against this clock once a second,
+         * so changes of the clock are followed with a delay of up to a second.
+         */
+        public Builder setTimestampClock(Clock timestampClock){
+            this.mTimestampClock = timestampClock;
+            return this;
+        }
+
+        /**
+         * If this is enabled every log line contains id of the thread that called {@link #writeLog(Object...)}.
+         * It is written after the timestamp if timestamps are enabled.
+         */
+        public Builder setLogThreadIds(boolean logThreadIds){
+            this.mLogThreadIds = logThreadIds;
+            return this;
+        }
+
+        /**
+         * If this is enabled every batch of entries is written to file with a header that contains its length and
+         * checksum. When logger is initialized the current file is checked and a batch that was partially
+         * written (for example because the process died) is cut off.
+         *
+         * Each header is a separate text line that starts with "#", so the files can still be read as text.
+         * Current file that was written without crash safe mode is rotated on initialization.
+         */
+        public Builder setCrashSafeMode(boolean crashSafeMode){
+            this.mCrashSafeMode = crashSafeMode;
+            return this;
+        }
+
+        /**
+         * If this is enabled the order and sizes of the log files and the last sequence number are saved to
+         * "logFileName.meta" when files are rotated and when logger is stopped.
+         * On start logger trusts the metadata and doesn't check every log file: it only compares the size of
+         * the current file with the saved one. Sequence numbers continue from the last written log.
+         */
+        public Builder setFastRestart(boolean fastRestart){
+            this.mFastRestart = fastRestart;
+            return this;
+        }
+
+        /**
+         * If this is enabled the file is synced to the storage device right after critical logs are written:
+         * {@link VoNaLogger#writeCriticalLog(Object...)}. Background thread is blocked while the file is synced.
+         */
+        public Builder setSyncCriticalLogs(boolean syncCriticalLogs){
+            this.mSyncCriticalLogs = syncCriticalLogs;
+            return this;
+        }
+
+        /**
+         * If this is specified every batch of entries is encrypted with AES-GCM before it's written to file.
+         * Encrypted files are always written in crash safe mode: {@link #setCrashSafeMode(boolean)}
+         * They can be read with {@link EncryptedLogInputStream}
+         *
+         * Encryption cannot be used with segment index, because {@link LogSearch} reads text lines.
+         */
+        public Builder setEncryptionKey(SecretKey encryptionKey){
+            this.mEncryptionKey = encryptionKey;
+            return this;
+        }
+
+        /**
+         * {@link #setLogFileMaxSize(long)} limits only the current and rotated files. If this is specified,
+         * all the files of the logger in the log directory are limited: current and rotated files, snapshots
+         * (see {@link VoNaLogger#getLoggingFilesSnapShotSync()}), indexes and other copies of the files.
+         * The oldest files are removed by a separate thread after files are rotated. The current file is never removed.
+         *
+         * Snapshot files should be copied before the next rotation if they are needed.
+         * Budget cannot be smaller than max size of the files.
+         */
+        public Builder setTotalDiskBudget(long sizeInBytes){
+            this.mTotalDiskBudget = sizeInBytes;
+            return this;
+        }
+
+        /**
+         * If this is specified the files of the logger that were not modified for this time are removed, except
+         * the current file. See {@link #setTotalDiskBudget(long)}
+         */
+        public Builder setMaxLogAge(long maxAgeMillis){
+            this.mMaxLogAgeMillis = maxAgeMillis;
+            return this;
+        }
+
+        /**
+         * If this is enabled few processes can write logs to the same files: the same directory and file name.
+         * Every process renders its logs and puts them to a ring in a shared memory mapped file: "logFileName.ring".
+         * Only one of the processes writes the logs from the ring to the files and rotates them. If it dies another
+         * process becomes the writer and continues from the same place in the ring.
+         *
+         * Logs of different processes are not mixed inside a batch, but batches of different processes are written
+         * in the order in which they were put to the ring. {@link VoNaLogger#flush()} completes when the logs are
+         * in the ring and the ring is synced to the storage device. A writer that dies may leave a few batches
+         * in the ring that it has already written, they are written again by the next writer.
+         * Snapshots are not supported.
+         *
+         * It cannot be used with encryption, segment index, fast restart and sync interval. Only one logger of
+         * the same files can be created in a process.
+         */
+        public Builder setMultiProcessMode(boolean multiProcessMode){
+            this.mMultiProcessMode = multiProcessMode;
+            return this;
+        }
+
+        /**
+         * This defines what background thread does while there are no logs to write.
+         * Default is {@link WriterWaitStrategy#BLOCKING}
+         */
+        public Builder setWaitStrategy(WriterWaitStrategy waitStrategy){
+            this.mWaitStrategy = waitStrategy;
+            return this;
+        }
+
+        /**
+         * If this is specified the current log file is synced to the storage device on a separate thread
+         * with the given interval. Writing to file is not blocked while the file is being synced.
+         *
+         * All the logs are synced not later than in about two intervals after they were written.
+         * To wait for a concrete log use {@link #writeDurableLog(Object...)}
+         */
+        public Builder setSyncInterval(long intervalMillis){
+            this.mSyncIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * If this is enabled every log line starts with the sequence number of the log.
+         * Sequence numbers are growing in the order in which {@link #writeLog(Object...)} was called.
+         */
+        public Builder setLogSequenceNumbers(boolean logSequenceNumbers){
+            this.mLogSequenceNumbers = logSequenceNumbers;
+            return this;
+        }
+
+        /**
+         * If shard count is bigger than 1 the logs are split between independent loggers, each with its own
+         * background thread and log files. Logs of a single shard are named "logFileName_shardN".
+         * This allows to write logs from many threads in parallel.
+         * Max file size, see {@link #setLogFileMaxSize(long)}, is split evenly between the shards.
+         *
+         * Sequence numbers are always written in this mode, so the logs from all the shards can be read
+         * in the original order with {@link MergedLogReader}.
+         *
+         * @see #setShardRouting(ShardRouting)
+         * @see #setShardDirs(File...)
+         */
+        public Builder setShardCount(int shardCount){
+            if(shardCount < 1){
+                throw new IllegalArgumentException("shardCount cannot be less than 1");
+            }
+            this.mShardCount = shardCount;
+            return this;
+        }
+
+        /**
+         * Directories for the shards. Shard "N" is stored in "shardDirs[N % shardDirs.length]".
+         * If this is not specified all the shards are stored in {@link #setLoggerFilesDir(File)}
+         */
+        public Builder setShardDirs(File... shardDirs){
+            this.mShardDirs = shardDirs;
+            return this;
+        }
+
+        /**
+         * This defines how the shard is chosen for every log. See {@link ShardRouting}
+         */
+        public Builder setShardRouting(ShardRouting shardRouting){
+            this.mShardRouting = shardRouting;
+            return this;
+        }
+
+        /**
+         * If this is specified a sparse index is saved next to every log file: "Example_log_0.log.idx"
+         * Index contains position of a batch of entries in the file after every "indexInterval" entries.
+         * Index of the current file is saved when file is rotated or logger is stopped.
+         *
+         * Timestamps are always written when index is enabled. Files can be searched with {@link LogSearch}
+         */
+        public Builder setSegmentIndexInterval(int indexInterval){
+            this.mSegmentIndexInterval = indexInterval;
+            return this;
+        }
+
+        /**
+         * If this is enabled the words of the first parameter of every log are added to the index of the file.
+         * It allows {@link LogSearch} to skip files that don't contain a word.
+         * Works only with {@link #setSegmentIndexInterval(int)}
+         */
+        public Builder setIndexFirstParameterTokens(boolean indexTokens){
+            this.mIndexFirstParameterTokens = indexTokens;
+            return this;
+        }
+
+        /**
+         * If this is specified the text of the logs is kept outside of the java heap until it's written to file.
+         * Every pooled log entry gets a slot of the given size in a direct buffer.
+         *
+         * In this mode parameters are merged into text on the thread that calls {@link #writeLog(Object...)},
+         * before the lock of the logger is taken, so a slow {@link Object#toString()} doesn't hold the other threads.
+         * The logger doesn't keep references to the parameters. Logs that are longer than "slotSizeBytes / 2" chars
+         * are cut.
+         *
+         * {@link LogArg} parameters are called when the log is merged. While logs are dropped because of capacity
+         * they are merged under the lock and only if the log is accepted. A log that is merged before the lock
+         * can still be dropped though, then its {@link LogArg} parameters were called for nothing.
+         */
+        public Builder setOffHeapEntrySlotSize(int slotSizeBytes){
+            this.mOffHeapEntrySlotSize = slotSizeBytes;
+            return this;
+        }
+
+        /**
+         * If this is specified logs with the same first parameter (template) are limited to "logsPerSecond"
+         * on average and "burst" at once. Logs over the limit are dropped: {@link #writeLog(Object...)} returns "0"
+         * right away without taking any lock, so a flood of logs from a single place doesn't slow down the application
+         * and doesn't rotate away the useful logs.
+         *
+         * Templates are compared by identity, so string constants of different call sites are limited separately.
+         * Limits are kept in a fixed number of stripes, so if too many templates are limited at once some of them
+         * share a stripe and its limit. See {@link LogRateLimiter}
+         *
+         * Logs from {@link #writeDurableLog(Object...)} are never dropped.
+         * See {@link VoNaLogger#getRateLimitedLogsCount()}
+         */
+        public Builder setRateLimit(int logsPerSecond, int burst){
+            this.mRateLimitLogsPerSecond = logsPerSecond;
+            this.mRateLimitBurst = burst;
+            return this;
+        }
+
+        /**
+         * If this is enabled logs that have the same parameters as the previous log are not written.
+         * Instead the background thread writes a line "last message repeated N times", like syslog does.
+         * Timestamps, thread ids and sequence numbers of the dropped logs are not compared and are lost.
+         */
+        public Builder setCollapseRepeatedLogs(boolean collapseRepeatedLogs){
+            this.mCollapseRepeatedLogs = collapseRepeatedLogs;
+            return this;
+        }
+
+        /**
+         * If this is enabled the logger measures the time it spends in every {@link LoggerPhase}.
+         * Measurements are available from {@link VoNaLogger#getDiagnostics()} and are committed as JFR events
+         * "com.volokh.danylo.vonalogger.Phase" if JFR is recording.
+         *
+         * If this is disabled the logger doesn't read the clock at all.
+         */
+        public Builder setCollectDiagnostics(boolean collectDiagnostics){
+            this.mCollectDiagnostics = collectDiagnostics;
+            return this;
+        }
+
+        /**
+         * If this is specified one of "samplingInterval" calls of the logger finds the place in the code that called it.
+         * Count, length and time of the logs are summed up for every call site and are available from
+         * {@link VoNaLogger#getCallSiteStats()}, so the code that writes most of the logs can be found.
+         *
+         * The rest of the calls only decrement a counter. Rows of {@link VoNaLogger#writeLogs(Object[][])}
+         * are not sampled.
+         */
+        public Builder setCallSiteSampling(int samplingInterval){
+            this.mCallSiteSamplingInterval = samplingInterval;
+            return this;
+        }
+
+        /**
+         * By default new lists of entries are created while background thread is behind, so the memory used by the
+         * logger is not limited. If this is specified and "maxPendingLists" lists are waiting to be written,
+         * new logs are dropped and {@link #writeLog(Object...)} returns "0" until background thread catches up.
+         *
+         * Every dropped log commits JFR event "com.volokh.danylo.vonalogger.LogDropped".
+         */
+        public Builder setMaxPendingEntriesLists(int maxPendingLists){
+            this.mMaxPendingEntriesLists = maxPendingLists;
+            return this;
+        }
+
+        /**
+         * By default parameters are written with {@link Object#toString()}, except strings, primitives and few common
+         * types. See {@link ParamWriterRegistry}
+         *
+         * Registered writer writes parameters of the given class and its subclasses directly to the log,
+         * so objects with expensive {@link Object#toString()} don't slow down the background thread.
+         * Strings and boxed primitives are always written by the logger itself.
+         */
+        public <T> Builder registerParamWriter(Class<T> type, ParamWriter<? super T> writer){
+            this.mParamWriters.put(type, writer);
+            return this;
+        }
+
+        /**
+         * Format of the lines in log files. Default is {@link LogOutputFormat#TEXT}
+         *
+         * {@link LogOutputFormat#JSON_LINES} cannot be used with off heap entries, because cut logs would not be
+         * valid JSON, and with segment index, because {@link LogSearch} reads text lines.
+         */
+        public Builder setOutputFormat(LogOutputFormat outputFormat){
+            this.mOutputFormat = outputFormat;
+            return this;
+        }
+
+        /**
+         * Throwables passed to {@link VoNaLogger#writeLog(Object...)} are written with their stack traces by
+         * background thread. If this is enabled a stack trace is written only the first time in every file and
+         * repeated throwables get a short reference to it: "java.io.IOException: boom [stack#1]".
+         * So a burst of the same errors doesn't multiply the size of the file.
+         *
+         * Off heap entries render throwables on the calling thread, so their stack traces are always written in full.
+         */
+        public Builder setDeduplicateStackTraces(boolean deduplicateStackTraces){
+            this.mDeduplicateStackTraces = deduplicateStackTraces;
+            return this;
+        }
+
+        /**
+         * By default {@link LogArg} and {@link java.util.function.Supplier} parameters are called by background thread.
+         * If this is enabled they are called by the thread that writes the log, before the log is added to the list.
+         * It's needed if they read the state that is confined to the calling thread.
+         *
+         * Logs dropped by the rate limit are never evaluated. Logs dropped because of
+         * {@link #setMaxPendingEntriesLists(int)} are already evaluated when they are dropped.
+         */
+        public Builder setEvaluateLogArgsEagerly(boolean evaluateEagerly){
+            this.mEvaluateLogArgsEagerly = evaluateEagerly;
+            return this;
+        }
+
         /**
          * This method creates a concrete class of {@link VoNaLogger}
          */
@@ -86,8 +685,57 @@ public interface VoNaLogger {
             checkLogDirNotNull();
             checkLogFileNameNotNull();
             checkMaxFileSizeSpecified();
+            checkOutputFormatSupported();
+            checkWaitStrategyNotNull();
+            checkTimestampClockNotNull();
+            checkEncryptionSupported();
+            checkTotalDiskBudget();
+            checkMultiProcessModeSupported();
+            checkCallSiteSamplingInterval();
 
-            return new VoNaLoggerImpl(mLogDir, mLogFileName, mLogFileMaxSize, mMinimumEntriesCount, mShowLogs);
+            VoNaLoggerConfig config = new VoNaLoggerConfig();
+            config.logDir = mLogDir;
+            config.logFileName = mLogFileName;
+            config.logFileMaxSize = mLogFileMaxSize;
+            config.logFilesCount = mLogFilesCount;
+            config.minimumEntriesCount = mMinimumEntriesCount;
+            config.showLogs = mShowLogs;
+            config.logTimestamps = mLogTimestamps;
+            config.timestampClock = mTimestampClock;
+            config.logThreadIds = mLogThreadIds;
+            config.logSequenceNumbers = mLogSequenceNumbers;
+            config.crashSafeMode = mCrashSafeMode;
+            config.fastRestart = mFastRestart;
+            config.syncCriticalLogs = mSyncCriticalLogs;
+            config.waitStrategy = mWaitStrategy;
+            config.encryptionKey = mEncryptionKey;
+            config.totalDiskBudget = mTotalDiskBudget;
+            config.maxLogAgeMillis = mMaxLogAgeMillis;
+            config.multiProcessMode = mMultiProcessMode;
+            config.syncIntervalMillis = mSyncIntervalMillis;
+            config.segmentIndexInterval = mSegmentIndexInterval;
+            config.indexFirstParameterTokens = mIndexFirstParameterTokens;
+            config.offHeapEntrySlotSize = mOffHeapEntrySlotSize;
+            config.collapseRepeatedLogs = mCollapseRepeatedLogs;
+            config.outputFormat = mOutputFormat;
+            config.deduplicateStackTraces = mDeduplicateStackTraces;
+            config.evaluateLogArgsEagerly = mEvaluateLogArgsEagerly;
+            config.collectDiagnostics = mCollectDiagnostics;
+            config.maxPendingEntriesLists = mMaxPendingEntriesLists;
+            if (!mParamWriters.isEmpty()) {
+                config.paramWriters = new ParamWriterRegistry(mParamWriters);
+            }
+            if (mRateLimitLogsPerSecond > 0) {
+                config.rateLimiter = new LogRateLimiter(mRateLimitLogsPerSecond, mRateLimitBurst);
+            }
+            if (mCallSiteSamplingInterval > 0) {
+                config.callSiteSampler = new CallSiteSampler(mCallSiteSamplingInterval);
+            }
+
+            if(mShardCount > 1){
+                return new ShardedVoNaLogger(config, mShardCount, mShardDirs, mShardRouting);
+            }
+            return new VoNaLoggerImpl(config);
         }
 
         private void checkMaxFileSizeSpecified() {
@@ -96,6 +744,63 @@ public interface VoNaLogger {
             }
         }
 
+        private void checkOutputFormatSupported() {
+            if(mOutputFormat == null){
+                throw new IllegalArgumentException("No output format was specified. Please specify output format");
+            }
+            if(mOutputFormat == LogOutputFormat.JSON_LINES && (mOffHeapEntrySlotSize > 0 || mSegmentIndexInterval > 0)){
+                throw new IllegalArgumentException("JSON lines output format cannot be used with off heap entries or segment index");
+            }
+        }
+
+        private void checkMultiProcessModeSupported() {
+            if(!mMultiProcessMode){
+                return;
+            }
+            if(mEncryptionKey != null || mSegmentIndexInterval > 0 || mFastRestart || mSyncIntervalMillis > 0){
+                throw new IllegalArgumentException("Multi process mode cannot be used with encryption, segment index, fast restart or sync interval");
+            }
+        }
+
+        private void checkCallSiteSamplingInterval() {
+            if(mCallSiteSamplingInterval < 0){
+                throw new IllegalArgumentException("Call site sampling interval cannot be negative");
+            }
+        }
+
+        private void checkTotalDiskBudget() {
+            if(mTotalDiskBudget < 0 || mMaxLogAgeMillis < 0){
+                throw new IllegalArgumentException("Total disk budget and max age of logs cannot be negative");
+            }
+            if(mTotalDiskBudget > 0 && mTotalDiskBudget < mLogFileMaxSize){
+                throw new IllegalArgumentException("Total disk budget cannot be smaller than max file size");
+            }
+        }
+
+        private void checkEncryptionSupported() {
+            if(mEncryptionKey == null){
+                return;
+            }
+            if(!"AES".equals(mEncryptionKey.getAlgorithm())){
+                throw new IllegalArgumentException("Encryption key has to be an AES key");
+            }
+            if(mSegmentIndexInterval > 0){
+                throw new IllegalArgumentException("Encryption cannot be used with segment index");
+            }
+        }
+
+        private void checkTimestampClockNotNull() {
+            if(mTimestampClock == null){
+                throw new IllegalArgumentException("No timestamp clock was specified. Please specify timestamp clock");
+            }
+        }
+
+        private void checkWaitStrategyNotNull() {
+            if(mWaitStrategy == null){
+                throw new IllegalArgumentException("No wait strategy was specified. Please specify wait strategy");
+            }
+        }
+
         private void checkLogDirNotNull() {
             if(mLogDir == null){
                 throw new IllegalArgumentException("No log directory was specified. Please specify directory for log file");
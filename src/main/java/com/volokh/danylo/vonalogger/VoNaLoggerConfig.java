@@ -0,0 +1,100 @@
+package com.volokh.danylo.vonalogger;
+
+import java.io.File;
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * These are the options collected by {@link VoNaLogger.Builder} and passed to {@link VoNaLoggerImpl}.
+ *
+ * It is filled only in {@link VoNaLogger.Builder#build()} and is not changed after the logger is created.
+ * {@link ShardedVoNaLogger} copies it for every shard and changes the files location in the copies.
+ */
+final class VoNaLoggerConfig implements Cloneable {
+
+    File logDir;
+    String logFileName;
+    long logFileMaxSize;
+
+    /**
+     * "0" means default count of files.
+     */
+    int logFilesCount;
+
+    Integer minimumEntriesCount;
+    Boolean showLogs;
+
+    int maxPendingEntriesLists;
+
+    boolean logTimestamps;
+    Clock timestampClock;
+    boolean logThreadIds;
+    boolean logSequenceNumbers;
+
+    boolean crashSafeMode;
+
+    boolean fastRestart;
+
+    boolean syncCriticalLogs;
+
+    WriterWaitStrategy waitStrategy;
+
+    SecretKey encryptionKey;
+
+    /**
+     * "0" means that it's not limited.
+     */
+    long totalDiskBudget;
+    long maxLogAgeMillis;
+
+    boolean multiProcessMode;
+
+    long syncIntervalMillis;
+
+    int segmentIndexInterval;
+    boolean indexFirstParameterTokens;
+
+    int offHeapEntrySlotSize;
+
+    boolean collapseRepeatedLogs;
+
+    LogOutputFormat outputFormat;
+
+    boolean deduplicateStackTraces;
+
+    boolean evaluateLogArgsEagerly;
+
+    boolean collectDiagnostics;
+
+    /**
+     * If this is null {@link ParamWriterRegistry#DEFAULT} is used.
+     */
+    ParamWriterRegistry paramWriters;
+
+    /**
+     * If this is not null logs are rate limited. It is shared between shards, so the limit is common for all of them.
+     */
+    LogRateLimiter rateLimiter;
+
+    /**
+     * If this is not null sequence numbers are taken from here. It is shared between shards
+     * so sequence numbers are unique across all of them.
+     */
+    AtomicLong sequenceSource;
+
+    /**
+     * If this is not null call sites of the logs are sampled. It is shared between shards, so all of them
+     * are in the same table.
+     */
+    CallSiteSampler callSiteSampler;
+
+    VoNaLoggerConfig copy() {
+        try {
+            return (VoNaLoggerConfig) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -1,16 +1,31 @@
 package com.volokh.danylo.vonalogger;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Created by danylo.volokh on 12/25/16.
@@ -47,10 +62,55 @@ final class VoNaLoggerImpl implements VoNaLogger {
      */
     private static final int DEFAULT_ENTRIES_COUNT_IN_SINGLE_LIST = 10;
 
-    private static final int LOG_FILES_COUNT = 3;
+    private static final int DEFAULT_LOG_FILES_COUNT = 3;
+
+    /**
+     * Background thread takes a list of regular entries after this number of critical lists in a row,
+     * so a flood of critical logs doesn't stop writing of the regular ones.
+     */
+    private static final int MAX_CRITICAL_LISTS_IN_ROW = 4;
+
+    /**
+     * Background thread takes up to this number of lists at once and writes them with a single gathering write.
+     */
+    private static final int MAX_GATHERED_LISTS = 8;
+
+    /**
+     * See {@link WriterWaitStrategy#PHASED_BACKOFF}. Background thread is blocked after this number of checks
+     * without logs. The first part of them it spins, the rest it yields.
+     */
+    private static final int BACKOFF_SPIN_TRIES = 1000;
+    private static final int BACKOFF_YIELD_TRIES = 100;
+
+    /**
+     * See {@link WriterWaitStrategy#SLEEPING}
+     */
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * If max age of the files is specified they are checked at least this often.
+     */
+    private static final long MAX_RETENTION_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * See {@link VoNaLogger.Builder#setMultiProcessMode(boolean)}
+     */
+    private static final int SHARED_RING_CAPACITY = 4 * 1024 * 1024;
+    private static final long SHARED_RING_POLL_MILLIS = 10;
+    private static final long SHARED_RING_STOP_TIMEOUT_MILLIS = 1000;
 
     private static final String LOG_FILE_SUFIX = ".log";
 
+    private static final int DEFAULT_PARAMETERS_CAPACITY = 256;
+
+    private static final char[] REPEATED_LOGS_NOTE_START = "last message repeated ".toCharArray();
+    private static final char[] REPEATED_LOGS_NOTE_END = " times\n".toCharArray();
+
+    private static final char[] JSON_REPEATED_LOGS_KEY = "{\"repeated\":".toCharArray();
+    private static final char[] JSON_SEQUENCE_KEY = "\"seq\":".toCharArray();
+    private static final char[] JSON_TIMESTAMP_KEY = "\"ts\":".toCharArray();
+    private static final char[] JSON_THREAD_KEY = "\"thread\":".toCharArray();
+
     /**
      * This is a non-static object and it will not sync every VonaLogger instance.
      * This means that for every different log file you need to have different VoNaLoggerImpl instance.
@@ -71,6 +131,64 @@ final class VoNaLoggerImpl implements VoNaLogger {
      */
     private final Queue<List<LogEntry>> mLoggingEntries = new LinkedList<>();
 
+    /**
+     * These are the same queues for critical entries: {@link #writeCriticalLog(Object...)}.
+     * Background thread takes lists from here before the regular ones.
+     *
+     * Critical entry is added to the last list in the queue, if background thread didn't take it yet.
+     * So critical entries don't wait until the list is filled.
+     */
+    private final Queue<List<LogEntry>> mCriticalProcessingEntries = new LinkedList<>();
+    private final Queue<List<LogEntry>> mCriticalLoggingEntries = new LinkedList<>();
+
+    /**
+     * The last list in {@link #mCriticalProcessingEntries} and the index of the next entry in it.
+     * It's "null" if background thread took the list.
+     */
+    private List<LogEntry> mCriticalTailList;
+    private int mCriticalTailIndex;
+
+    /**
+     * How many critical lists background thread took in a row. See {@link #MAX_CRITICAL_LISTS_IN_ROW}
+     */
+    private int mCriticalListsInRow;
+
+    /**
+     * Lists that background thread took for writing at once and which of them are critical.
+     * They are used only by background thread.
+     */
+    private final List<List<LogEntry>> mGatheredLists = new ArrayList<>(MAX_GATHERED_LISTS);
+    private final boolean[] mGatheredCriticalLists = new boolean[MAX_GATHERED_LISTS];
+
+    /**
+     * See {@link VoNaLogger.Builder#setSyncCriticalLogs(boolean)}
+     */
+    private final boolean mSyncCriticalLogs;
+
+    /**
+     * See {@link VoNaLogger.Builder#setWaitStrategy(WriterWaitStrategy)}
+     */
+    private final WriterWaitStrategy mWaitStrategy;
+
+    /**
+     * This is true while background thread is blocked in {@link #mProcessingSyncObject}.
+     * Both are guarded by {@link #mProcessingSyncObject}, so a thread that adds a list either sees that background
+     * thread is blocked and wakes it up, or background thread sees the list before it's blocked.
+     */
+    private boolean mBackgroundThreadParked;
+
+    /**
+     * It's incremented every time background thread is woken up, under {@link #mProcessingSyncObject}.
+     * Background thread that doesn't block watches it without taking the lock, so it doesn't compete with
+     * the threads that write logs while there is nothing to do.
+     */
+    private volatile int mWakeUpSignals;
+
+    /**
+     * Number of checks in a row that found no logs. It is used only by background thread.
+     */
+    private int mIdleTries;
+
     /**
      * This is executor that is used to write logs into files in background thread.
      */
@@ -87,15 +205,263 @@ final class VoNaLoggerImpl implements VoNaLogger {
      */
     private final AtomicBoolean mShouldProcessPendingLogsAndStop = new AtomicBoolean(false);
 
-    private final Integer mEntriesCountInSingleList;
+    /**
+     * Guarded by {@link #mProcessingSyncObject}. It might be changed by {@link #reconfigure(Reconfiguration)}
+     */
+    private int mEntriesCountInSingleList;
+
+    /**
+     * "0" means that the number of lists is not limited.
+     * See {@link VoNaLogger.Builder#setMaxPendingEntriesLists(int)}
+     * Guarded by {@link #mProcessingSyncObject}
+     */
+    private int mMaxPendingEntriesLists;
+
+    /**
+     * It's "null" if entries keep the parameters on java heap.
+     * See {@link VoNaLogger.Builder#setOffHeapEntrySlotSize(int)}
+     */
+    private final OffHeapEntryArena mOffHeapEntryArena;
+
+    /**
+     * Every thread that writes logs merges parameters into its own buffer before the lock is taken, so slow
+     * {@link Object#toString()} of one thread doesn't hold the others. It's used only if off heap entries are used.
+     */
+    private final ThreadLocal<LogOutputBuffer> mMergedParametersBuffers = new ThreadLocal<LogOutputBuffer>() {
+        @Override
+        protected LogOutputBuffer initialValue() {
+            LogOutputBuffer mergedParameters = new LogOutputBuffer(mOffHeapEntryArena.slotChars());
+            mergedParameters.setParamWriters(mParamWriters);
+            return mergedParameters;
+        }
+    };
+
+    /**
+     * It's true after a log was dropped because of capacity and until background thread returns the lists.
+     * Off heap entries are not merged before the lock while it's true, so parameters of the logs that are
+     * going to be dropped are not evaluated. It's changed under {@link #mProcessingSyncObject}
+     */
+    private volatile boolean mDroppingForCapacity;
+
+    /**
+     * Max size of all the files and the number of files. They are guarded by {@link #mWriteToFileSyncObject}
+     */
+    private long mLogFileMaxSize;
+    private int mLogFilesCount;
+
+    /**
+     * Sizes of {@link #mLogFiles} that are saved in {@link LogFilesMetadata}. Size of the current file is taken
+     * from {@link #mSegmentWriter}. Guarded by {@link #mWriteToFileSyncObject}
+     */
+    private long[] mLogFileSizes;
 
-    private final long mFileSizeMax;
+    /**
+     * See {@link VoNaLogger.Builder#setFastRestart(boolean)}
+     */
+    private final boolean mFastRestart;
+
+    /**
+     * Max size of a single file. It's used only by background thread.
+     */
+    private long mFileSizeMax;
 
     private final File mLogDir;
     private final String mLogFileName;
     private final Boolean mShowLogs;
 
-    private FileWriter mWriter;
+    private final boolean mLogTimestamps;
+    private final boolean mLogThreadIds;
+    private final boolean mLogSequenceNumbers;
+
+    /**
+     * Re-created on every initialization so timestamps are anchored to the current wall clock.
+     */
+    private LogTimestampFormatter.Clock mClock;
+
+    /**
+     * See {@link VoNaLogger.Builder#setTimestampClock(java.time.Clock)}
+     */
+    private final java.time.Clock mTimestampClock;
+
+    private final LogSegmentWriter mSegmentWriter;
+
+    /**
+     * Background thread encodes the batches here. Without multi process mode it's {@link #mSegmentWriter}.
+     * In multi process mode it's a separate writer that is never opened and is used only by background thread:
+     * batches are published to the ring and the file is written only by {@link #mSharedRingThread}.
+     */
+    private final LogSegmentWriter mBatchWriter;
+
+    /**
+     * This is true if logs are encrypted too, because encrypted logs are always written as frames.
+     */
+    private final boolean mCrashSafeMode;
+
+    /**
+     * See {@link VoNaLogger.Builder#setEncryptionKey(javax.crypto.SecretKey)}
+     */
+    private final boolean mEncrypted;
+
+    /**
+     * Every log entry gets a sequence number from here in {@link #writeLog(Object...)}.
+     * Numbers are taken under {@link #mProcessingSyncObject} so they are growing within the single logger.
+     * This might be shared between shards of {@link ShardedVoNaLogger}
+     */
+    private final AtomicLong mSequenceSource;
+
+    /**
+     * Sequence number of the last entry that was written to file. It's updated by background thread.
+     */
+    private volatile long mWrittenSequence;
+
+    /**
+     * Sequence number of the last entry that is synced to the storage device.
+     */
+    private final AtomicLong mSyncedSequence = new AtomicLong();
+
+    /**
+     * These are futures returned from {@link #writeDurableLog(Object...)}
+     */
+    private final SequenceWaiters mSyncWaiters = new SequenceWaiters();
+
+    /**
+     * Sequence number of the last entry that was put into {@link #mCurrentLogEntryList} by this logger.
+     * Guarded by {@link #mProcessingSyncObject}
+     */
+    private long mLastPutSequence;
+
+    /**
+     * Sequence number of the last entry that has to be synced because of {@link #flush()}
+     */
+    private final AtomicLong mFlushSequence = new AtomicLong();
+
+    /**
+     * Sequence number of the last flush that background thread has started to sync. It's used only by background thread.
+     */
+    private long mScheduledFlushSequence;
+
+    /**
+     * This executor periodically syncs the current file to the storage device.
+     * It's "null" if sync interval is not specified. It might be created later by {@link #reconfigure(Reconfiguration)}
+     */
+    private volatile ScheduledExecutorService mSyncThread;
+
+    /**
+     * Periodic task of {@link #mSyncThread}. It's replaced when sync interval is changed.
+     */
+    private ScheduledFuture<?> mSyncTask;
+
+    /**
+     * These are "null" if neither total disk budget nor max age of the files is specified.
+     * See {@link VoNaLogger.Builder#setTotalDiskBudget(long)}
+     */
+    private final LogRetention mRetention;
+    private final ScheduledExecutorService mRetentionThread;
+
+    /**
+     * Many requests that come before the retention thread started removing files are handled by a single run.
+     */
+    private final AtomicBoolean mRetentionRequested = new AtomicBoolean();
+
+    /**
+     * These are "null" if multi process mode is not enabled. See {@link SharedLogRing}
+     * Background thread puts rendered batches to the ring. Shared ring thread tries to become the writer and,
+     * if it is, writes the batches of all the processes to the log files.
+     */
+    private final SharedLogRing mSharedRing;
+    private final ScheduledExecutorService mSharedRingThread;
+    private ScheduledFuture<?> mSharedRingTask;
+
+    /**
+     * These are used only by {@link #mSharedRingThread}
+     */
+    private boolean mElectedWriter;
+    private ByteBuffer mDrainedBatches;
+
+    /**
+     * Position of the ring after the last batch of this process. It's used only by background thread and
+     * by {@link #mSharedRingThread} after background thread finished.
+     */
+    private long mLastPublishedPosition;
+
+    /**
+     * Changes that are waiting to be applied by background thread. See {@link #applyReconfigurations()}
+     */
+    private final Queue<PendingReconfiguration> mReconfigurations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * All the entries from the list are rendered into this buffer and then written to file at once.
+     * It's used only by background thread.
+     */
+    private final LogOutputBuffer mOutputBuffer = new LogOutputBuffer();
+
+    private final LogTimestampFormatter mTimestampFormatter = new LogTimestampFormatter();
+
+    /**
+     * It's "null" if diagnostics are not collected.
+     * See {@link VoNaLogger.Builder#setCollectDiagnostics(boolean)}
+     */
+    private final LoggerPhaseRecorder mPhaseRecorder;
+
+    /**
+     * See {@link VoNaLogger.Builder#registerParamWriter(Class, ParamWriter)}
+     */
+    private final ParamWriterRegistry mParamWriters;
+
+    /**
+     * It's "null" if logs are not rate limited. It's shared between shards.
+     * See {@link VoNaLogger.Builder#setRateLimit(int, int)}
+     */
+    private final LogRateLimiter mRateLimiter;
+
+    /**
+     * It's "null" if call sites are not sampled. It's shared between shards.
+     * See {@link VoNaLogger.Builder#setCallSiteSampling(int)}
+     */
+    private final CallSiteSampler mCallSiteSampler;
+
+    /**
+     * It's "null" if stack traces are not deduplicated. It's used only by background thread.
+     * See {@link VoNaLogger.Builder#setDeduplicateStackTraces(boolean)}
+     */
+    private final StackTraceCache mStackTraceCache;
+
+    /**
+     * See {@link VoNaLogger.Builder#setOutputFormat(LogOutputFormat)}
+     */
+    private final LogOutputFormat mOutputFormat;
+
+    /**
+     * See {@link VoNaLogger.Builder#setEvaluateLogArgsEagerly(boolean)}
+     */
+    private final boolean mEvaluateLogArgsEagerly;
+
+    /**
+     * See {@link VoNaLogger.Builder#setCollapseRepeatedLogs(boolean)}
+     */
+    private final boolean mCollapseRepeatedLogs;
+
+    /**
+     * These buffers are used only by background thread when repeated logs are collapsed.
+     * Parameters of the entry are rendered into {@link #mEntryParameters} and compared with the ones of the
+     * last written entry. If they differ the buffers are swapped.
+     */
+    private LogOutputBuffer mEntryParameters;
+    private LogOutputBuffer mPreviousParameters;
+    private boolean mHasPreviousParameters;
+
+    /**
+     * How many entries after the last written one had the same parameters and were not written.
+     */
+    private int mRepeatedLogsCount;
+
+    /**
+     * Index of the current file. It's "null" if segment index is not enabled.
+     * See {@link VoNaLogger.Builder#setSegmentIndexInterval(int)}
+     */
+    private final SegmentIndex mSegmentIndex;
+
+    private final int mSegmentIndexInterval;
 
     private File[] mLogFiles;
 
@@ -134,10 +500,11 @@ final class VoNaLoggerImpl implements VoNaLogger {
 
                 try {
 
-                    List<LogEntry> listOfEntriesToProcess = null;
+                    boolean idle = false;
+                    int idleSignals = 0;
 
                     synchronized (mProcessingSyncObject) {
-                        if (mProcessingEntries.isEmpty()) {
+                        if (mProcessingEntries.isEmpty() && mCriticalProcessingEntries.isEmpty()) {
                             try {
 
                                 if(mShouldProcessPendingLogsAndStop.get()){
@@ -149,8 +516,15 @@ final class VoNaLoggerImpl implements VoNaLogger {
 
                                     if(!mTerminated.get()){
 
-                                        if (mShowLogs) System.out.println("ProcessingRunnable, wait");
-                                        mProcessingSyncObject.wait();
+                                        if (!isFlushPending() && mReconfigurations.isEmpty()) {
+                                            if (shouldBlockWhileIdle()) {
+                                                if (mShowLogs) System.out.println("ProcessingRunnable, wait");
+                                                waitForLogs();
+                                            } else {
+                                                idle = true;
+                                                idleSignals = mWakeUpSignals;
+                                            }
+                                        }
 
                                     } else {
                                         if (mShowLogs) System.out.println("ProcessingRunnable, it's terminated. break");
@@ -163,15 +537,26 @@ final class VoNaLoggerImpl implements VoNaLogger {
                             }
                         } else {
 //                            if (mShowLogs) System.out.println("ProcessingRunnable, mProcessingEntries " + mProcessingEntries);
-                            listOfEntriesToProcess = mProcessingEntries.poll();
+                            takeListsToProcess();
+                            mIdleTries = 0;
                         }
                     }
 
-                    if(listOfEntriesToProcess != null){
-                        writeEntriesToFile(listOfEntriesToProcess);
-                        returnTheListForLogging(listOfEntriesToProcess);
+                    if (idle) {
+                        // the lock is released, so logs can be added while background thread is idle
+                        idleWithoutBlocking(idleSignals);
                     }
 
+                    if(!mGatheredLists.isEmpty()){
+                        boolean hasCriticalList = writeGatheredListsToFile();
+                        returnTheListsForLogging();
+                        if (hasCriticalList && mSyncCriticalLogs) {
+                            syncCriticalLogs();
+                        }
+                    }
+                    syncIfFlushRequested();
+                    applyReconfigurations();
+
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -183,28 +568,160 @@ final class VoNaLoggerImpl implements VoNaLogger {
         }
     };
 
+    /**
+     * This runnable is executed periodically by {@link #mSyncThread}.
+     *
+     * Background thread is not blocked while the file is synced: it continues writing new entries to the same file.
+     * That's why only entries that were written before the sync started are marked as synced.
+     */
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendCurrentLogsForProcessing();
+
+            // sequence has to be read before the channel. See syncCurrentFileBeforeClosing
+            long writtenSequence = mWrittenSequence;
+            if (writtenSequence <= mSyncedSequence.get()) {
+                return;
+            }
+
+            FileChannel channel = mSegmentWriter.channel();
+            if (channel == null) {
+                return;
+            }
+
+            try {
+                forceChannel(channel);
+                markSynced(writtenSequence);
+            } catch (ClosedChannelException e) {
+                if (mShowLogs) System.out.println("SyncRunnable, file was closed and synced by background thread");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
     /**
      * Constructor that creates single thread executor for logging to file.
      */
-    VoNaLoggerImpl(File logDir, String logFileName, long fileSizeMax, Integer entriesList, Boolean showLogs) throws IOException {
+    VoNaLoggerImpl(VoNaLoggerConfig config) throws IOException {
         mBackgroundThread = Executors.newSingleThreadExecutor();
-        mFileSizeMax = fileSizeMax / LOG_FILES_COUNT;
+        mLogFilesCount = config.logFilesCount > 0 ? config.logFilesCount : DEFAULT_LOG_FILES_COUNT;
+        mLogFileMaxSize = config.logFileMaxSize;
+        mFileSizeMax = mLogFileMaxSize / mLogFilesCount;
 
-        mLogDir = logDir;
-        mLogFileName = logFileName;
+        mLogDir = config.logDir;
+        mLogFileName = config.logFileName;
 
-        if (entriesList != null) {
-            mEntriesCountInSingleList = entriesList;
+        if (config.minimumEntriesCount != null) {
+            mEntriesCountInSingleList = config.minimumEntriesCount;
         } else {
             mEntriesCountInSingleList = DEFAULT_ENTRIES_COUNT_IN_SINGLE_LIST;
         }
 
-        if(showLogs != null){
-            mShowLogs = showLogs;
+        mMaxPendingEntriesLists = config.maxPendingEntriesLists;
+
+        if (config.offHeapEntrySlotSize > 0) {
+            mOffHeapEntryArena = new OffHeapEntryArena(config.offHeapEntrySlotSize);
+        } else {
+            mOffHeapEntryArena = null;
+        }
+
+        if(config.showLogs != null){
+            mShowLogs = config.showLogs;
         } else {
             mShowLogs = SHOW_LOGS;
         }
 
+        // index searches entries by the timestamps that are written to file
+        mLogTimestamps = config.logTimestamps || config.segmentIndexInterval > 0;
+        mTimestampClock = config.timestampClock;
+        mLogThreadIds = config.logThreadIds;
+        mLogSequenceNumbers = config.logSequenceNumbers;
+
+        mSegmentIndexInterval = config.segmentIndexInterval;
+        if (mSegmentIndexInterval > 0) {
+            mSegmentIndex = new SegmentIndex(
+                    (mLogSequenceNumbers ? 1 : 0) + 1 + (mLogThreadIds ? 1 : 0),
+                    mLogSequenceNumbers ? 1 : 0,
+                    config.indexFirstParameterTokens);
+        } else {
+            mSegmentIndex = null;
+        }
+
+        if (config.sequenceSource != null) {
+            mSequenceSource = config.sequenceSource;
+        } else {
+            mSequenceSource = new AtomicLong();
+        }
+
+        mRateLimiter = config.rateLimiter;
+        mCallSiteSampler = config.callSiteSampler;
+
+        mParamWriters = config.paramWriters != null ? config.paramWriters : ParamWriterRegistry.DEFAULT;
+        mOutputBuffer.setParamWriters(mParamWriters);
+
+        mStackTraceCache = config.deduplicateStackTraces ? new StackTraceCache() : null;
+        mOutputBuffer.setStackTraceCache(mStackTraceCache);
+
+        if (config.collectDiagnostics) {
+            mPhaseRecorder = new LoggerPhaseRecorder(mLogFileName);
+        } else {
+            mPhaseRecorder = null;
+        }
+
+        mOutputFormat = config.outputFormat != null ? config.outputFormat : LogOutputFormat.TEXT;
+
+        mEvaluateLogArgsEagerly = config.evaluateLogArgsEagerly;
+
+        mCollapseRepeatedLogs = config.collapseRepeatedLogs;
+        if (mCollapseRepeatedLogs) {
+            mEntryParameters = new LogOutputBuffer(DEFAULT_PARAMETERS_CAPACITY);
+            mEntryParameters.setParamWriters(mParamWriters);
+            mEntryParameters.setStackTraceCache(mStackTraceCache);
+            mPreviousParameters = new LogOutputBuffer(DEFAULT_PARAMETERS_CAPACITY);
+            mPreviousParameters.setParamWriters(mParamWriters);
+            mPreviousParameters.setStackTraceCache(mStackTraceCache);
+        }
+
+        mEncrypted = config.encryptionKey != null;
+        mCrashSafeMode = config.crashSafeMode || mEncrypted;
+        mFastRestart = config.fastRestart;
+        mSyncCriticalLogs = config.syncCriticalLogs;
+        mWaitStrategy = config.waitStrategy != null ? config.waitStrategy : WriterWaitStrategy.BLOCKING;
+        mSegmentWriter = new LogSegmentWriter(Charset.defaultCharset(), config.crashSafeMode, config.encryptionKey);
+
+        if (config.syncIntervalMillis > 0) {
+            scheduleSync(config.syncIntervalMillis);
+        }
+
+        if (config.totalDiskBudget > 0 || config.maxLogAgeMillis > 0) {
+            mRetention = new LogRetention(mLogDir, mLogFileName, logsFileName(mLogFileName, 0),
+                    config.totalDiskBudget, config.maxLogAgeMillis);
+            mRetentionThread = Executors.newSingleThreadScheduledExecutor();
+            if (config.maxLogAgeMillis > 0) {
+                // files become too old even if nothing is written
+                long checkInterval = Math.min(config.maxLogAgeMillis, MAX_RETENTION_CHECK_INTERVAL_MILLIS);
+                mRetentionThread.scheduleWithFixedDelay(mRetentionRunnable, checkInterval, checkInterval,
+                        TimeUnit.MILLISECONDS);
+            }
+        } else {
+            mRetention = null;
+            mRetentionThread = null;
+        }
+
+        if (config.multiProcessMode) {
+            createDirectoryIfNeeded(mLogDir);
+            mSharedRing = new SharedLogRing(new File(mLogDir, mLogFileName + SharedLogRing.RING_FILE_SUFFIX),
+                    SHARED_RING_CAPACITY);
+            mSharedRingThread = Executors.newSingleThreadScheduledExecutor();
+            mBatchWriter = new LogSegmentWriter(Charset.defaultCharset(), config.crashSafeMode, config.encryptionKey);
+        } else {
+            mSharedRing = null;
+            mSharedRingThread = null;
+            mBatchWriter = mSegmentWriter;
+        }
+
         createCurrentListOfEntries();
         initializeVoNaLogger(mLogDir, mLogFileName);
     }
@@ -227,9 +744,23 @@ final class VoNaLoggerImpl implements VoNaLogger {
             mShouldProcessPendingLogsAndStop.set(false);
             mTerminated.set(false);
 
-            prepareLogFiles(logDir, logFileName, LOG_FILES_COUNT);
-            createFileWriter();
+            mClock = new LogTimestampFormatter.Clock(mTimestampClock);
+
+            if (mSharedRing != null) {
+                // files are opened when this process becomes the writer. See drainSharedRing
+                prepareLogFiles(logDir, logFileName, mLogFilesCount);
+                mSharedRingTask = mSharedRingThread.scheduleWithFixedDelay(mSharedRingRunnable, 0,
+                        SHARED_RING_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } else if (!resumeFromFilesMetadata(logDir, logFileName)) {
+                prepareLogFiles(logDir, logFileName, mLogFilesCount);
+                if (mCrashSafeMode) {
+                    recoverCurrentFile();
+                }
+                createFileWriter();
+            }
+            loadCurrentSegmentIndex();
             initializeBackgroundThreadLogger();
+            requestRetention();
         } else {
             throw new IllegalStateException("VoNaLogger is not terminated. Please call stopLoggingAndGetLogFilesSync before calling this method");
         }
@@ -237,464 +768,1759 @@ final class VoNaLoggerImpl implements VoNaLogger {
         if (mShowLogs) System.out.println("<< initializeVoNaLogger");
     }
 
-    @Override
-    public void initVoNaLoggerAfterStopping() throws IOException {
-        if (mShowLogs) System.out.println("initVoNaLoggerAfterStopping");
-
-        initializeVoNaLogger(mLogDir, mLogFileName);
-    }
+    /**
+     * Files are taken from {@link LogFilesMetadata} without checking every one of them. Only the size of the current
+     * file is compared with the saved one. If the logger was not stopped properly the current file was changed
+     * after metadata was saved, so the files are prepared as usual.
+     *
+     * @return true if the current file is opened for writing.
+     */
+    private boolean resumeFromFilesMetadata(File logDir, String logFileName) throws IOException {
+        if (!mFastRestart) {
+            return false;
+        }
+        LogFilesMetadata metadata = LogFilesMetadata.readFrom(LogFilesMetadata.metadataFileFor(logDir, logFileName));
+        if (mShowLogs) System.out.println("resumeFromFilesMetadata, metadata " + metadata);
+        if (metadata == null) {
+            return false;
+        }
 
-    private void writeEntriesToFile(List<LogEntry> listOfEntriesToProcess) throws IOException {
-        if (mShowLogs) System.out.println(">> writeEntriesToFile listOfEntriesToProcess " + listOfEntriesToProcess);
-        synchronized (mWriteToFileSyncObject){
-            // check if the current file is overfilled
-            File current = currentFile();
+        // the last sequence is valid even if the files changed after it was saved
+        long sequence;
+        do {
+            sequence = mSequenceSource.get();
+        } while (sequence < metadata.lastSequence() && !mSequenceSource.compareAndSet(sequence, metadata.lastSequence()));
 
-            if (mShowLogs) {
-                System.out.println("writeEntriesToFile, file length " + current.length());
-                System.out.println("writeEntriesToFile, mFileSizeMax " + mFileSizeMax);
-            }
+        if (metadata.filesCount() != mLogFilesCount || metadata.isCrashSafeMode() != mCrashSafeMode
+                || metadata.isEncrypted() != mEncrypted) {
+            return false;
+        }
 
-            if (current.length() >= mFileSizeMax) {
+        File[] logFiles = metadata.files(logDir);
+        mSegmentWriter.open(logFiles[0], true);
+        if (mSegmentWriter.size() != metadata.currentFileSize()) {
+            mSegmentWriter.close();
+            return false;
+        }
 
-                if (mShowLogs)
-                    System.out.println("writeToFile, rotating, current " + current.length() + ", single " + mFileSizeMax);
+        mLogFiles = logFiles;
+        mLogFileSizes = metadata.fileSizes();
+        onNewFile();
+        return true;
+    }
 
-                rotateFiles();
-            }
-            for (LogEntry logEntry : listOfEntriesToProcess) {
+    /**
+     * Metadata is saved only with fast restart: {@link VoNaLogger.Builder#setFastRestart(boolean)}
+     */
+    private void saveFilesMetadata() throws IOException {
+        if (!mFastRestart || !mSegmentWriter.isOpen()) {
+            return;
+        }
+        mLogFileSizes[0] = mSegmentWriter.size();
+        LogFilesMetadata.writeTo(LogFilesMetadata.metadataFileFor(mLogDir, mLogFileName),
+                mLogFiles, mLogFileSizes, mWrittenSequence, mCrashSafeMode, mEncrypted);
+    }
 
-                if(logEntry.isEntryFilledWithData()){
-                    String text = logEntry.getMergedStringAndClean();
-                    mWriter.append(text);
-                    mWriter.append("\n");
-                } else {
-                    if (mShowLogs) System.out.println("writeEntriesToFile, found empty logEntry. Probably it wasn't filled yet.");
-                    break;
-                }
-            }
-            mWriter.flush();
+    /**
+     * If the process died while writing a batch the current file might end with a broken frame.
+     * It is cut off here so new frames are appended right after the last valid one.
+     *
+     * If the current file was not written in crash safe mode it is rotated instead, so no logs are removed.
+     * The same happens if the current file is encrypted and the logs are not or vice versa.
+     */
+    private void recoverCurrentFile() throws IOException {
+        File current = currentFile();
+        long length = current.length();
+        long validLength = LogSegmentWriter.recoverFramedFile(current, mEncrypted);
+
+        if (mShowLogs) System.out.println("recoverCurrentFile, validLength " + validLength);
+
+        if (validLength < 0) {
+            shiftFiles();
+        } else if (validLength < length) {
+            // offsets in the index might point to the removed part
+            deleteIfExists(SegmentIndex.indexFileFor(current));
         }
-        if (mShowLogs) System.out.println("<< writeEntriesToFile");
     }
 
     /**
-     * We have multiple files in order to implement circular writing.
-     * This method rotates them in this way.
-     * <p>
-     * 1. log1 _
-     *          \
-     *           -> log2
-     * 2. log2 _
-     *          \
-     *           -> log3
-     * 3. log3 _
-     *          \
-     *           -> removed
-     * <p>
-     *
-     * 4. empty "log1" created. From this moment empty log1 is "current file".
+     * Index of the current file is saved only when file is rotated or logger is stopped.
+     * If the file was changed after that, the index cannot be used and the whole file will be searched.
      */
-    private File rotateFiles() throws IOException {
-        if (mShowLogs) System.out.println("rotateFiles");
+    private void loadCurrentSegmentIndex() throws IOException {
+        if (mSegmentIndex == null) {
+            return;
+        }
+        mSegmentIndex.reset();
 
-        mWriter.close();
+        long currentLength = mSegmentWriter.size();
+        if (currentLength == 0) {
+            return;
+        }
 
-        for (int i = LOG_FILES_COUNT - 1; i >= 1; --i) {
-            rename(mLogFiles[i - 1], mLogFiles[i]);
+        SegmentIndex savedIndex = SegmentIndex.readFrom(SegmentIndex.indexFileFor(currentFile()));
+        if (savedIndex != null && savedIndex.isCompatible(mSegmentIndex) && savedIndex.indexedLength() == currentLength) {
+            mSegmentIndex.copyFrom(savedIndex);
+        } else {
+            mSegmentIndex.markUnindexedContent();
         }
-        File file = currentFile();
-        createNewFile(file);
+        if (mShowLogs) System.out.println("loadCurrentSegmentIndex, savedIndex " + savedIndex);
+    }
 
-        mWriter = new FileWriter(file, false);
+    /**
+     * Index is saved next to the current file. See {@link SegmentIndex}
+     */
+    private void saveCurrentSegmentIndex() throws IOException {
+        if (mSegmentIndex != null && mSegmentWriter.isOpen()) {
+            mSegmentIndex.writeTo(SegmentIndex.indexFileFor(currentFile()), mSegmentWriter.size());
+        }
+    }
 
-        return file;
+    @Override
+    public void initVoNaLoggerAfterStopping() throws IOException {
+        if (mShowLogs) System.out.println("initVoNaLoggerAfterStopping");
+
+        initializeVoNaLogger(mLogDir, mLogFileName);
     }
 
-    private void performFlush() {
-        if (mShowLogs) System.out.println(">> performFlush");
+    /**
+     * All the lists are encoded into separate buffers and written with a single gathering write. If the current file
+     * is overfilled in the middle, the lists before that are written to it and the rest go to the new file.
+     *
+     * @return true if one of the lists is critical.
+     */
+    private boolean writeGatheredListsToFile() throws IOException {
+        if (mSharedRing != null) {
+            return publishGatheredListsToSharedRing();
+        }
+        boolean hasCriticalList = false;
+        synchronized (mWriteToFileSyncObject) {
+            for (int index = 0; index < mGatheredLists.size(); index++) {
+                appendEntriesToFile(mGatheredLists.get(index));
+                hasCriticalList |= mGatheredCriticalLists[index];
+            }
 
-        try {
-            mWriter.close();
-            mWriter = null;
-        } catch (IOException e) {
-            e.printStackTrace();
+            long writeStart = mPhaseRecorder != null ? System.nanoTime() : 0;
+
+            mSegmentWriter.flush();
+
+            if (mPhaseRecorder != null) {
+                mPhaseRecorder.recordSince(LoggerPhase.WRITE, writeStart);
+            }
         }
-        if (mShowLogs) System.out.println("<< performFlush");
+        return hasCriticalList;
     }
 
     /**
-     * This will terminate writing to files immediately.
-     * If some logs are pending for writing to file they migh not be written to file.
+     * In multi process mode every list is a separate batch, so it's never bigger than the ring. Background thread
+     * doesn't touch the files, so it doesn't take {@link #mWriteToFileSyncObject} here. See {@link #mBatchWriter}
+     *
+     * @return true if one of the lists is critical.
      */
-    @Override
-    public File[] stopLoggingAndGetLogFilesSync() {
-        if (mShowLogs) System.out.println(">> stopLoggingAndGetLogFilesSync");
+    private boolean publishGatheredListsToSharedRing() throws IOException {
+        boolean hasCriticalList = false;
+        for (int index = 0; index < mGatheredLists.size(); index++) {
+            appendEntriesToFile(mGatheredLists.get(index));
+            hasCriticalList |= mGatheredCriticalLists[index];
+            publishToSharedRing();
+        }
+        return hasCriticalList;
+    }
 
-        if(mShouldProcessPendingLogsAndStop.get() || mTerminated.get()){
-            throw new IllegalStateException("stopLoggingAndGetLogFilesSync, already stopped");
+    /**
+     * If the ring is full background thread waits until the writer takes batches from it. Background thread
+     * doesn't hold {@link #mWriteToFileSyncObject} here, so shared ring thread of this process can take them
+     * when this process is the writer.
+     */
+    private void publishToSharedRing() throws IOException {
+        if (!mSharedRing.fits(mBatchWriter.pendingSize())) {
+            if (mShowLogs) System.out.println("publishToSharedRing, batch is bigger than the ring " + mBatchWriter.pendingSize());
+            mBatchWriter.discardPending();
+            return;
         }
 
-        final AtomicBoolean mSync = new AtomicBoolean(false);
-        /**
-         * Post the runnable that delivers logging files after writing to file is finished.
-         */
-        mBackgroundThread.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (mShowLogs) System.out.println("stopLoggingAndGetLogFilesSync >> run");
+        long position;
+        while ((position = mBatchWriter.publishTo(mSharedRing)) < 0) {
+            if (mTerminated.get()) {
+                mBatchWriter.discardPending();
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        if (position > 0) {
+            mLastPublishedPosition = position;
+        }
+    }
 
-                synchronized (mSync){
-                    mSync.set(true);
-                    mSync.notify();
-                }
+    private final Runnable mSharedRingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drainSharedRing();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        });
+        }
+    };
 
-        synchronized (mProcessingSyncObject) {
-            mTerminated.set(true);
-            mProcessingSyncObject.notify();
+    /**
+     * Called only by {@link #mSharedRingThread}
+     * If this process is not the writer yet it tries to become one. Only the writer opens, writes and rotates
+     * the log files. When it becomes the writer the current file is prepared again, because other processes
+     * could rotate the files before.
+     */
+    private void drainSharedRing() throws IOException {
+        if (!mElectedWriter) {
+            if (!mSharedRing.tryBecomeWriter()) {
+                return;
+            }
+            if (mShowLogs) System.out.println("drainSharedRing, this process is the writer");
+            mElectedWriter = true;
+            if (mDrainedBatches == null) {
+                mDrainedBatches = ByteBuffer.allocateDirect(mSharedRing.capacity());
+            }
+            synchronized (mWriteToFileSyncObject) {
+                prepareLogFiles(mLogDir, mLogFileName, mLogFilesCount);
+                if (mCrashSafeMode) {
+                    // previous writer might have died while writing a batch
+                    recoverCurrentFile();
+                }
+                createFileWriter();
+            }
         }
 
-        synchronized (mSync){
-            if(!mSync.get()){
-                try {
-                    mSync.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        while (true) {
+            synchronized (mWriteToFileSyncObject) {
+                if (mSegmentWriter.size() >= mFileSizeMax) {
+                    rotateFiles();
+                }
+                // all the batches that start before the current file is full are written at once
+                long readPosition = mSharedRing.peekTo(mDrainedBatches, mFileSizeMax - mSegmentWriter.size());
+                if (readPosition < 0) {
+                    break;
                 }
+                mSegmentWriter.write(mDrainedBatches);
+                // batches are removed from the ring only when they are in the file
+                mSharedRing.commitRead(readPosition);
             }
         }
-        if (mShowLogs) System.out.println("<< stopLoggingAndGetLogFilesSync, mTerminated " + mTerminated);
-        return mLogFiles;
     }
 
-    @Override
-    public File[] processPendingLogsStopAndGetLogFilesSync() {
-        if (mShowLogs) System.out.println(">> processPendingLogsStopAndGetLogFilesSync");
+    /**
+     * Called by background thread when it finishes. The writer writes all the batches that are in the ring and
+     * gives the files to the next process. Other process waits a bit until the writer takes its last batch.
+     */
+    private void finishSharedLogging() {
+        mSharedRingTask.cancel(false);
+        try {
+            mSharedRingThread.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    long deadline = System.currentTimeMillis() + SHARED_RING_STOP_TIMEOUT_MILLIS;
+                    drainSharedRing();
+                    while (!mElectedWriter && !mTerminated.get()
+                            && mSharedRing.readPosition() < mLastPublishedPosition
+                            && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(SHARED_RING_POLL_MILLIS);
+                        // the writer might have died
+                        drainSharedRing();
+                    }
 
-        if(mShouldProcessPendingLogsAndStop.get() || mTerminated.get()){
-            throw new IllegalStateException("processPendingLogsStopAndGetLogFilesSync, already stopped");
+                    if (mElectedWriter) {
+                        synchronized (mWriteToFileSyncObject) {
+                            syncCurrentFileBeforeClosing();
+                            mSegmentWriter.close();
+                        }
+                        mSharedRing.resignWriter();
+                        mElectedWriter = false;
+                    }
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
         }
+    }
 
-        final AtomicBoolean mSync = new AtomicBoolean(false);
-        /**
-         * Post the runnable that delivers logging files after writing to file is finished.
-         */
-        mBackgroundThread.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (mShowLogs) System.out.println("stopLoggingAndGetLogFilesSync >> run");
+    /**
+     * Renders the entries and appends them to {@link #mBatchWriter}. They are written by
+     * {@link #writeGatheredListsToFile()}
+     */
+    private void appendEntriesToFile(List<LogEntry> listOfEntriesToProcess) throws IOException {
+        if (mShowLogs) System.out.println(">> appendEntriesToFile listOfEntriesToProcess " + listOfEntriesToProcess);
+        // check if the current file is overfilled, appended lists are counted too
+        long currentLength = mBatchWriter.size();
 
-                synchronized (mSync){
-                    mSync.set(true);
-                    mSync.notify();
-                }
-            }
-        });
+        if (mShowLogs) {
+            System.out.println("appendEntriesToFile, file length " + currentLength);
+            System.out.println("appendEntriesToFile, mFileSizeMax " + mFileSizeMax);
+        }
 
-        synchronized (mProcessingSyncObject) {
-            mShouldProcessPendingLogsAndStop.set(true);
+        // in multi process mode files are rotated only by the writer. See drainSharedRing
+        if (mSharedRing == null && currentLength >= mFileSizeMax) {
 
-            flushCurrentLogs();
+            if (mShowLogs)
+                System.out.println("writeToFile, rotating, current " + currentLength + ", single " + mFileSizeMax);
 
-            mProcessingSyncObject.notify();
+            mSegmentWriter.flush();
+            rotateFiles();
+        }
+        LoggerEvents.BatchWrittenEvent batchEvent = null;
+        if (LoggerEvents.BATCH_WRITTEN.isEnabled()) {
+            batchEvent = new LoggerEvents.BatchWrittenEvent();
+            batchEvent.begin();
         }
 
-        synchronized (mSync){
-            if(!mSync.get()){
-                try {
-                    mSync.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        long encodeStart = mPhaseRecorder != null ? System.nanoTime() : 0;
+
+        mOutputBuffer.clear();
+
+        long lastSequence = 0;
+        int entriesCount = 0;
+
+        for (LogEntry logEntry : listOfEntriesToProcess) {
+
+            if(logEntry.isEntryFilledWithData()){
+                CallSiteSampler.CallSite callSite = logEntry.takeCallSite();
+
+                if (mSegmentIndex != null) {
+                    if (lastSequence == 0) {
+                        mSegmentIndex.onBatchStart(logEntry.getTimestampNanos(), mSegmentWriter.size(), mSegmentIndexInterval);
+                    }
+                    mSegmentIndex.onEntry(logEntry.getTimestampNanos());
+                }
+                lastSequence = logEntry.getSequence();
+                entriesCount++;
+
+                if (mCollapseRepeatedLogs) {
+                    mEntryParameters.clear();
+                    logEntry.appendMergedParametersAndClean(mEntryParameters, mOutputFormat);
+
+                    if (isRepeatedLog()) {
+                        mRepeatedLogsCount++;
+                        continue;
+                    }
+                    appendRepeatedLogsNote();
+                    swapParametersBuffers();
+                }
+
+                int entryStart = mOutputBuffer.length();
+                if (mOutputFormat == LogOutputFormat.JSON_LINES) {
+                    appendJsonEntryHeader(logEntry);
+                } else {
+                    appendEntryHeader(logEntry);
+                }
+
+                int parametersStart = mOutputBuffer.length();
+                if (mCollapseRepeatedLogs) {
+                    mOutputBuffer.append(mPreviousParameters.array(), 0, mPreviousParameters.length());
+                } else {
+                    logEntry.appendMergedParametersAndClean(mOutputBuffer, mOutputFormat);
+                }
+
+                if (mSegmentIndex != null && mSegmentIndex.indexesTokens()) {
+                    indexFirstParameterTokens(parametersStart);
+                }
+                if (mOutputFormat == LogOutputFormat.JSON_LINES) {
+                    JsonLineEncoder.closeObject(mOutputBuffer);
                 }
+                mOutputBuffer.append('\n');
+
+                if (callSite != null) {
+                    callSite.recordLength(mOutputBuffer.length() - entryStart);
+                }
+            } else {
+                if (mShowLogs) System.out.println("appendEntriesToFile, found empty logEntry. Probably it wasn't filled yet.");
+                break;
             }
         }
-        if (mShowLogs) System.out.println("<< processPendingLogsStopAndGetLogFilesSync, mTerminated " + mTerminated);
-        return mLogFiles;
+        // every batch tells how many logs were collapsed, so the count is not lost if the process dies
+        appendRepeatedLogsNote();
+
+        int bytesCount = mBatchWriter.append(mOutputBuffer);
+        if (mPhaseRecorder != null) {
+            mPhaseRecorder.recordSince(LoggerPhase.ENCODE, encodeStart);
+        }
+
+        if (batchEvent != null) {
+            batchEvent.end();
+            if (batchEvent.shouldCommit()) {
+                batchEvent.logFileName = mLogFileName;
+                batchEvent.entriesCount = entriesCount;
+                batchEvent.bytes = bytesCount;
+                batchEvent.commit();
+            }
+        }
+
+        if (mShowLogs) System.out.println("<< appendEntriesToFile");
     }
 
-    @Override
-    public void stopLoggingAndGetLogFiles(final GetFilesCallback filesCallback) {
-        if (mShowLogs) System.out.println(">> stopLoggingAndGetLogFilesSync");
+    /**
+     * @return true if parameters of the current entry are the same as the ones of the last written entry.
+     */
+    private boolean isRepeatedLog() {
+        if (!mHasPreviousParameters || mEntryParameters.length() != mPreviousParameters.length()) {
+            return false;
+        }
+        char[] current = mEntryParameters.array();
+        char[] previous = mPreviousParameters.array();
+        for (int index = mEntryParameters.length() - 1; index >= 0; index--) {
+            if (current[index] != previous[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        if(mShouldProcessPendingLogsAndStop.get() || mTerminated.get()){
-            throw new IllegalStateException("stopLoggingAndGetLogFiles, already stopped");
+    private void swapParametersBuffers() {
+        LogOutputBuffer previous = mPreviousParameters;
+        mPreviousParameters = mEntryParameters;
+        mEntryParameters = previous;
+        mHasPreviousParameters = true;
+    }
+
+    /**
+     * Writes a line like this: "last message repeated 5 times" or {"repeated":5} in JSON lines format.
+     */
+    private void appendRepeatedLogsNote() {
+        if (mRepeatedLogsCount == 0) {
+            return;
+        }
+        if (mOutputFormat == LogOutputFormat.JSON_LINES) {
+            mOutputBuffer.append(JSON_REPEATED_LOGS_KEY);
+            mOutputBuffer.append(mRepeatedLogsCount);
+            mOutputBuffer.append('}').append('\n');
+        } else {
+            mOutputBuffer.append(REPEATED_LOGS_NOTE_START);
+            mOutputBuffer.append(mRepeatedLogsCount);
+            mOutputBuffer.append(REPEATED_LOGS_NOTE_END);
         }
+        mRepeatedLogsCount = 0;
+    }
 
-        if (filesCallback == null) {
-            throw new IllegalArgumentException("filesCallback cannot be null");
+    /**
+     * New file always starts with the full log, even if it repeats the last log of the previous file.
+     * Stack traces are written in full too.
+     */
+    private void onNewFile() {
+        mHasPreviousParameters = false;
+        if (mStackTraceCache != null) {
+            mStackTraceCache.onNewFile();
         }
+    }
 
-        /**
-         * Post the runnable that delivers logging files after writing to file is finished.
-         */
-        mBackgroundThread.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (mShowLogs) System.out.println("stopLoggingAndGetLogFilesSync >> run");
+    /**
+     * First parameter ends with the first tab sign or at the end of the entry
+     */
+    private void indexFirstParameterTokens(int parametersStart) {
+        char[] chars = mOutputBuffer.array();
+        int parametersEnd = mOutputBuffer.length();
 
-                filesCallback.onFilesReady(mLogFiles);
-            }
-        });
+        int firstParameterEnd = parametersStart;
+        while (firstParameterEnd < parametersEnd && chars[firstParameterEnd] != '\t') {
+            firstParameterEnd++;
+        }
+        mSegmentIndex.addTokens(chars, parametersStart, firstParameterEnd);
+    }
 
-        synchronized (mProcessingSyncObject) {
-            mTerminated.set(true);
-            mProcessingSyncObject.notify();
+    /**
+     * Header fields are written in the same order as in {@link #appendEntryHeader(LogEntry)}
+     */
+    private void appendJsonEntryHeader(LogEntry logEntry) {
+        mOutputBuffer.append('{');
+        if (mLogSequenceNumbers) {
+            mOutputBuffer.append(JSON_SEQUENCE_KEY);
+            mOutputBuffer.append(logEntry.getSequence());
+            mOutputBuffer.append(',');
         }
+        if (mLogTimestamps) {
+            mOutputBuffer.append(JSON_TIMESTAMP_KEY);
+            mOutputBuffer.append('"');
+            mTimestampFormatter.appendTimestamp(mOutputBuffer, logEntry.getTimestampNanos());
+            mOutputBuffer.append('"').append(',');
+        }
+        if (mLogThreadIds) {
+            mOutputBuffer.append(JSON_THREAD_KEY);
+            mOutputBuffer.append(logEntry.getThreadId());
+            mOutputBuffer.append(',');
+        }
+    }
 
-        if (mShowLogs) System.out.println("<< stopLoggingAndGetLogFilesSync, mTerminated " + mTerminated);
+    private void appendEntryHeader(LogEntry logEntry) {
+        if (mLogSequenceNumbers) {
+            mOutputBuffer.append(logEntry.getSequence());
+            mOutputBuffer.append('\t');
+        }
+        if (mLogTimestamps) {
+            mTimestampFormatter.appendTimestamp(mOutputBuffer, logEntry.getTimestampNanos());
+            mOutputBuffer.append('\t');
+        }
+        if (mLogThreadIds) {
+            mOutputBuffer.append(logEntry.getThreadId());
+            mOutputBuffer.append('\t');
+        }
     }
 
-    @Override
-    public void processPendingLogsStopAndGetLogFiles(final GetFilesCallback filesCallback) {
-        if (mShowLogs) System.out.println(">> processPendingLogsStopAndGetLogFiles");
+    /**
+     * We have multiple files in order to implement circular writing.
+     * This method rotates them in this way.
+     * <p>
+     * 1. log1 _
+     *          \
+     *           -> log2
+     * 2. log2 _
+     *          \
+     *           -> log3
+     * 3. log3 _
+     *          \
+     *           -> removed
+     * <p>
+     *
+     * 4. empty "log1" created. From this moment empty log1 is "current file".
+     */
+    private File rotateFiles() throws IOException {
+        if (mShowLogs) System.out.println("rotateFiles");
 
-        if(mShouldProcessPendingLogsAndStop.get() || mTerminated.get()){
-            throw new IllegalStateException("processPendingLogsStopAndGetLogFiles, already stopped");
+        long rotateStart = mPhaseRecorder != null ? System.nanoTime() : 0;
+
+        LoggerEvents.RotationEvent rotationEvent = null;
+        if (LoggerEvents.ROTATION.isEnabled()) {
+            rotationEvent = new LoggerEvents.RotationEvent();
+            rotationEvent.begin();
         }
+        long rotatedFileSize = mSegmentWriter.size();
 
-        if (filesCallback == null) {
-            throw new IllegalArgumentException("filesCallback cannot be null");
+        syncCurrentFileBeforeClosing();
+        saveCurrentSegmentIndex();
+        mSegmentWriter.close();
+
+        mLogFileSizes[0] = rotatedFileSize;
+        File file = shiftFiles();
+
+        mSegmentWriter.open(file, false);
+        onNewFile();
+
+        if (mSegmentIndex != null) {
+            mSegmentIndex.reset();
         }
+        saveFilesMetadata();
+        requestRetention();
 
-        /**
-         * Post the runnable that delivers logging files after writing to file is finished.
-         */
-        mBackgroundThread.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (mShowLogs) System.out.println("processPendingLogsStopAndGetLogFiles >> run");
-                filesCallback.onFilesReady(mLogFiles);
+        if (mPhaseRecorder != null) {
+            mPhaseRecorder.recordSince(LoggerPhase.ROTATE, rotateStart);
+        }
+
+        if (rotationEvent != null) {
+            rotationEvent.end();
+            if (rotationEvent.shouldCommit()) {
+                rotationEvent.logFileName = mLogFileName;
+                rotationEvent.rotatedFileSize = rotatedFileSize;
+                rotationEvent.commit();
             }
-        });
+        }
+        return file;
+    }
 
-        synchronized (mProcessingSyncObject) {
-            mShouldProcessPendingLogsAndStop.set(true);
+    /**
+     * Renames the files as described in {@link #rotateFiles()} and creates empty current file.
+     */
+    private File shiftFiles() throws IOException {
+        for (int i = mLogFiles.length - 1; i >= 1; --i) {
+            rename(mLogFiles[i - 1], mLogFiles[i]);
+            shiftSegmentIndex(mLogFiles[i - 1], mLogFiles[i]);
+            mLogFileSizes[i] = mLogFileSizes[i - 1];
+        }
+        mLogFileSizes[0] = 0;
+        File file = currentFile();
+        createNewFile(file);
+        return file;
+    }
 
-            flushCurrentLogs();
+    /**
+     * Index files are moved together with log files. Index of the removed file is removed too.
+     */
+    private void shiftSegmentIndex(File oldLogFile, File newLogFile) {
+        File oldIndex = SegmentIndex.indexFileFor(oldLogFile);
+        File newIndex = SegmentIndex.indexFileFor(newLogFile);
+        if (oldIndex.exists()) {
+            rename(oldIndex, newIndex);
+        } else {
+            deleteIfExists(newIndex);
+        }
+    }
 
-            mProcessingSyncObject.notify();
+    private void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            if (mShowLogs) System.out.println("deleteIfExists, failed to delete " + file);
+        }
+    }
+
+    private void performFlush() {
+        if (mShowLogs) System.out.println(">> performFlush");
+
+        if (mSharedRing != null) {
+            finishSharedLogging();
+        }
+
+        try {
+            synchronized (mWriteToFileSyncObject) {
+                syncCurrentFileBeforeClosing();
+                saveCurrentSegmentIndex();
+                saveFilesMetadata();
+                mSegmentWriter.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        /**
+         * Everything that was written is synced at this point. The rest will not be written.
+         */
+        mSyncWaiters.failAll(new IllegalStateException("VoNaLogger was stopped before the log was written"));
+
+        if (mShowLogs) System.out.println("<< performFlush");
+    }
+
+    /**
+     * Sync thread cannot sync a file after it's closed. That's why it's done here, on the thread that closes the file.
+     * Sync thread might be syncing the same file at the same time, which is fine.
+     *
+     * Without sync thread the file is synced only if somebody waits for {@link #flush()}
+     */
+    private void syncCurrentFileBeforeClosing() throws IOException {
+        if (!mSegmentWriter.isOpen()) {
+            return;
+        }
+        if (mSyncThread == null && mFlushSequence.get() <= mSyncedSequence.get()) {
+            return;
+        }
+        long writtenSequence = mWrittenSequence;
+        if (writtenSequence > mSyncedSequence.get()) {
+            forceChannel(mSegmentWriter.channel());
+            markSynced(writtenSequence);
+        }
+    }
+
+    private void forceChannel(FileChannel channel) throws IOException {
+        long syncStart = mPhaseRecorder != null ? System.nanoTime() : 0;
+
+        channel.force(false);
+
+        if (mPhaseRecorder != null) {
+            mPhaseRecorder.recordSince(LoggerPhase.SYNC, syncStart);
+        }
+    }
+
+    private void markSynced(long sequence) {
+        long synced;
+        do {
+            synced = mSyncedSequence.get();
+        } while (synced < sequence && !mSyncedSequence.compareAndSet(synced, sequence));
+
+        mSyncWaiters.completeUpTo(sequence);
+    }
+
+    /**
+     * Entries are sent to background thread only when the current list is filled.
+     * If there are not many logs they can stay in the current list for a long time, so the sync thread sends them
+     * for writing to file by itself.
+     */
+    private void sendCurrentLogsForProcessing() {
+        synchronized (mProcessingSyncObject) {
+            if (!mTerminated.get() && !mShouldProcessPendingLogsAndStop.get() && mCurrentItemIndex > 0) {
+                flushCurrentLogs();
+            }
+        }
+    }
+
+    /**
+     * This will terminate writing to files immediately.
+     * If some logs are pending for writing to file they migh not be written to file.
+     */
+    @Override
+    public File[] stopLoggingAndGetLogFilesSync() {
+        if (mShowLogs) System.out.println(">> stopLoggingAndGetLogFilesSync");
+
+        File[] logFiles = waitForLogFiles(stopLogging(false, "stopLoggingAndGetLogFilesSync"));
+
+        if (mShowLogs) System.out.println("<< stopLoggingAndGetLogFilesSync, mTerminated " + mTerminated);
+        return logFiles;
+    }
+
+    @Override
+    public File[] processPendingLogsStopAndGetLogFilesSync() {
+        if (mShowLogs) System.out.println(">> processPendingLogsStopAndGetLogFilesSync");
+
+        File[] logFiles = waitForLogFiles(stopLogging(true, "processPendingLogsStopAndGetLogFilesSync"));
+
+        if (mShowLogs) System.out.println("<< processPendingLogsStopAndGetLogFilesSync, mTerminated " + mTerminated);
+        return logFiles;
+    }
+
+    /**
+     * Callback is called by the thread that completes the future, not by the background thread.
+     * See {@link #stopLogging(boolean, String)}
+     */
+    @Override
+    public void stopLoggingAndGetLogFiles(final GetFilesCallback filesCallback) {
+        if (mShowLogs) System.out.println(">> stopLoggingAndGetLogFiles");
+
+        if (filesCallback == null) {
+            throw new IllegalArgumentException("filesCallback cannot be null");
+        }
+        deliverLogFiles(stopLogging(false, "stopLoggingAndGetLogFiles"), filesCallback);
+
+        if (mShowLogs) System.out.println("<< stopLoggingAndGetLogFiles, mTerminated " + mTerminated);
+    }
+
+    @Override
+    public void processPendingLogsStopAndGetLogFiles(final GetFilesCallback filesCallback) {
+        if (mShowLogs) System.out.println(">> processPendingLogsStopAndGetLogFiles");
+
+        if (filesCallback == null) {
+            throw new IllegalArgumentException("filesCallback cannot be null");
+        }
+        deliverLogFiles(stopLogging(true, "processPendingLogsStopAndGetLogFiles"), filesCallback);
+
+        if (mShowLogs) System.out.println("<< processPendingLogsStopAndGetLogFiles");
+    }
+
+    @Override
+    public CompletableFuture<File[]> stopLoggingAndGetLogFilesAsync() {
+        return stopLogging(false, "stopLoggingAndGetLogFilesAsync");
+    }
+
+    @Override
+    public CompletableFuture<File[]> processPendingLogsStopAndGetLogFilesAsync() {
+        return stopLogging(true, "processPendingLogsStopAndGetLogFilesAsync");
+    }
+
+    /**
+     * All the stop methods end up here.
+     *
+     * The runnable that completes the future is posted to background thread before it's stopped, so it runs after
+     * writing to file is finished. The future is completed with {@link CompletableFuture#completeAsync} so actions
+     * that depend on it are not called by the background thread.
+     *
+     * @param processPendingLogs - if "true" all the pending logs are written before stopping. Otherwise writing
+     *                           is terminated after the current list of entries.
+     */
+    private CompletableFuture<File[]> stopLogging(boolean processPendingLogs, String methodName) {
+        if(mShouldProcessPendingLogsAndStop.get() || mTerminated.get()){
+            throw new IllegalStateException(methodName + ", already stopped");
+        }
+
+        final CompletableFuture<File[]> logFilesFuture = new CompletableFuture<>();
+        /**
+         * Post the runnable that delivers logging files after writing to file is finished.
+         */
+        mBackgroundThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mShowLogs) System.out.println("stopLogging >> run");
+
+                logFilesFuture.completeAsync(new Supplier<File[]>() {
+                    @Override
+                    public File[] get() {
+                        return mLogFiles;
+                    }
+                });
+            }
+        });
+
+        synchronized (mProcessingSyncObject) {
+            if (processPendingLogs) {
+                mShouldProcessPendingLogsAndStop.set(true);
+
+                flushCurrentLogs();
+            } else {
+                mTerminated.set(true);
+            }
+            wakeUpBackgroundThread();
+        }
+        return logFilesFuture;
+    }
+
+    /**
+     * If the caller is interrupted log files are returned right away, before writing to file is finished.
+     * Interrupted status is kept so the caller can handle it.
+     */
+    private File[] waitForLogFiles(CompletableFuture<File[]> logFilesFuture) {
+        try {
+            return logFilesFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return mLogFiles;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void deliverLogFiles(CompletableFuture<File[]> logFilesFuture, final GetFilesCallback filesCallback) {
+        logFilesFuture.thenAccept(new Consumer<File[]>() {
+            @Override
+            public void accept(File[] logFiles) {
+                filesCallback.onFilesReady(logFiles);
+            }
+        });
+    }
+
+    /**
+     * The future is added to {@link #mSyncWaiters} so it's completed when the last log is synced, the same way as
+     * a future of {@link #writeDurableLog(Object...)}.
+     *
+     * Background thread syncs the file when the last log is written: {@link #syncIfFlushRequested()}
+     */
+    @Override
+    public CompletableFuture<Long> flush() {
+        CompletableFuture<Long> flushed;
+        synchronized (mProcessingSyncObject) {
+            if (mTerminated.get() || mShouldProcessPendingLogsAndStop.get()) {
+                CompletableFuture<Long> notFlushed = new CompletableFuture<>();
+                notFlushed.completeExceptionally(new IllegalStateException("flush, VoNaLogger is stopped"));
+                return notFlushed;
+            }
+
+            long sequence = mLastPutSequence;
+            if (sequence <= mSyncedSequence.get()) {
+                return CompletableFuture.completedFuture(sequence);
+            }
+
+            /**
+             * Future has to be added under the same lock that assigns the sequence numbers.
+             * See {@link SequenceWaiters}
+             */
+            flushed = mSyncWaiters.add(sequence);
+
+            long flushSequence;
+            do {
+                flushSequence = mFlushSequence.get();
+            } while (flushSequence < sequence && !mFlushSequence.compareAndSet(flushSequence, sequence));
+
+            if (mCurrentItemIndex > 0) {
+                flushCurrentLogs();
+            }
+            wakeUpBackgroundThread();
+        }
+
+        /**
+         * The future might be completed by background thread, so dependent actions are moved to another thread.
+         */
+        return completedOffBackgroundThread(flushed);
+    }
+
+    private static <T> CompletableFuture<T> completedOffBackgroundThread(CompletableFuture<T> future) {
+        return future.thenApplyAsync(Function.<T>identity());
+    }
+
+    /**
+     * Called by background thread after every list of entries and when it's woken up by {@link #flush()}.
+     *
+     * When the last flushed log is written the file is synced by the sync thread, so background thread continues
+     * writing. Without sync thread background thread syncs the file by itself.
+     */
+    private void syncIfFlushRequested() throws IOException {
+        if (!isFlushPending()) {
+            return;
+        }
+        mScheduledFlushSequence = mFlushSequence.get();
+
+        if (mSharedRing != null) {
+            // logs are in the shared ring. It's a file, so they are not lost if this process dies,
+            // and when it's forced they are not lost if the system crashes. The writer writes them to log file later
+            long writtenSequence = mWrittenSequence;
+            mSharedRing.force();
+            markSynced(writtenSequence);
+            return;
+        }
+
+        if (mSyncThread != null) {
+            mSyncThread.execute(mSyncRunnable);
+        } else {
+            synchronized (mWriteToFileSyncObject) {
+                long writtenSequence = mWrittenSequence;
+                if (mSegmentWriter.isOpen() && writtenSequence > mSyncedSequence.get()) {
+                    forceChannel(mSegmentWriter.channel());
+                    markSynced(writtenSequence);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush is pending when the last flushed log is written, but sync of the file is not started yet.
+     */
+    private boolean isFlushPending() {
+        long flushSequence = mFlushSequence.get();
+        return flushSequence > mScheduledFlushSequence && mWrittenSequence >= flushSequence;
+    }
+
+    /**
+     * May return "null" instead of files to the {@link GetFilesCallback#onFilesReady(File[])}
+     * if an error occured.
+     */
+    @Override
+    public File[] getLoggingFilesSnapShotSync() {
+        if (mShowLogs) System.out.println(">> getLoggingFilesSnapShotSync");
+
+        if(mShouldProcessPendingLogsAndStop.get() || mTerminated.get()){
+            throw new IllegalStateException("getLoggingFilesSnapShotSync, already stopped");
+        }
+        if(mSharedRing != null){
+            throw new IllegalStateException("getLoggingFilesSnapShotSync, files are shared with other processes");
+        }
+
+        LoggerEvents.SnapshotEvent snapshotEvent = null;
+        if (LoggerEvents.SNAPSHOT.isEnabled()) {
+            snapshotEvent = new LoggerEvents.SnapshotEvent();
+            snapshotEvent.begin();
+        }
+
+        File[] logFiles = null;
+        synchronized (mProcessingSyncObject) {
+            /**
+             * Background thread might be writing to the current file right now.
+             * Files cannot be renamed until it finishes.
+             */
+            synchronized (mWriteToFileSyncObject) {
+                try {
+                    syncCurrentFileBeforeClosing();
+                    saveCurrentSegmentIndex();
+                    mSegmentWriter.close();
+                    logFiles = createLogFilesSnapshot();
+                    prepareLogFiles(mLogDir, mLogFileName, mLogFilesCount);
+                    createFileWriter();
+                    loadCurrentSegmentIndex();
+                    saveFilesMetadata();
+
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if (snapshotEvent != null) {
+            snapshotEvent.end();
+            if (snapshotEvent.shouldCommit()) {
+                snapshotEvent.logFileName = mLogFileName;
+                snapshotEvent.filesCount = logFiles != null ? logFiles.length : 0;
+                snapshotEvent.commit();
+            }
+        }
+        if (mShowLogs) System.out.println("<< getLoggingFilesSnapShotSync");
+        return logFiles;
+    }
+
+
+    /**
+     * If file name is "VonaLogger_1.log" the snapshot file will be "VonaLogger_1_snapshot.log"
+     *
+     */
+    private File[] createLogFilesSnapshot() throws IOException {
+
+        File[] logFilesSnapshot = new File[mLogFiles.length];
+        for (int index = 0; index < mLogFiles.length; index++) {
+
+            String fileName = mLogFiles[index].getAbsolutePath();
+            String rawName = fileName.substring(0, fileName.length() - LOG_FILE_SUFIX.length());
+
+            File snapShotLogFile = new File(rawName + "_snapshot" + LOG_FILE_SUFIX);
+
+            createNewFile(snapShotLogFile);
+            logFilesSnapshot[index] = snapShotLogFile;
+
+            rename(mLogFiles[index], snapShotLogFile);
+            shiftSegmentIndex(mLogFiles[index], snapShotLogFile);
+        }
+
+        return logFilesSnapshot;
+    }
+
+    private void createFileWriter() throws IOException {
+        File file = currentFile();
+        mSegmentWriter.open(file, true);
+        onNewFile();
+    }
+
+    private void prepareLogFiles(File logDir, String name, int count) throws IOException {
+        if (mShowLogs)
+            System.out.println("prepareLogFiles, name[" + name + "], count " + count + ", logDir " + logDir);
+
+        createDirectoryIfNeeded(logDir);
+
+        File[] result = new File[count];
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; ++i) {
+            String fileName = logsFileName(name, i);
+            File file = new File(logDir, fileName);
+            boolean exists = file.exists();
+
+            if (mShowLogs)
+                System.out.println("prepareLogFiles, created " + exists + ", file " + fileName);
+
+            if (!exists) {
+                if(!file.createNewFile()){
+                    throw new IOException("file, " + file + ", is not created");
+                }
+            }
+            result[i] = file;
+            if (mFastRestart && exists) {
+                sizes[i] = file.length();
+            }
+        }
+        mLogFiles = result;
+        mLogFileSizes = sizes;
+    }
+
+    private String logsFileName(String name, int fileIndex) {
+        return name + "_" + fileIndex + LOG_FILE_SUFIX;
+    }
+
+    private void createDirectoryIfNeeded(File dir) throws IOException {
+        if (mShowLogs) System.out.println("createDirectoryIfNeeded, logDir " + dir);
+
+        if (dir.exists() && !dir.isDirectory()) {
+            boolean deleted = dir.delete();
+
+            if (mShowLogs) System.out.println("createDirectoryIfNeeded, deleted " + deleted);
+        }
+
+        boolean exists = dir.exists();
+        if (!exists) {
+            exists = dir.mkdirs();
+        }
+
+        if (mShowLogs) System.out.println("createDirectoryIfNeeded, exists " + exists);
+
+        if (!exists) {
+            throw new IOException("failed to create directory for logs");
+        }
+    }
+
+    /**
+     * This method has to be called under {@link #mProcessingSyncObject}
+     * Takes all the lists that are waiting, up to {@link #MAX_GATHERED_LISTS}, critical lists first.
+     */
+    private void takeListsToProcess() {
+        while (mGatheredLists.size() < MAX_GATHERED_LISTS
+                && !(mProcessingEntries.isEmpty() && mCriticalProcessingEntries.isEmpty())) {
+
+            List<LogEntry> listOfEntriesToProcess;
+            boolean isCriticalList = shouldTakeCriticalList();
+            if (isCriticalList) {
+                listOfEntriesToProcess = mCriticalProcessingEntries.poll();
+                mCriticalListsInRow++;
+                if (listOfEntriesToProcess == mCriticalTailList) {
+                    mCriticalTailList = null;
+                }
+            } else {
+                listOfEntriesToProcess = mProcessingEntries.poll();
+                mCriticalListsInRow = 0;
+            }
+            mGatheredCriticalLists[mGatheredLists.size()] = isCriticalList;
+            mGatheredLists.add(listOfEntriesToProcess);
+        }
+    }
+
+    private void returnTheListsForLogging() {
+        synchronized (mProcessingSyncObject) {
+            for (int index = 0; index < mGatheredLists.size(); index++) {
+                List<LogEntry> listOfEntriesToProcess = mGatheredLists.get(index);
+                // lists of the previous size are left for garbage collector. See applyReconfiguration
+                if (listOfEntriesToProcess.size() == mEntriesCountInSingleList) {
+                    if (mGatheredCriticalLists[index]) {
+                        mCriticalLoggingEntries.add(listOfEntriesToProcess);
+                    } else {
+                        mLoggingEntries.add(listOfEntriesToProcess);
+                    }
+                }
+            }
+            mWrittenSequence = writtenSequenceWatermark();
+            mDroppingForCapacity = false;
+        }
+        mGatheredLists.clear();
+    }
+
+    /**
+     * Critical entries are written before the regular entries that got smaller sequence numbers.
+     * So the entries are written up to the first entry that is still waiting in any of the queues.
+     * Futures of {@link #writeDurableLog(Object...)} and {@link #flush()} rely on that.
+     *
+     * Each queue is written in order, so only the first entry of every queue is checked.
+     */
+    private long writtenSequenceWatermark() {
+        long firstPendingSequence = Math.min(
+                firstSequence(mProcessingEntries.peek()),
+                firstSequence(mCriticalProcessingEntries.peek()));
+        if (mCurrentItemIndex > 0) {
+            firstPendingSequence = Math.min(firstPendingSequence, mCurrentLogEntryList.get(0).getSequence());
+        }
+        return firstPendingSequence == Long.MAX_VALUE ? mLastPutSequence : firstPendingSequence - 1;
+    }
+
+    private static long firstSequence(List<LogEntry> entries) {
+        if (entries == null || !entries.get(0).isEntryFilledWithData()) {
+            // empty list is sent for processing only when the logger is stopped, so it's the last one
+            return Long.MAX_VALUE;
+        }
+        return entries.get(0).getSequence();
+    }
+
+    private boolean shouldTakeCriticalList() {
+        return !mCriticalProcessingEntries.isEmpty()
+                && (mProcessingEntries.isEmpty() || mCriticalListsInRow < MAX_CRITICAL_LISTS_IN_ROW);
+    }
+
+    /**
+     * The file is synced by background thread right after critical entries are written, so they are on
+     * the storage device even if the sync thread is not specified or regular entries are far behind.
+     */
+    private void syncCriticalLogs() throws IOException {
+        synchronized (mWriteToFileSyncObject) {
+            if (mSegmentWriter.isOpen()) {
+                long writtenSequence = mWrittenSequence;
+                forceChannel(mSegmentWriter.channel());
+                markSynced(writtenSequence);
+            }
+        }
+    }
+
+    private void createNewFile(File file) throws IOException {
+        boolean exists = file.exists();
+        if (!exists) {
+            exists = file.createNewFile();
+
+            if(!exists){
+                throw new IOException("failed to create file " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * This method copies all the content from "old" to file with name "newPath".
+     * and removes the "old" file.
+     * <p>
+     * If "newPath" file exists it will be overridden.
+     */
+    private void rename(File old, File newPath) {
+        if (mShowLogs) {
+            System.out.println("rename " + old.getAbsolutePath() + " to " + newPath.getAbsolutePath());
+            System.out.println("rename >> old " + old + " newPath " + newPath);
+        }
+
+        boolean success = old.renameTo(newPath);
+
+        if (mShowLogs) {
+            System.out.println("rename success " + success);
+            System.out.println("rename << old " + old + " newPath " + newPath);
+            System.out.println("after renaming");
+
+            for (int index = 0; index < mLogFiles.length; index++) {
+                System.out.println("log file " + mLogFiles[index]);
+            }
+        }
+    }
+
+    /**
+     * This creates a list of Log Entries that are directly used when methods {@link #writeLog(Object...)} etc..
+     * are called.
+     */
+    private void createCurrentListOfEntries() {
+        if (mShowLogs) System.out.println(">> createCurrentListOfEntries");
+        mCurrentLogEntryList = createListOfEntries();
+
+        if (mShowLogs) System.out.println("<< createCurrentListOfEntries");
+    }
+
+    private List<LogEntry> createListOfEntries() {
+        if (mOffHeapEntryArena != null) {
+            return mOffHeapEntryArena.createEntries(mEntriesCountInSingleList);
+        }
+
+        List<LogEntry> singleLogEntries = new ArrayList<>(mEntriesCountInSingleList);
+        for (int index = 0; index < mEntriesCountInSingleList; index++) {
+            /**
+             * Add an empty log entry. It will be fetched and filled with data later
+             */
+            singleLogEntries.add(new LogEntry());
+        }
+        return singleLogEntries;
+    }
+
+    private void initializeBackgroundThreadLogger() {
+        mBackgroundThread.execute(mProcessingRunnable);
+    }
+
+    /**
+     * Returns "1" if successfully written
+     * Returns "0" if log wasn't written.
+     */
+    @Override
+    public int writeLog(Object... parameters) {
+        return writeLog((LogFields) null, parameters);
+    }
+
+    @Override
+    public int writeLog(Object parameter) {
+        return writeLog((LogFields) null, parameter);
+    }
+
+    @Override
+    public int writeLog(Object firstParameter, LogArg... lazyParameters) {
+        Object[] parameters = new Object[lazyParameters.length + 1];
+        parameters[0] = firstParameter;
+        System.arraycopy(lazyParameters, 0, parameters, 1, lazyParameters.length);
+        return writeLog((LogFields) null, parameters);
+    }
+
+    /**
+     * Returns "1" if successfully written
+     * Returns "0" if log wasn't written.
+     */
+    @Override
+    public int writeLog(LogFields fields, Object... parameters) {
+
+        if (mShowLogs) System.out.println(">> writeLog " + Arrays.toString(parameters));
+
+        CallSiteSampler.CallSite callSite = mCallSiteSampler != null ? mCallSiteSampler.sample() : null;
+        long callStart = callSite != null ? System.nanoTime() : 0;
+
+        if (mRateLimiter != null && !mRateLimiter.tryAcquire(parameters)) {
+            // suppressed logs don't take the lock and don't use a log entry
+            commitLogDroppedEvent(LoggerEvents.LogDroppedEvent.REASON_RATE_LIMIT);
+            if (mShowLogs) System.out.println("<< writeLog, rate limited");
+            return 0;
+        }
+
+        if (mEvaluateLogArgsEagerly) {
+            parameters = evaluateLazyParameters(parameters);
+        }
+
+        boolean measureLockWait = mPhaseRecorder != null && mPhaseRecorder.shouldSampleProducer();
+        long lockWaitStart = measureLockWait ? System.nanoTime() : 0;
+        long lockWaitNanos = 0;
+
+        LogOutputBuffer mergedParameters = mergeParametersBeforeLock(fields, parameters);
+
+        long sequence;
+        synchronized (mProcessingSyncObject) {
+            if (measureLockWait) {
+                lockWaitNanos = System.nanoTime() - lockWaitStart;
+            }
+            sequence = putLogEntry(fields, parameters, mergedParameters, callSite);
+        }
+        if (measureLockWait) {
+            mPhaseRecorder.record(LoggerPhase.PRODUCER_LOCK_WAIT, lockWaitNanos);
+        }
+        if (callSite != null && sequence != 0) {
+            callSite.recordLog(System.nanoTime() - callStart);
+        }
+        if (mShowLogs) System.out.println("<< writeLog, sequence " + sequence);
+        return sequence == 0 ? 0 : 1;
+    }
+
+    /**
+     * Rows are checked by the rate limiter and evaluated before the lock is taken. Under the lock sequence numbers
+     * are taken once for all the rows that fit into the current list and the entries are filled one after another.
+     */
+    @Override
+    public int writeLogs(Object[][] rows) {
+        if (rows == null) {
+            throw new IllegalArgumentException("rows cannot be null");
+        }
+        if (mShowLogs) System.out.println(">> writeLogs, rows " + rows.length);
+
+        Object[][] acceptedRows = rows;
+        int acceptedCount = rows.length;
+        if (mRateLimiter != null || mEvaluateLogArgsEagerly) {
+            acceptedRows = new Object[rows.length][];
+            acceptedCount = 0;
+            for (Object[] row : rows) {
+                if (mRateLimiter != null && !mRateLimiter.tryAcquire(row)) {
+                    commitLogDroppedEvent(LoggerEvents.LogDroppedEvent.REASON_RATE_LIMIT);
+                    continue;
+                }
+                acceptedRows[acceptedCount++] = mEvaluateLogArgsEagerly ? evaluateLazyParameters(row) : row;
+            }
+        }
+
+        int[] mergedRowEnds = mergeRowsBeforeLock(acceptedRows, acceptedCount);
+
+        int writtenCount;
+        synchronized (mProcessingSyncObject) {
+            writtenCount = putLogEntries(acceptedRows, acceptedCount, mergedRowEnds);
+        }
+        if (mShowLogs) System.out.println("<< writeLogs, written " + writtenCount);
+        return writtenCount;
+    }
+
+    /**
+     * Critical logs are not rate limited and are not dropped because of capacity.
+     */
+    @Override
+    public int writeCriticalLog(Object... parameters) {
+
+        if (mShowLogs) System.out.println(">> writeCriticalLog " + Arrays.toString(parameters));
+
+        CallSiteSampler.CallSite callSite = mCallSiteSampler != null ? mCallSiteSampler.sample() : null;
+        long callStart = callSite != null ? System.nanoTime() : 0;
+
+        if (mEvaluateLogArgsEagerly) {
+            parameters = evaluateLazyParameters(parameters);
+        }
+
+        LogOutputBuffer mergedParameters = mergeParametersBeforeLock(null, parameters);
+
+        long sequence;
+        synchronized (mProcessingSyncObject) {
+            sequence = putCriticalLogEntry(parameters, mergedParameters, callSite);
+        }
+        if (callSite != null && sequence != 0) {
+            callSite.recordLog(System.nanoTime() - callStart);
+        }
+        return sequence == 0 ? 0 : 1;
+    }
+
+    @Override
+    public LoggerDiagnostics getDiagnostics() {
+        return mPhaseRecorder != null ? mPhaseRecorder.snapshot() : LoggerDiagnostics.empty();
+    }
+
+    @Override
+    public List<CallSiteStats> getCallSiteStats() {
+        return mCallSiteSampler != null ? mCallSiteSampler.snapshot() : new ArrayList<CallSiteStats>();
+    }
+
+    @Override
+    public long getRateLimitedLogsCount() {
+        return mRateLimiter != null ? mRateLimiter.suppressedCount() : 0;
+    }
+
+    @Override
+    public CompletableFuture<Void> reconfigure(Reconfiguration reconfiguration) {
+        if (reconfiguration == null) {
+            throw new IllegalArgumentException("reconfiguration cannot be null");
+        }
+        if (mSharedRing != null && reconfiguration.mLogFilesCount != null) {
+            throw new IllegalArgumentException("count of files cannot be changed, they are shared with other processes");
+        }
+        if (mShowLogs) System.out.println("reconfigure");
+
+        PendingReconfiguration pending = new PendingReconfiguration(reconfiguration.copy());
+        mReconfigurations.add(pending);
+
+        synchronized (mProcessingSyncObject) {
+            wakeUpBackgroundThread();
         }
-        if (mShowLogs) System.out.println("<< processPendingLogsStopAndGetLogFiles");
+        return completedOffBackgroundThread(pending.mApplied);
     }
 
     /**
-     * May return "null" instead of files to the {@link GetFilesCallback#onFilesReady(File[])}
-     * if an error occured.
+     * Called by background thread between lists of entries, so the list that is being written always sees
+     * the same options.
      */
-    @Override
-    public File[] getLoggingFilesSnapShotSync() {
-        if (mShowLogs) System.out.println(">> getLoggingFilesSnapShotSync");
+    private void applyReconfigurations() {
+        PendingReconfiguration pending;
+        while ((pending = mReconfigurations.poll()) != null) {
+            try {
+                applyReconfiguration(pending.mReconfiguration);
+                pending.mApplied.complete(null);
+            } catch (IOException e) {
+                pending.mApplied.completeExceptionally(e);
+            }
+        }
+    }
 
-        if(mShouldProcessPendingLogsAndStop.get() || mTerminated.get()){
-            throw new IllegalStateException("getLoggingFilesSnapShotSync, already stopped");
+    private void applyReconfiguration(Reconfiguration reconfiguration) throws IOException {
+        if (reconfiguration.mSyncIntervalMillis != null) {
+            scheduleSync(reconfiguration.mSyncIntervalMillis);
         }
 
-        File[] logFiles = null;
-        synchronized (mProcessingSyncObject) {
-            try {
-                logFiles = createLogFilesSnapshot();
-                prepareLogFiles(mLogDir, mLogFileName, LOG_FILES_COUNT);
-                createFileWriter();
+        if (reconfiguration.mLogFileMaxSize != null || reconfiguration.mLogFilesCount != null) {
+            synchronized (mWriteToFileSyncObject) {
+                if (reconfiguration.mLogFileMaxSize != null) {
+                    mLogFileMaxSize = reconfiguration.mLogFileMaxSize;
+                }
+                if (reconfiguration.mLogFilesCount != null && reconfiguration.mLogFilesCount != mLogFilesCount) {
+                    resizeLogFiles(reconfiguration.mLogFilesCount);
+                }
+                mFileSizeMax = mLogFileMaxSize / mLogFilesCount;
+            }
+        }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (reconfiguration.mMinimumEntriesCount != null || reconfiguration.mMaxPendingEntriesLists != null) {
+            synchronized (mProcessingSyncObject) {
+                if (reconfiguration.mMaxPendingEntriesLists != null) {
+                    mMaxPendingEntriesLists = reconfiguration.mMaxPendingEntriesLists;
+                }
+                if (reconfiguration.mMinimumEntriesCount != null
+                        && reconfiguration.mMinimumEntriesCount != mEntriesCountInSingleList) {
+                    mEntriesCountInSingleList = reconfiguration.mMinimumEntriesCount;
+
+                    /**
+                     * Free lists have the previous size, so they are dropped. Lists that are waiting to be written
+                     * are dropped when they are returned. See {@link #returnTheListsForLogging()}
+                     */
+                    mLoggingEntries.clear();
+                    mCriticalLoggingEntries.clear();
+                    if (mCurrentItemIndex > 0) {
+                        flushCurrentLogs();
+                    } else {
+                        mCurrentLogEntryList = createListOfEntries();
+                    }
+                }
             }
         }
-        if (mShowLogs) System.out.println("<< getLoggingFilesSnapShotSync");
-        return logFiles;
     }
 
-
     /**
-     * If file name is "VonaLogger_1.log" the snapshot file will be "VonaLogger_1_snapshot.log"
-     *
+     * New files are added as the oldest ones, so they are empty until the logs are rotated to them.
+     * If the count is decreased the oldest files are deleted together with their index.
      */
-    private File[] createLogFilesSnapshot() throws IOException {
-
-        File[] logFilesSnapshot = new File[LOG_FILES_COUNT];
-        for (int index = 0; index < mLogFiles.length; index++) {
-
-            String fileName = mLogFiles[index].getAbsolutePath();
-            String rawName = fileName.substring(0, fileName.length() - LOG_FILE_SUFIX.length());
-
-            File snapShotLogFile = new File(rawName + "_snapshot" + LOG_FILE_SUFIX);
-
-            createNewFile(snapShotLogFile);
-            logFilesSnapshot[index] = snapShotLogFile;
-
-            rename(mLogFiles[index], snapShotLogFile);
+    private void resizeLogFiles(int logFilesCount) throws IOException {
+        File[] logFiles = Arrays.copyOf(mLogFiles, logFilesCount);
+        long[] sizes = Arrays.copyOf(mLogFileSizes, logFilesCount);
+        for (int index = logFilesCount; index < mLogFiles.length; index++) {
+            deleteIfExists(mLogFiles[index]);
+            deleteIfExists(SegmentIndex.indexFileFor(mLogFiles[index]));
+        }
+        for (int index = mLogFiles.length; index < logFilesCount; index++) {
+            File file = new File(mLogDir, logsFileName(mLogFileName, index));
+            createNewFile(file);
+            logFiles[index] = file;
         }
+        mLogFiles = logFiles;
+        mLogFileSizes = sizes;
+        mLogFilesCount = logFilesCount;
+        saveFilesMetadata();
+    }
 
-        return logFilesSnapshot;
+    /**
+     * Sync thread is created the first time sync interval is specified, in constructor or by
+     * {@link #reconfigure(Reconfiguration)}. After that only its task is replaced.
+     */
+    private void scheduleSync(long intervalMillis) {
+        if (mSyncThread == null) {
+            mSyncThread = Executors.newSingleThreadScheduledExecutor();
+        }
+        if (mSyncTask != null) {
+            mSyncTask.cancel(false);
+        }
+        mSyncTask = mSyncThread.scheduleWithFixedDelay(mSyncRunnable, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
     }
 
-    private void createFileWriter() throws IOException {
-        File file = currentFile();
-        mWriter = new FileWriter(file, true);
+    /**
+     * Old files are removed by {@link #mRetentionThread}, so background thread is not delayed.
+     * It is requested when logger is initialized and when a file is rotated. It's not requested after a snapshot,
+     * so the files that were just returned are not removed right away.
+     */
+    private void requestRetention() {
+        if (mRetention != null && mRetentionRequested.compareAndSet(false, true)) {
+            mRetentionThread.execute(mRetentionRunnable);
+        }
     }
 
-    private void prepareLogFiles(File logDir, String name, int count) throws IOException {
-        if (mShowLogs)
-            System.out.println("prepareLogFiles, name[" + name + "], count " + count + ", logDir " + logDir);
+    private final Runnable mRetentionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // files that are rotated after this are handled by the next run
+            mRetentionRequested.set(false);
 
-        createDirectoryIfNeeded(logDir);
+            int removedCount = mRetention.removeOldFiles();
+            if (mShowLogs) System.out.println("mRetentionRunnable, removedCount " + removedCount);
+        }
+    };
 
-        File[] result = new File[count];
-        for (int i = 0; i < count; ++i) {
-            String fileName = logsFileName(name, i);
-            File file = new File(logDir, fileName);
-            boolean exists = file.exists();
+    private static final class PendingReconfiguration {
 
-            if (mShowLogs)
-                System.out.println("prepareLogFiles, created " + exists + ", file " + fileName);
+        private final Reconfiguration mReconfiguration;
+        private final CompletableFuture<Void> mApplied = new CompletableFuture<>();
 
-            if (!exists) {
-                if(!file.createNewFile()){
-                    throw new IOException("file, " + file + ", is not created");
-                }
-            }
-            result[i] = file;
+        PendingReconfiguration(Reconfiguration reconfiguration) {
+            mReconfiguration = reconfiguration;
         }
-        mLogFiles = result;
-    }
-
-    private String logsFileName(String name, int fileIndex) {
-        return name + "_" + fileIndex + LOG_FILE_SUFIX;
     }
 
-    private void createDirectoryIfNeeded(File dir) throws IOException {
-        if (mShowLogs) System.out.println("createDirectoryIfNeeded, logDir " + dir);
+    @Override
+    public CompletableFuture<Long> writeDurableLog(Object... parameters) {
 
-        if (dir.exists() && !dir.isDirectory()) {
-            boolean deleted = dir.delete();
+        if (mShowLogs) System.out.println(">> writeDurableLog " + Arrays.toString(parameters));
 
-            if (mShowLogs) System.out.println("createDirectoryIfNeeded, deleted " + deleted);
+        if (mSyncThread == null) {
+            throw new IllegalStateException("writeDurableLog, sync interval is not specified. Please call Builder#setSyncInterval");
         }
 
-        boolean exists = dir.exists();
-        if (!exists) {
-            exists = dir.mkdirs();
+        CallSiteSampler.CallSite callSite = mCallSiteSampler != null ? mCallSiteSampler.sample() : null;
+        long callStart = callSite != null ? System.nanoTime() : 0;
+
+        if (mEvaluateLogArgsEagerly) {
+            parameters = evaluateLazyParameters(parameters);
         }
 
-        if (mShowLogs) System.out.println("createDirectoryIfNeeded, exists " + exists);
+        boolean measureLockWait = mPhaseRecorder != null && mPhaseRecorder.shouldSampleProducer();
+        long lockWaitStart = measureLockWait ? System.nanoTime() : 0;
+        long lockWaitNanos = 0;
 
-        if (!exists) {
-            throw new IOException("failed to create directory for logs");
-        }
-    }
+        LogOutputBuffer mergedParameters = mergeParametersBeforeLock(null, parameters);
 
-    private void returnTheListForLogging(List<LogEntry> listOfEntriesToProcess) {
+        CompletableFuture<Long> synced = null;
         synchronized (mProcessingSyncObject) {
-            mLoggingEntries.add(listOfEntriesToProcess);
+            if (measureLockWait) {
+                lockWaitNanos = System.nanoTime() - lockWaitStart;
+            }
+            long sequence = putLogEntry(null, parameters, mergedParameters, callSite);
+
+            if (sequence != 0) {
+                /**
+                 * Future has to be added under the same lock that assigns the sequence numbers.
+                 * See {@link SequenceWaiters}
+                 */
+                synced = mSyncWaiters.add(sequence);
+            }
+        }
+        if (measureLockWait) {
+            mPhaseRecorder.record(LoggerPhase.PRODUCER_LOCK_WAIT, lockWaitNanos);
+        }
+        if (callSite != null && synced != null) {
+            callSite.recordLog(System.nanoTime() - callStart);
         }
-    }
-
-    private void createNewFile(File file) throws IOException {
-        boolean exists = file.exists();
-        if (!exists) {
-            exists = file.createNewFile();
 
-            if(!exists){
-                throw new IOException("failed to create file " + file.getAbsolutePath());
-            }
+        if (synced == null) {
+            CompletableFuture<Long> notWritten = new CompletableFuture<>();
+            notWritten.completeExceptionally(new IllegalStateException("writeDurableLog, log wasn't written. VoNaLogger is stopped or over capacity"));
+            return notWritten;
         }
+        /**
+         * The future is completed by sync thread or background thread, so dependent actions are moved to another
+         * thread and a slow action doesn't delay the next sync.
+         */
+        return completedOffBackgroundThread(synced);
     }
 
     /**
-     * This method copies all the content from "old" to file with name "newPath".
-     * and removes the "old" file.
-     * <p>
-     * If "newPath" file exists it will be overridden.
+     * Calls {@link LogArg} and {@link java.util.function.Supplier} parameters on the calling thread.
+     * The array of the caller is not changed.
+     *
+     * @return array with values instead of lazy parameters.
      */
-    private void rename(File old, File newPath) {
-        if (mShowLogs) {
-            System.out.println("rename " + old.getAbsolutePath() + " to " + newPath.getAbsolutePath());
-            System.out.println("rename >> old " + old + " newPath " + newPath);
-        }
-
-        boolean success = old.renameTo(newPath);
-
-        if (mShowLogs) {
-            System.out.println("rename success " + success);
-            System.out.println("rename << old " + old + " newPath " + newPath);
-            System.out.println("after renaming");
-
-            for (int index = 0; index < LOG_FILES_COUNT; index++) {
-                System.out.println("log file " + mLogFiles[index]);
+    private static Object[] evaluateLazyParameters(Object[] parameters) {
+        Object[] evaluated = parameters;
+        for (int index = 0; index < parameters.length; index++) {
+            if (ParamWriterRegistry.isLazy(parameters[index])) {
+                if (evaluated == parameters) {
+                    evaluated = parameters.clone();
+                }
+                evaluated[index] = ParamWriterRegistry.evaluate(parameters[index]);
             }
         }
+        return evaluated;
     }
 
     /**
-     * This creates a list of Log Entries that are directly used when methods {@link #writeLog(Object...)} etc..
-     * are called.
+     * Entries of {@link OffHeapEntryArena} don't keep parameters, so they are merged on the calling thread
+     * before the lock is taken. It's not done if the log is going to be dropped, then the entry merges them under
+     * the lock if it's accepted after all.
+     *
+     * @return merged parameters or "null" if they are not merged yet.
      */
-    private void createCurrentListOfEntries() {
-        if (mShowLogs) System.out.println(">> createCurrentListOfEntries");
-        mCurrentLogEntryList = new ArrayList<>(mEntriesCountInSingleList);
+    private LogOutputBuffer mergeParametersBeforeLock(LogFields fields, Object[] parameters) {
+        if (mOffHeapEntryArena == null || !shouldMergeBeforeLock()) {
+            return null;
+        }
+        return mergeParametersForOffHeapEntry(fields, parameters);
+    }
 
-        for (int index = 0; index < mEntriesCountInSingleList; index++) {
-            mCurrentLogEntryList.add(new LogEntry());
+    /**
+     * All the rows are merged one after another into the buffer of the calling thread.
+     *
+     * @return end of every row in that buffer or "null" if rows are not merged yet.
+     */
+    private int[] mergeRowsBeforeLock(Object[][] rows, int rowsCount) {
+        if (mOffHeapEntryArena == null || !shouldMergeBeforeLock()) {
+            return null;
         }
+        LogOutputBuffer mergedRows = mMergedParametersBuffers.get();
+        mergedRows.clear();
+        int[] rowEnds = new int[rowsCount];
+        for (int index = 0; index < rowsCount; index++) {
+            LogEntry.appendMergedParameters(mergedRows, null, rows[index], mOutputFormat);
+            rowEnds[index] = mergedRows.length();
+        }
+        return rowEnds;
+    }
 
-        if (mShowLogs) System.out.println("<< createCurrentListOfEntries");
+    /**
+     * It's checked without the lock, so it's only a guess. Critical logs are never dropped because of capacity,
+     * but they are not written after the logger is stopped either, so they are checked the same way.
+     */
+    private boolean shouldMergeBeforeLock() {
+        return !mDroppingForCapacity && !mTerminated.get() && !mShouldProcessPendingLogsAndStop.get();
     }
 
-    private void initializeBackgroundThreadLogger() {
-        mBackgroundThread.execute(mProcessingRunnable);
+    private LogOutputBuffer mergeParametersForOffHeapEntry(LogFields fields, Object[] parameters) {
+        LogOutputBuffer mergedParameters = mMergedParametersBuffers.get();
+        mergedParameters.clear();
+        LogEntry.appendMergedParameters(mergedParameters, fields, parameters, mOutputFormat);
+        return mergedParameters;
     }
 
     /**
-     * Returns "1" if successfully written
-     * Returns "0" if log wasn't written.
+     * This method has to be called under {@link #mProcessingSyncObject}
+     *
+     * @param mergedParameters - text of the parameters if it was merged before the lock, see
+     *                         {@link #mergeParametersBeforeLock(LogFields, Object[])}
+     * @return sequence number of the entry or "0" if log wasn't written.
      */
-    @Override
-    public int writeLog(Object... parameters) {
+    private long putLogEntry(LogFields fields, Object[] parameters, LogOutputBuffer mergedParameters,
+                             CallSiteSampler.CallSite callSite) {
 
-        if (mShowLogs) System.out.println(">> writeLog " + Arrays.toString(parameters));
+        if (mShowLogs){
+            System.out.println("putLogEntry, mTerminated " + mTerminated);
+            System.out.println("putLogEntry, mShouldProcessPendingLogsAndStop " + mShouldProcessPendingLogsAndStop);
+        }
 
-        synchronized (mProcessingSyncObject) {
+        if(mTerminated.get()){
+            return 0;
+        }
 
-            if (mShowLogs){
-                System.out.println("writeLog, mTerminated " + mTerminated);
-                System.out.println("writeLog, mShouldProcessPendingLogsAndStop " + mShouldProcessPendingLogsAndStop);
-            }
+        if(mShouldProcessPendingLogsAndStop.get()){
+            return 0;
+        }
 
-            if(mTerminated.get()){
-                return 0;
-            }
+        if (mShowLogs) {
+            System.out.println("putLogEntry, mCurrentItemIndex " + mCurrentItemIndex);
+            System.out.println("putLogEntry, entries count " + ((long) (mProcessingEntries.size() + mLoggingEntries.size()) * (long) mEntriesCountInSingleList));
+            System.out.println("putLogEntry, mProcessingEntries count " + (long) (mProcessingEntries.size()));
+            System.out.println("putLogEntry, mLoggingEntries count " + (long) (mLoggingEntries.size()));
+        }
 
-            if(mShouldProcessPendingLogsAndStop.get()){
+        if (isCurrentEntryLogListFilled()) {
+            if (isOverCapacity()) {
+                mDroppingForCapacity = true;
+                commitLogDroppedEvent(LoggerEvents.LogDroppedEvent.REASON_CAPACITY);
                 return 0;
             }
+            flushCurrentLogs();
+        }
 
-            if (mShowLogs) {
-                System.out.println("writeLog, mCurrentItemIndex " + mCurrentItemIndex);
-                System.out.println("writeLog, entries count " + ((long) (mProcessingEntries.size() + mLoggingEntries.size()) * (long) mEntriesCountInSingleList));
-                System.out.println("writeLog, mProcessingEntries count " + (long) (mProcessingEntries.size()));
-                System.out.println("writeLog, mLoggingEntries count " + (long) (mLoggingEntries.size()));
-            }
+        /**
+         * Get LogEntry from the list.
+         * This has to be done synchronously because logger can be used from different Threads.
+         */
+        long sequence = fillLogEntry(mCurrentLogEntryList.get(mCurrentItemIndex), fields, parameters, mergedParameters,
+                callSite);
+
+        /**
+         * Increment index to track the position
+         */
+        mCurrentItemIndex++;
+
+        return sequence;
+    }
 
+    /**
+     * This method has to be called under {@link #mProcessingSyncObject}
+     * All the rows get the same timestamp.
+     *
+     * @param mergedRowEnds - ends of the rows in the buffer of the calling thread if they were merged before
+     *                      the lock, see {@link #mergeRowsBeforeLock(Object[][], int)}
+     * @return how many rows were written. The rest of them were dropped because of capacity.
+     */
+    private int putLogEntries(Object[][] rows, int rowsCount, int[] mergedRowEnds) {
+        if (mTerminated.get() || mShouldProcessPendingLogsAndStop.get()) {
+            return 0;
+        }
+
+        long timestampNanos = mLogTimestamps ? mClock.currentEpochNanos() : 0;
+        long threadId = mLogThreadIds ? Thread.currentThread().getId() : 0;
+
+        int writtenCount = 0;
+        while (writtenCount < rowsCount) {
             if (isCurrentEntryLogListFilled()) {
+                if (isOverCapacity()) {
+                    mDroppingForCapacity = true;
+                    for (int dropped = writtenCount; dropped < rowsCount; dropped++) {
+                        commitLogDroppedEvent(LoggerEvents.LogDroppedEvent.REASON_CAPACITY);
+                    }
+                    break;
+                }
                 flushCurrentLogs();
             }
 
-            /**
-             * Get LogEntry from the list.
-             * This has to be done synchronously because logger can be used from different Threads.
-             */
-            LogEntry logEntry = mCurrentLogEntryList.get(mCurrentItemIndex);
-            logEntry.setLogParameters(parameters);
+            int count = Math.min(rowsCount - writtenCount, mEntriesCountInSingleList - mCurrentItemIndex);
+            long sequence = mSequenceSource.addAndGet(count) - count;
+            for (int index = 0; index < count; index++) {
+                int rowIndex = writtenCount + index;
+                Object[] row = rows[rowIndex];
+                LogEntry logEntry = mCurrentLogEntryList.get(mCurrentItemIndex + index);
+                if (logEntry.isOffHeap() && mergedRowEnds != null) {
+                    int rowStart = rowIndex == 0 ? 0 : mergedRowEnds[rowIndex - 1];
+                    logEntry.setMergedParameters(mMergedParametersBuffers.get().array(), rowStart,
+                            mergedRowEnds[rowIndex] - rowStart);
+                } else if (logEntry.isOffHeap()) {
+                    logEntry.setMergedParameters(mergeParametersForOffHeapEntry(null, row));
+                } else {
+                    logEntry.setLogParameters(null, row);
+                }
+                // rows are not sampled, see CallSiteSampler
+                logEntry.setCallSite(null);
+                logEntry.setSequence(++sequence);
+                if (mLogTimestamps || mLogThreadIds) {
+                    logEntry.setTimestampAndThreadId(timestampNanos, threadId);
+                }
+            }
+            mCurrentItemIndex += count;
+            mLastPutSequence = sequence;
+            writtenCount += count;
+        }
+        return writtenCount;
+    }
 
-            /**
-             * Increment index to track the position
-             */
-            mCurrentItemIndex++;
+    /**
+     * Critical entries are never dropped because of capacity. See {@link #mCriticalProcessingEntries}
+     */
+    private long putCriticalLogEntry(Object[] parameters, LogOutputBuffer mergedParameters,
+                                     CallSiteSampler.CallSite callSite) {
+        if (mTerminated.get() || mShouldProcessPendingLogsAndStop.get()) {
+            return 0;
+        }
+
+        if (mCriticalTailList == null || mCriticalTailIndex >= mCriticalTailList.size()) {
+            mCriticalTailList = mCriticalLoggingEntries.isEmpty() ? createListOfEntries() : mCriticalLoggingEntries.poll();
+            mCriticalTailIndex = 0;
+            mCriticalProcessingEntries.add(mCriticalTailList);
+            wakeUpBackgroundThread();
+        }
+
+        long sequence = fillLogEntry(mCriticalTailList.get(mCriticalTailIndex), null, parameters, mergedParameters,
+                callSite);
+        mCriticalTailIndex++;
+        return sequence;
+    }
+
+    private long fillLogEntry(LogEntry logEntry, LogFields fields, Object[] parameters,
+                              LogOutputBuffer mergedParameters, CallSiteSampler.CallSite callSite) {
+        if (logEntry.isOffHeap()) {
+            // parameters weren't merged before the lock if the log was expected to be dropped
+            logEntry.setMergedParameters(mergedParameters != null ? mergedParameters
+                    : mergeParametersForOffHeapEntry(fields, parameters));
+        } else {
+            logEntry.setLogParameters(fields, parameters);
         }
-        if (mShowLogs) System.out.println("<< writeLog");
-        return 1;
+        logEntry.setCallSite(callSite);
+        long sequence = mSequenceSource.incrementAndGet();
+        logEntry.setSequence(sequence);
+        mLastPutSequence = sequence;
+
+        if (mLogTimestamps || mLogThreadIds) {
+            logEntry.setTimestampAndThreadId(
+                    mLogTimestamps ? mClock.currentEpochNanos() : 0,
+                    mLogThreadIds ? Thread.currentThread().getId() : 0);
+        }
+        return sequence;
     }
 
     /**
@@ -707,6 +2533,87 @@ final class VoNaLoggerImpl implements VoNaLogger {
             mTerminated.set(true);
         }
         mBackgroundThread.shutdownNow();
+
+        if (mSyncThread != null) {
+            mSyncThread.shutdownNow();
+        }
+        if (mRetentionThread != null) {
+            mRetentionThread.shutdownNow();
+        }
+        if (mSharedRing != null) {
+            mSharedRingThread.shutdownNow();
+            try {
+                mSharedRing.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * This method has to be called under {@link #mProcessingSyncObject}
+     * Background thread is notified only if it's blocked. Otherwise it finds the changes itself.
+     */
+    private void wakeUpBackgroundThread() {
+        mWakeUpSignals++;
+        if (mBackgroundThreadParked) {
+            mProcessingSyncObject.notify();
+        }
+    }
+
+    /**
+     * This method has to be called under {@link #mProcessingSyncObject}
+     */
+    private void waitForLogs() throws InterruptedException {
+        mBackgroundThreadParked = true;
+        try {
+            mProcessingSyncObject.wait();
+        } finally {
+            mBackgroundThreadParked = false;
+            mIdleTries = 0;
+        }
+    }
+
+    private boolean shouldBlockWhileIdle() {
+        switch (mWaitStrategy) {
+            case BLOCKING:
+                return true;
+            case PHASED_BACKOFF:
+                return mIdleTries >= BACKOFF_SPIN_TRIES + BACKOFF_YIELD_TRIES;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * This is called by background thread without holding {@link #mProcessingSyncObject}
+     * It returns when background thread is woken up, so the lock is taken only when there is something to do,
+     * or when {@link WriterWaitStrategy#PHASED_BACKOFF} has to block.
+     *
+     * @param idleSignals - {@link #mWakeUpSignals} read under the lock when no work was found.
+     */
+    private void idleWithoutBlocking(int idleSignals) {
+        while (mWakeUpSignals == idleSignals && !mTerminated.get() && !shouldBlockWhileIdle()) {
+            switch (mWaitStrategy) {
+                case SLEEPING:
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                    break;
+                case YIELDING:
+                    Thread.yield();
+                    break;
+                case BUSY_SPIN:
+                    Thread.onSpinWait();
+                    break;
+                case PHASED_BACKOFF:
+                    if (mIdleTries < BACKOFF_SPIN_TRIES) {
+                        Thread.onSpinWait();
+                    } else {
+                        Thread.yield();
+                    }
+                    mIdleTries++;
+                    break;
+            }
+        }
     }
 
     private void flushCurrentLogs() {
@@ -719,7 +2626,7 @@ final class VoNaLoggerImpl implements VoNaLogger {
          * notify background thread that {@link #mProcessingEntries} is not empty and it can
          * be processed
          */
-        mProcessingSyncObject.notify();
+        wakeUpBackgroundThread();
 
         if (mShowLogs)
             System.out.println("flushCurrentLogs, mLoggingEntries isEmpty " + mLoggingEntries.isEmpty());
@@ -734,6 +2641,28 @@ final class VoNaLoggerImpl implements VoNaLogger {
         mCurrentItemIndex = 0;
     }
 
+    /**
+     * @return true if the current list cannot be sent for processing because background thread
+     * is already behind by the maximum number of lists. See {@link VoNaLogger.Builder#setMaxPendingEntriesLists(int)}
+     */
+    private boolean isOverCapacity() {
+        return mMaxPendingEntriesLists > 0
+                && mLoggingEntries.isEmpty()
+                && mProcessingEntries.size() >= mMaxPendingEntriesLists;
+    }
+
+    private void commitLogDroppedEvent(String reason) {
+        if (!LoggerEvents.LOG_DROPPED.isEnabled()) {
+            return;
+        }
+        LoggerEvents.LogDroppedEvent droppedEvent = new LoggerEvents.LogDroppedEvent();
+        if (droppedEvent.shouldCommit()) {
+            droppedEvent.logFileName = mLogFileName;
+            droppedEvent.reason = reason;
+            droppedEvent.commit();
+        }
+    }
+
     private boolean isCurrentEntryLogListFilled() {
         boolean isCurrentEntryLogListFilled = mCurrentItemIndex >= mEntriesCountInSingleList;
         if (mShowLogs) {
@@ -750,14 +2679,7 @@ final class VoNaLoggerImpl implements VoNaLogger {
     private void addNewLogTheEntriesListToTheLoggingQueue() {
         if (mShowLogs) System.out.println(" >> addNewLogTheEntriesListToTheLoggingQueue");
 
-        List<LogEntry> singleLogEntries = new ArrayList<>();
-        for (int index = 0; index < mEntriesCountInSingleList; index++) {
-            /**
-             * Add an empty log entry. It will be fetched and filled with data later
-             */
-            singleLogEntries.add(new LogEntry());
-        }
-        mLoggingEntries.add(singleLogEntries);
+        mLoggingEntries.add(createListOfEntries());
         if (mShowLogs) System.out.println(" >> addNewLogTheEntriesListToTheLoggingQueue");
     }
 
@@ -0,0 +1,41 @@
+package com.volokh.danylo.vonalogger;
+
+/**
+ * This defines what background thread does while there are no logs to write.
+ * See {@link VoNaLogger.Builder#setWaitStrategy(WriterWaitStrategy)}
+ *
+ * Threads that write logs wake up background thread only if it's blocked, so with the strategies that don't block
+ * writing a log never costs a wake up of another thread. The price is the CPU time of background thread.
+ * With shards every shard has its own background thread.
+ */
+public enum WriterWaitStrategy {
+
+    /**
+     * Background thread is blocked until new logs are written. It's the default strategy.
+     */
+    BLOCKING,
+
+    /**
+     * Background thread sleeps for a short time and checks again. It uses little CPU, but logs are written
+     * a bit later than with other strategies.
+     */
+    SLEEPING,
+
+    /**
+     * Background thread gives its CPU to other threads and checks again.
+     */
+    YIELDING,
+
+    /**
+     * Background thread checks for new logs all the time. Logs are written with the lowest latency, but one CPU core
+     * is fully used. It makes sense only if there are more cores than busy threads, ideally if the process is pinned
+     * to isolated cores.
+     */
+    BUSY_SPIN,
+
+    /**
+     * Background thread spins for a while after the last logs, then yields and then it's blocked like
+     * {@link #BLOCKING}. Bursts of logs are written with low latency, but idle logger doesn't use CPU.
+     */
+    PHASED_BACKOFF
+}
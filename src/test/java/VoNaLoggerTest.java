@@ -1,16 +1,48 @@
+import com.volokh.danylo.vonalogger.CallSiteStats;
+import com.volokh.danylo.vonalogger.EncryptedLogInputStream;
 import com.volokh.danylo.vonalogger.GetFilesCallback;
+import com.volokh.danylo.vonalogger.LogArg;
+import com.volokh.danylo.vonalogger.LogFields;
+import com.volokh.danylo.vonalogger.LogOutputFormat;
+import com.volokh.danylo.vonalogger.LogSearch;
+import com.volokh.danylo.vonalogger.LoggerDiagnostics;
+import com.volokh.danylo.vonalogger.LoggerPhase;
+import com.volokh.danylo.vonalogger.MergedLogReader;
+import com.volokh.danylo.vonalogger.ParamOutput;
+import com.volokh.danylo.vonalogger.ParamWriter;
+import com.volokh.danylo.vonalogger.ShardRouting;
 import com.volokh.danylo.vonalogger.VoNaLogger;
+import com.volokh.danylo.vonalogger.WriterWaitStrategy;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
 import java.io.*;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -449,21 +481,1380 @@ public class VoNaLoggerTest {
 
     }
 
-    private void showFilesContent(File[] logFiles) {
-        for(File logFile : logFiles){
-            showFileContent(logFile);
+    @Test
+    public void testPrimitiveParametersWritten() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .build();
+
+        mVoNaLogger.writeLog("Primitives", 0, -15, Long.MIN_VALUE, Long.MAX_VALUE, true, 'c', 1.5d, null);
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        String expectedLog = "Primitives\t0\t-15\t" + Long.MIN_VALUE + "\t" + Long.MAX_VALUE + "\ttrue\tc\t1.5\tnull";
+        assertTrue(findSpecificLogInFiles(expectedLog, logFiles));
+    }
+
+    @Test
+    public void testTimestampsAndThreadIdsWritten() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setLogTimestamps(true)
+                        .setLogThreadIds(true)
+                        .build();
+
+        long before = System.currentTimeMillis();
+        mVoNaLogger.writeLog("Timestamped Log");
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        String line = findLineInFiles("Timestamped Log", logFiles);
+        assertNotNull(line);
+
+        String[] fields = line.split("\t");
+        assertEquals(3, fields.length);
+        assertTrue(fields[0], fields[0].matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{6}Z"));
+
+        long loggedMillis = Instant.parse(fields[0]).toEpochMilli();
+        assertTrue(Math.abs(loggedMillis - before) < 5000);
+
+        assertEquals(String.valueOf(Thread.currentThread().getId()), fields[1]);
+    }
+
+    /**
+     * Wall clock that can be moved by the test, like NTP moves the system clock.
+     */
+    private static final class AdjustableClock extends Clock {
+
+        private final AtomicLong mMillis;
+
+        AdjustableClock(long millis) {
+            mMillis = new AtomicLong(millis);
+        }
+
+        void adjust(long deltaMillis) {
+            mMillis.addAndGet(deltaMillis);
+        }
+
+        @Override
+        public long millis() {
+            return mMillis.get();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis());
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
         }
     }
 
-    private boolean findSpecificLogInFiles(String concreteLog, File[] logFiles) {
-        boolean found = false;
-        for(File logFile : logFiles){
-            found = findLogInFile(concreteLog, logFile);
-            if(found){
-                break;
+    @Test
+    public void testTimestampsFollowWallClock() throws IOException, InterruptedException {
+
+        long startMillis = Instant.parse("2017-01-21T19:28:35Z").toEpochMilli();
+        AdjustableClock clock = new AdjustableClock(startMillis);
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setLogTimestamps(true)
+                        .setTimestampClock(clock)
+                        .build();
+
+        mVoNaLogger.writeLog("Log before adjustment");
+
+        clock.adjust(TimeUnit.HOURS.toMillis(1));
+        // wall clock is checked once a second
+        Thread.sleep(1100);
+        mVoNaLogger.writeLog("Log after adjustment");
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        long beforeMillis = Instant.parse(findLineInFiles("Log before adjustment", logFiles).split("\t")[0]).toEpochMilli();
+        long afterMillis = Instant.parse(findLineInFiles("Log after adjustment", logFiles).split("\t")[0]).toEpochMilli();
+
+        assertTrue(beforeMillis - startMillis < 1000);
+        assertTrue(afterMillis - startMillis >= TimeUnit.HOURS.toMillis(1));
+        assertTrue(afterMillis - startMillis < TimeUnit.HOURS.toMillis(1) + 5000);
+    }
+
+    @Test
+    public void testCrashSafeModeCutsBrokenBatch() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setCrashSafeMode(true)
+                        .build();
+
+        mVoNaLogger.writeLog("Log before crash");
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        File currentFile = logFiles[0];
+        long validLength = currentFile.length();
+        assertTrue(validLength > 0);
+
+        /**
+         * Imitate a batch that was not fully written
+         */
+        FileWriter brokenBatchWriter = new FileWriter(currentFile, true);
+        brokenBatchWriter.write("#00000100:00000000\nBroken log");
+        brokenBatchWriter.close();
+
+        mVoNaLogger.initVoNaLoggerAfterStopping();
+        assertEquals(validLength, currentFile.length());
+        mVoNaLogger.stopLoggingAndGetLogFilesSync();
+
+        /**
+         * Imitate a complete batch with a wrong checksum
+         */
+        brokenBatchWriter = new FileWriter(currentFile, true);
+        brokenBatchWriter.write("#0000000B:00000000\nBroken log\n");
+        brokenBatchWriter.close();
+
+        mVoNaLogger.initVoNaLoggerAfterStopping();
+        assertEquals(validLength, currentFile.length());
+
+        mVoNaLogger.writeLog("Log after crash");
+        logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue(findSpecificLogInFiles("Log before crash", logFiles));
+        assertTrue(findSpecificLogInFiles("Log after crash", logFiles));
+        assertTrue(!findSpecificLogInFiles("Broken log", logFiles));
+    }
+
+    @Test
+    public void testDurableLogSynced() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setSyncInterval(10)
+                        .build();
+
+        mVoNaLogger.writeLog("First Log");
+
+        /**
+         * The current list of entries is not filled, but the log has to be synced anyway
+         */
+        long sequence = mVoNaLogger.writeDurableLog("Durable Log").get(5, TimeUnit.SECONDS);
+        assertEquals(2, sequence);
+
+        File[] logFiles = mVoNaLogger.stopLoggingAndGetLogFilesSync();
+        assertTrue(findSpecificLogInFiles("Durable Log", logFiles));
+    }
+
+    @Test
+    public void testSlowDurableLogActionDoesNotDelaySync() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setSyncInterval(100)
+                        .build();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> slowAction = mVoNaLogger.writeDurableLog("First Durable Log")
+                .thenAccept(new Consumer<Long>() {
+                    @Override
+                    public void accept(Long sequence) {
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+
+        // sync thread is not blocked by the action of the first log
+        long sequence = mVoNaLogger.writeDurableLog("Second Durable Log").get(5, TimeUnit.SECONDS);
+        assertEquals(2, sequence);
+
+        release.countDown();
+        slowAction.get(5, TimeUnit.SECONDS);
+        mVoNaLogger.stopLoggingAndGetLogFilesSync();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDurableLogWithoutSyncInterval() throws IOException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .build();
+
+        mVoNaLogger.writeDurableLog("Durable Log");
+    }
+
+    @Test
+    public void testShardedLogsMergedInOrder() throws Exception {
+
+        final int shardCount = 4;
+        final int logsCount = 1000;
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .setShardCount(shardCount)
+                        .setShardRouting(ShardRouting.FIRST_PARAMETER)
+                        .build();
+
+        for (int index = 0; index < logsCount; index++) {
+            assertEquals(1, mVoNaLogger.writeLog("Tag" + (index % 7), index));
+        }
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        assertEquals(shardCount * 3, logFiles.length);
+
+        MergedLogReader reader = new MergedLogReader(logFiles);
+        try {
+            int linesCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                assertEquals(String.valueOf(linesCount + 1), fields[0]);
+                assertEquals(String.valueOf(linesCount), fields[2]);
+                linesCount++;
             }
+            assertEquals(logsCount, linesCount);
+        } finally {
+            reader.close();
         }
-        return found;
+    }
+
+    @Test
+    public void testSearchIndexedFiles() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(64 * 1024)
+                        .setMinimumEntriesCount(20)
+                        .setSegmentIndexInterval(50)
+                        .setIndexFirstParameterTokens(true)
+                        .build();
+
+        for (int index = 0; index < 500; index++) {
+            mVoNaLogger.writeLog("Early log", index);
+        }
+
+        Thread.sleep(20);
+        long windowStart = System.currentTimeMillis();
+        Thread.sleep(20);
+
+        mVoNaLogger.writeLog("payment_failed order", 1);
+        mVoNaLogger.writeLog("Window log", 2);
+
+        Thread.sleep(20);
+        long windowEnd = System.currentTimeMillis();
+        Thread.sleep(20);
+
+        for (int index = 0; index < 500; index++) {
+            mVoNaLogger.writeLog("Late log", index);
+        }
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        List<String> windowLines = LogSearch.findLines(logFiles, windowStart, windowEnd, null);
+        assertEquals(2, windowLines.size());
+        assertTrue(windowLines.get(0).endsWith("payment_failed order\t1"));
+        assertTrue(windowLines.get(1).endsWith("Window log\t2"));
+
+        List<String> tokenLines = LogSearch.findLines(logFiles, 0, Long.MAX_VALUE / 1_000_000, "payment_failed");
+        assertEquals(1, tokenLines.size());
+
+        assertEquals(0, LogSearch.findLines(logFiles, 0, Long.MAX_VALUE / 1_000_000, "payment").size());
+    }
+
+    @Test
+    public void testSearchFindsLogsAroundCriticalLogs() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .setMinimumEntriesCount(20)
+                        .setSegmentIndexInterval(41)
+                        .build();
+
+        // 11 lists, index points are at the start of every third one. The next point is after 41 more entries
+        for (int index = 0; index < 220; index++) {
+            mVoNaLogger.writeLog("Early log", index);
+        }
+        Thread.sleep(50);
+
+        mVoNaLogger.writeLog("Before window log");
+
+        Thread.sleep(20);
+        long windowStart = System.currentTimeMillis();
+        Thread.sleep(20);
+
+        // critical log is written before the older regular log, which starts the next index point
+        mVoNaLogger.writeCriticalLog("Window critical log");
+        Thread.sleep(50);
+        mVoNaLogger.flush().get(5, TimeUnit.SECONDS);
+
+        mVoNaLogger.writeLog("Window log");
+
+        Thread.sleep(20);
+        long windowEnd = System.currentTimeMillis();
+        Thread.sleep(20);
+
+        // critical log from after the window is written before the regular log from the window
+        mVoNaLogger.writeCriticalLog("Late critical log");
+        Thread.sleep(50);
+
+        for (int index = 0; index < 100; index++) {
+            mVoNaLogger.writeLog("Late log", index);
+        }
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        List<String> windowLines = LogSearch.findLines(logFiles, windowStart, windowEnd, null);
+        assertEquals(2, windowLines.size());
+        assertTrue(windowLines.get(0).endsWith("Window critical log"));
+        assertTrue(windowLines.get(1).endsWith("Window log"));
+    }
+
+    @Test
+    public void testCriticalLogsMergedInOrder() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .setMinimumEntriesCount(20)
+                        .setLogSequenceNumbers(true)
+                        .build();
+
+        for (int index = 0; index < 5; index++) {
+            mVoNaLogger.writeLog("Regular log", index);
+        }
+        // written before the regular logs that are still in the list
+        mVoNaLogger.writeCriticalLog("Critical log");
+        Thread.sleep(50);
+        for (int index = 5; index < 30; index++) {
+            mVoNaLogger.writeLog("Regular log", index);
+        }
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        MergedLogReader reader = new MergedLogReader(logFiles);
+        try {
+            int linesCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                linesCount++;
+                assertTrue(line.startsWith(linesCount + "\t"));
+            }
+            assertEquals(31, linesCount);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testOffHeapEntriesWritten() throws IOException, InterruptedException {
+
+        int slotSizeBytes = 64;
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setOffHeapEntrySlotSize(slotSizeBytes)
+                        .build();
+
+        for (int index = 0; index < 100; index++) {
+            assertEquals(1, mVoNaLogger.writeLog("Off heap log", index));
+        }
+
+        StringBuilder longLog = new StringBuilder();
+        for (int index = 0; index < slotSizeBytes; index++) {
+            longLog.append('x');
+        }
+        mVoNaLogger.writeLog("Long log", longLog);
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue(findSpecificLogInFiles("Off heap log\t99", logFiles));
+
+        String longLine = findLineInFiles("Long log", logFiles);
+        assertNotNull(longLine);
+        assertEquals(slotSizeBytes / 2, longLine.length());
+    }
+
+    @Test
+    public void testOffHeapEntriesMergedOutsideOfLock() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setOffHeapEntrySlotSize(64)
+                        .build();
+
+        final CountDownLatch merging = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object slowParameter = new Object() {
+            @Override
+            public String toString() {
+                merging.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "slow";
+            }
+        };
+        Thread slowThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mVoNaLogger.writeLog("Slow log", slowParameter);
+            }
+        });
+        slowThread.start();
+        assertTrue(merging.await(5, TimeUnit.SECONDS));
+
+        // other threads are not blocked while the parameters of the slow log are merged
+        long start = System.nanoTime();
+        assertEquals(1, mVoNaLogger.writeLog("Fast log", 1));
+        assertEquals(2, mVoNaLogger.writeLogs(new Object[][]{{"Row log", 1}, {"Row log", 2}}));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        release.countDown();
+        slowThread.join();
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue("elapsed " + elapsedMillis, elapsedMillis < 2000);
+        assertTrue(findSpecificLogInFiles("Slow log\tslow", logFiles));
+        assertTrue(findSpecificLogInFiles("Fast log\t1", logFiles));
+        assertTrue(findSpecificLogInFiles("Row log\t1", logFiles));
+        assertTrue(findSpecificLogInFiles("Row log\t2", logFiles));
+    }
+
+    @Test
+    public void testDroppedOffHeapEntriesNotEvaluated() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .setOffHeapEntrySlotSize(64)
+                        .setMaxPendingEntriesLists(1)
+                        .build();
+
+        final AtomicInteger evaluatedCount = new AtomicInteger();
+        LogArg countedArg = new LogArg() {
+            @Override
+            public Object value() {
+                return evaluatedCount.incrementAndGet();
+            }
+        };
+
+        int acceptedCount = 0;
+        for (int index = 0; index < 10000; index++) {
+            acceptedCount += mVoNaLogger.writeLog("Lazy off heap log", countedArg);
+        }
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        // logs are merged before the lock only while they are not dropped, so only the first dropped log after
+        // background thread returns the lists might be merged
+        int droppedCount = 10000 - acceptedCount;
+        assertTrue(evaluatedCount.get() >= acceptedCount);
+        assertTrue("evaluated " + evaluatedCount.get() + ", accepted " + acceptedCount,
+                evaluatedCount.get() - acceptedCount < droppedCount / 100);
+    }
+
+    @Test
+    public void testRateLimitedLogsDropped() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setRateLimit(1, 5)
+                        .build();
+
+        int writtenCount = 0;
+        for (int index = 0; index < 100; index++) {
+            writtenCount += mVoNaLogger.writeLog("Flooding log", index);
+        }
+        assertEquals(1, mVoNaLogger.writeLog("Other log"));
+
+        assertTrue("writtenCount " + writtenCount, writtenCount >= 5 && writtenCount < 10);
+        assertEquals(100 - writtenCount, mVoNaLogger.getRateLimitedLogsCount());
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue(findSpecificLogInFiles("Flooding log\t0", logFiles));
+        assertFalse(findSpecificLogInFiles("Flooding log\t99", logFiles));
+        assertTrue(findSpecificLogInFiles("Other log", logFiles));
+    }
+
+    @Test
+    public void testTemplatesLimitedIndependently() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setRateLimit(1, 5)
+                        .build();
+
+        // these templates have the same hash code
+        String floodingTemplate = "Aa log";
+        String otherTemplate = "BB log";
+        assertEquals(floodingTemplate.hashCode(), otherTemplate.hashCode());
+
+        for (int index = 0; index < 100; index++) {
+            mVoNaLogger.writeLog(floodingTemplate, index);
+        }
+        assertEquals(0, mVoNaLogger.writeLog(floodingTemplate, 100));
+
+        int writtenCount = 0;
+        for (int index = 0; index < 5; index++) {
+            writtenCount += mVoNaLogger.writeLog(otherTemplate, index);
+        }
+        assertEquals(5, writtenCount);
+
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+    }
+
+    @Test
+    public void testRepeatedLogsCollapsed() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setCollapseRepeatedLogs(true)
+                        .build();
+
+        for (int index = 0; index < 25; index++) {
+            mVoNaLogger.writeLog("Repeated log", 1);
+        }
+        mVoNaLogger.writeLog("Different log", 2);
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        int repeatedLinesCount = 0;
+        int collapsedCount = 0;
+        for (File logFile : logFiles) {
+            BufferedReader reader = new BufferedReader(new FileReader(logFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals("Repeated log\t1")) {
+                    repeatedLinesCount++;
+                } else if (line.startsWith("last message repeated ")) {
+                    collapsedCount += Integer.parseInt(line.split(" ")[3]);
+                }
+            }
+            reader.close();
+        }
+
+        assertEquals(1, repeatedLinesCount);
+        assertEquals(24, collapsedCount);
+        assertTrue(findSpecificLogInFiles("Different log\t2", logFiles));
+    }
+
+    @Test
+    public void testDiagnosticsCollected() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setCollectDiagnostics(true)
+                        .build();
+
+        int logsCount = 1000;
+        for (int index = 0; index < logsCount; index++) {
+            mVoNaLogger.writeLog("Measured log", index);
+        }
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        LoggerDiagnostics diagnostics = mVoNaLogger.getDiagnostics();
+
+        assertTrue(diagnostics.getCount(LoggerPhase.WRITE) > 0);
+        // several encoded lists are written at once
+        assertTrue(diagnostics.getCount(LoggerPhase.WRITE) <= diagnostics.getCount(LoggerPhase.ENCODE));
+        assertTrue(diagnostics.getCount(LoggerPhase.PRODUCER_LOCK_WAIT) < logsCount);
+
+        long p99 = diagnostics.getPercentileNanos(LoggerPhase.WRITE, 99);
+        assertTrue(p99 > 0 && p99 <= diagnostics.getMaxNanos(LoggerPhase.WRITE));
+    }
+
+    @Test
+    public void testJfrEventsCommitted() throws IOException, InterruptedException {
+
+        File recordingFile = new File(mDirectory, "recording.jfr");
+
+        Recording recording = new Recording();
+        recording.enable("com.volokh.danylo.vonalogger.BatchWritten");
+        recording.enable("com.volokh.danylo.vonalogger.Snapshot");
+        recording.enable("com.volokh.danylo.vonalogger.Phase");
+        recording.start();
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setCollectDiagnostics(true)
+                        .build();
+
+        for (int index = 0; index < 100; index++) {
+            mVoNaLogger.writeLog("Recorded log", index);
+        }
+        mVoNaLogger.getLoggingFilesSnapShotSync();
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        recording.stop();
+        recording.dump(recordingFile.toPath());
+        recording.close();
+
+        long writtenEntries = 0;
+        int snapshotsCount = 0;
+        int writePhasesCount = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+            String eventName = event.getEventType().getName();
+            if (eventName.equals("com.volokh.danylo.vonalogger.BatchWritten")) {
+                writtenEntries += event.getInt("entriesCount");
+                assertTrue(event.getLong("bytes") > 0);
+            } else if (eventName.equals("com.volokh.danylo.vonalogger.Snapshot")) {
+                snapshotsCount++;
+            } else if (eventName.equals("com.volokh.danylo.vonalogger.Phase")
+                    && event.getString("phase").equals(LoggerPhase.WRITE.name())) {
+                writePhasesCount++;
+            }
+        }
+        assertEquals(100, writtenEntries);
+        assertEquals(1, snapshotsCount);
+        assertTrue(writePhasesCount > 0);
+    }
+
+    private static class Order {
+
+        private final long mId;
+
+        Order(long id) {
+            mId = id;
+        }
+
+        @Override
+        public String toString() {
+            throw new AssertionError("toString should not be called");
+        }
+    }
+
+    @Test
+    public void testParamWritersUsed() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .registerParamWriter(Order.class, new ParamWriter<Order>() {
+                            @Override
+                            public void write(Order value, ParamOutput output) {
+                                output.append("Order#").append(value.mId);
+                            }
+                        })
+                        .build();
+
+        UUID uuid = UUID.randomUUID();
+        List<Integer> elements = new ArrayList<>();
+        for (int index = 0; index < 100; index++) {
+            elements.add(index);
+        }
+
+        mVoNaLogger.writeLog("Custom", new Order(42), Arrays.asList(new Order(1), new Order(2)));
+        mVoNaLogger.writeLog("Built in", uuid, TimeUnit.SECONDS, new byte[]{1, (byte) 0xAB});
+        mVoNaLogger.writeLog("Limited", elements);
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue(findSpecificLogInFiles("Custom\tOrder#42\t[Order#1, Order#2]", logFiles));
+        assertTrue(findSpecificLogInFiles("Built in\t" + uuid + "\tSECONDS\t01ab", logFiles));
+
+        String limitedLine = findLineInFiles("Limited", logFiles);
+        assertNotNull(limitedLine);
+        assertTrue(limitedLine, limitedLine.endsWith(", 63, ...(36 more)]"));
+    }
+
+    @Test
+    public void testJsonLinesWritten() throws IOException, InterruptedException {
+
+        LogFields requestFields = LogFields.of("method", "path", "status");
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setLogSequenceNumbers(true)
+                        .setOutputFormat(LogOutputFormat.JSON_LINES)
+                        .build();
+
+        mVoNaLogger.writeLog("Plain \"quoted\"\tlog", 1.5, null, true);
+        mVoNaLogger.writeLog(requestFields, "GET", "/a\\b\n", 200, "extra");
+        mVoNaLogger.writeLog(requestFields, "POST", "/", Double.NaN);
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertEquals("{\"seq\":1,\"params\":[\"Plain \\\"quoted\\\"\\tlog\",1.5,null,true]}",
+                findLineInFiles("{\"seq\":1,", logFiles));
+        assertEquals("{\"seq\":2,\"method\":\"GET\",\"path\":\"/a\\\\b\\n\",\"status\":200,\"params\":[\"extra\"]}",
+                findLineInFiles("{\"seq\":2,", logFiles));
+        assertEquals("{\"seq\":3,\"method\":\"POST\",\"path\":\"/\",\"status\":\"NaN\"}",
+                findLineInFiles("{\"seq\":3,", logFiles));
+    }
+
+    private static IOException createException(int index) {
+        return new IOException("Failure " + index);
+    }
+
+    @Test
+    public void testStackTracesDeduplicated() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setDeduplicateStackTraces(true)
+                        .build();
+
+        int errorsCount = 5;
+        for (int index = 0; index < errorsCount; index++) {
+            mVoNaLogger.writeLog("Request failed", createException(index));
+        }
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        int referencesCount = 0;
+        int framesCount = 0;
+        for (File logFile : logFiles) {
+            BufferedReader reader = new BufferedReader(new FileReader(logFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.endsWith(" [stack#1]")) {
+                    referencesCount++;
+                } else if (line.contains("createException")) {
+                    framesCount++;
+                }
+            }
+            reader.close();
+        }
+
+        assertEquals(errorsCount, referencesCount);
+        assertEquals(1, framesCount);
+        assertTrue(findSpecificLogInFiles("Request failed\tjava.io.IOException: Failure 4 [stack#1]", logFiles));
+    }
+
+    @Test
+    public void testLazyParametersEvaluatedOnlyIfWritten() throws IOException, InterruptedException {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .setRateLimit(1, 1)
+                        .build();
+
+        final AtomicInteger evaluationsCount = new AtomicInteger();
+        final Thread callerThread = Thread.currentThread();
+        final AtomicBoolean evaluatedOnCallerThread = new AtomicBoolean();
+
+        LogArg expensiveArg = new LogArg() {
+            @Override
+            public Object value() {
+                evaluationsCount.incrementAndGet();
+                evaluatedOnCallerThread.set(Thread.currentThread() == callerThread);
+                return "expensive value";
+            }
+        };
+
+        assertEquals(1, mVoNaLogger.writeLog("Lazy log", expensiveArg));
+        assertEquals(0, mVoNaLogger.writeLog("Lazy log", expensiveArg));
+        assertEquals(0, evaluationsCount.get());
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue(findSpecificLogInFiles("Lazy log\texpensive value", logFiles));
+        assertEquals(1, evaluationsCount.get());
+        assertFalse(evaluatedOnCallerThread.get());
+    }
+
+    @Test
+    public void testFlushAndStopAsync() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize())
+                        .build();
+
+        mVoNaLogger.writeLog("Flushed Log");
+
+        /**
+         * The current list of entries is not filled and there is no sync thread, but the log has to be on disk anyway
+         */
+        long sequence = mVoNaLogger.flush().get(5, TimeUnit.SECONDS);
+        assertEquals(1, sequence);
+        assertEquals(Long.valueOf(1), mVoNaLogger.flush().get(5, TimeUnit.SECONDS));
+
+        File[] snapshotFiles = mVoNaLogger.getLoggingFilesSnapShotSync();
+        assertTrue(findSpecificLogInFiles("Flushed Log", snapshotFiles));
+
+        mVoNaLogger.writeLog("Pending Log");
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesAsync().get(5, TimeUnit.SECONDS);
+        assertTrue(findSpecificLogInFiles("Pending Log", logFiles));
+
+        assertTrue(mVoNaLogger.flush().isCompletedExceptionally());
+    }
+
+    @Test
+    public void testReconfiguredWithoutLosingLogs() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .build();
+
+        for (int index = 0; index < 55; index++) {
+            mVoNaLogger.writeLog("Log", index, "end");
+        }
+
+        mVoNaLogger.reconfigure(
+                new VoNaLogger.Reconfiguration()
+                        .setLogFilesCount(5)
+                        .setMinimumEntriesCount(3)
+                        .setSyncInterval(10)
+        ).get(5, TimeUnit.SECONDS);
+
+        for (int index = 55; index < 100; index++) {
+            mVoNaLogger.writeLog("Log", index, "end");
+        }
+
+        /**
+         * Sync thread is created by reconfiguration
+         */
+        assertNotNull(mVoNaLogger.writeDurableLog("Durable Log").get(5, TimeUnit.SECONDS));
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        assertEquals(5, logFiles.length);
+        for (int index = 0; index < 100; index++) {
+            assertTrue(findSpecificLogInFiles("Log\t" + index + "\tend", logFiles));
+        }
+    }
+
+    @Test
+    public void testRestartedFromFilesMetadata() throws Exception {
+
+        VoNaLogger.Builder builder = new VoNaLogger
+                .Builder()
+                .setLoggerFileName("VoNaLoggerFileName")
+                .setLoggerFilesDir(mDirectory)
+                .setLogFileMaxSize(getMaxFileSize())
+                .setLogSequenceNumbers(true)
+                .setFastRestart(true);
+
+        mVoNaLogger = builder.build();
+        mVoNaLogger.writeLog("First Log");
+        mVoNaLogger.writeLog("Second Log");
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        mVoNaLogger.releaseResources();
+
+        assertTrue(new File(mDirectory, "VoNaLoggerFileName.meta").exists());
+
+        /**
+         * New logger continues the same files and the same sequence numbers
+         */
+        mVoNaLogger = builder.build();
+        mVoNaLogger.writeLog("Restarted Log");
+        File[] restartedLogFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue(Arrays.equals(logFiles, restartedLogFiles));
+        assertTrue(findSpecificLogInFiles("2\tSecond Log", restartedLogFiles));
+        assertTrue(findSpecificLogInFiles("3\tRestarted Log", restartedLogFiles));
+    }
+
+    @Test
+    public void testCriticalLogsNotDropped() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .setMaxPendingEntriesLists(1)
+                        .setSyncCriticalLogs(true)
+                        .build();
+
+        for (int index = 0; index < 10000; index++) {
+            mVoNaLogger.writeLog("Regular Log", index);
+        }
+
+        /**
+         * Regular logs might be dropped at this point, but critical logs have their own lists
+         */
+        assertEquals(1, mVoNaLogger.writeCriticalLog("Critical Log"));
+        assertNotNull(mVoNaLogger.flush().get(5, TimeUnit.SECONDS));
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        assertTrue(findSpecificLogInFiles("Critical Log", logFiles));
+    }
+
+    @Test
+    public void testRowsWrittenAtOnce() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .setLogSequenceNumbers(true)
+                        .build();
+
+        mVoNaLogger.writeLog("Single Log");
+
+        Object[][] rows = new Object[25][];
+        for (int index = 0; index < rows.length; index++) {
+            rows[index] = new Object[]{"Row", index};
+        }
+        assertEquals(rows.length, mVoNaLogger.writeLogs(rows));
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        assertTrue(findSpecificLogInFiles("1\tSingle Log", logFiles));
+        assertTrue(findSpecificLogInFiles("2\tRow\t0", logFiles));
+        assertTrue(findSpecificLogInFiles("26\tRow\t24", logFiles));
+    }
+
+    @Test
+    public void testGatheredListsRespectRotation() throws Exception {
+
+        int logFileMaxSize = 3 * 16 * 1024;
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(logFileMaxSize)
+                        .setMinimumEntriesCount(10)
+                        .build();
+
+        int logsCount = 5000;
+        for (int index = 0; index < logsCount; index++) {
+            mVoNaLogger.writeLog("Gathered log", index, "end");
+        }
+
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        // a file is rotated before the list that overfills it, so it's never bigger than one more list
+        for (File logFile : logFiles) {
+            assertTrue(logFile.length() < 2 * logFileMaxSize / logFiles.length);
+        }
+        assertTrue(findSpecificLogInFiles("Gathered log\t" + (logsCount - 1) + "\tend", logFiles));
+    }
+
+    @Test
+    public void testLogsWrittenWithEveryWaitStrategy() throws Exception {
+
+        for (WriterWaitStrategy waitStrategy : WriterWaitStrategy.values()) {
+            mVoNaLogger =
+                    new VoNaLogger
+                            .Builder()
+                            .setLoggerFileName("VoNaLoggerFileName" + waitStrategy)
+                            .setLoggerFilesDir(mDirectory)
+                            .setLogFileMaxSize(1024 * 1024)
+                            .setWaitStrategy(waitStrategy)
+                            .build();
+
+            int logsCount = 300;
+            for (int index = 0; index < logsCount; index++) {
+                mVoNaLogger.writeLog("Waiting log", index, "end");
+                if (index % 100 == 0) {
+                    // background thread becomes idle and has to find new logs itself
+                    Thread.sleep(20);
+                }
+            }
+            assertTrue(mVoNaLogger.flush().get(5, TimeUnit.SECONDS) > 0);
+
+            File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+            assertTrue(waitStrategy.name(), findSpecificLogInFiles("Waiting log\t" + (logsCount - 1) + "\tend", logFiles));
+        }
+    }
+
+    @Test
+    public void testBusySpinDoesNotSlowDownProducers() throws Exception {
+
+        // the first round warms up the code
+        measureProducersNanos(WriterWaitStrategy.BLOCKING);
+        measureProducersNanos(WriterWaitStrategy.BUSY_SPIN);
+
+        long blockingNanos = measureProducersNanos(WriterWaitStrategy.BLOCKING);
+        long busySpinNanos = measureProducersNanos(WriterWaitStrategy.BUSY_SPIN);
+
+        // spinning background thread doesn't take the lock of the producers while there is nothing to do
+        assertTrue("blocking " + blockingNanos + ", busy spin " + busySpinNanos,
+                busySpinNanos < blockingNanos * 4 + TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * @return time it took few threads to write their logs.
+     */
+    private long measureProducersNanos(WriterWaitStrategy waitStrategy) throws Exception {
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName" + waitStrategy)
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(64 * 1024 * 1024)
+                        .setWaitStrategy(waitStrategy)
+                        .build();
+
+        Thread[] producers = new Thread[2];
+        long start = System.nanoTime();
+        for (int index = 0; index < producers.length; index++) {
+            producers[index] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int logIndex = 0; logIndex < 100000; logIndex++) {
+                        mVoNaLogger.writeLog("Produced log", logIndex);
+                    }
+                }
+            });
+            producers[index].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        long producersNanos = System.nanoTime() - start;
+
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+        mVoNaLogger.releaseResources();
+        return producersNanos;
+    }
+
+    @Test
+    public void testEncryptedLogsDecrypted() throws Exception {
+
+        SecretKey key = new SecretKeySpec(new byte[]{
+                1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(1024 * 1024)
+                        .setEncryptionKey(key)
+                        .build();
+
+        mVoNaLogger.writeLog("Secret log", 1);
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        // logger continues writing to the same file after restart
+        mVoNaLogger.initVoNaLoggerAfterStopping();
+        for (int index = 2; index <= 100; index++) {
+            mVoNaLogger.writeLog("Secret log", index);
+        }
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertFalse(findSpecificLogInFiles("Secret log", logFiles));
+
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new EncryptedLogInputStream(logFiles, key)));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(100, lines.size());
+        assertEquals("Secret log\t1", lines.get(0));
+        assertEquals("Secret log\t100", lines.get(99));
+    }
+
+    @Test
+    public void testOldFilesRemovedByRetention() throws Exception {
+
+        File oldSnapshot = new File(mDirectory, "VoNaLoggerFileName_1_snapshot.log");
+        writeBytes(oldSnapshot, 4096);
+        File tooOldFile = new File(mDirectory, "VoNaLoggerFileName_7.log");
+        writeBytes(tooOldFile, 10);
+        assertTrue(tooOldFile.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+        File otherLoggerFile = new File(mDirectory, "OtherLoggerFileName_0.log");
+        writeBytes(otherLoggerFile, 4096);
+
+        int logFileMaxSize = 3 * 1024;
+        int totalDiskBudget = 2 * logFileMaxSize;
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(logFileMaxSize)
+                        .setTotalDiskBudget(totalDiskBudget)
+                        .setMaxLogAge(TimeUnit.DAYS.toMillis(1))
+                        .build();
+
+        for (int index = 0; index < 500; index++) {
+            mVoNaLogger.writeLog("Retained log", index);
+        }
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        // files are removed by a separate thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((oldSnapshot.exists() || tooOldFile.exists()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(oldSnapshot.exists());
+        assertFalse(tooOldFile.exists());
+        assertTrue(otherLoggerFile.exists());
+        assertTrue(logFiles[0].exists());
+    }
+
+    @Test
+    public void testCallSitesSampled() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(getMaxFileSize() * 1024)
+                        .setCallSiteSampling(10)
+                        .build();
+
+        writeNoisyLogs(1000);
+        for (int index = 0; index < 100; index++) {
+            mVoNaLogger.writeLog("Quiet log", index);
+        }
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        List<CallSiteStats> callSiteStats = mVoNaLogger.getCallSiteStats();
+        assertEquals(2, callSiteStats.size());
+
+        CallSiteStats noisiest = callSiteStats.get(0);
+        assertTrue(noisiest.getCallSite(), noisiest.getCallSite().contains("writeNoisyLogs"));
+        assertEquals(100, noisiest.getSampledLogsCount());
+        assertEquals(1000, noisiest.getEstimatedLogsCount());
+
+        CallSiteStats quiet = callSiteStats.get(1);
+        assertTrue(quiet.getCallSite(), quiet.getCallSite().contains("testCallSitesSampled"));
+        assertEquals(10, quiet.getSampledLogsCount());
+        assertTrue(quiet.getEstimatedLength() > 0 && quiet.getEstimatedLength() < noisiest.getEstimatedLength());
+    }
+
+    private void writeNoisyLogs(int count) {
+        for (int index = 0; index < count; index++) {
+            mVoNaLogger.writeLog("Noisy log with a much longer text than the quiet one", index);
+        }
+    }
+
+    @Test
+    public void testLogsWrittenThroughSharedRing() throws Exception {
+
+        int logFileMaxSize = 3 * 4096;
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(logFileMaxSize)
+                        .setCrashSafeMode(true)
+                        .setMultiProcessMode(true)
+                        .build();
+
+        for (int index = 0; index < 100; index++) {
+            mVoNaLogger.writeLog("Shared log", index, "end");
+        }
+        mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        // the writer gives the files to other processes when it stops and takes them again after restart
+        mVoNaLogger.initVoNaLoggerAfterStopping();
+        for (int index = 100; index < 200; index++) {
+            mVoNaLogger.writeLog("Shared log", index, "end");
+        }
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        assertTrue(new File(mDirectory, "VoNaLoggerFileName.ring").exists());
+        assertTrue(findSpecificLogInFiles("Shared log\t0\tend", logFiles));
+        assertTrue(findSpecificLogInFiles("Shared log\t199\tend", logFiles));
+        for (File logFile : logFiles) {
+            assertTrue(logFile.length() < 2 * logFileMaxSize / logFiles.length);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testSharedRingOverflowedBySingleProcess() throws Exception {
+
+        mVoNaLogger =
+                new VoNaLogger
+                        .Builder()
+                        .setLoggerFileName("VoNaLoggerFileName")
+                        .setLoggerFilesDir(mDirectory)
+                        .setLogFileMaxSize(64 * 1024 * 1024)
+                        .setMultiProcessMode(true)
+                        .build();
+
+        // this process is the writer, so it takes the batches from the ring while it waits for space there
+        char[] text = new char[64 * 1024];
+        Arrays.fill(text, 'x');
+        String longText = new String(text);
+        int logsCount = 256;
+        for (int index = 0; index < logsCount; index++) {
+            mVoNaLogger.writeLog("Big shared log", index, longText);
+        }
+        File[] logFiles = mVoNaLogger.processPendingLogsStopAndGetLogFilesSync();
+
+        long logsLength = 0;
+        for (File logFile : logFiles) {
+            logsLength += logFile.length();
+        }
+        // more than the capacity of the ring
+        assertTrue(logsLength > 4 * 1024 * 1024);
+        assertEquals(logsCount, countLinesInFiles("Big shared log", logFiles));
+        assertTrue(findSpecificLogInFiles("Big shared log\t" + (logsCount - 1) + "\t", logFiles));
+    }
+
+    private static int countLinesInFiles(String concreteLog, File[] logFiles) throws IOException {
+        int count = 0;
+        for (File logFile : logFiles) {
+            BufferedReader inFile = new BufferedReader(new FileReader(logFile));
+            try {
+                String line;
+                while ((line = inFile.readLine()) != null) {
+                    if (line.contains(concreteLog)) {
+                        count++;
+                    }
+                }
+            } finally {
+                inFile.close();
+            }
+        }
+        return count;
+    }
+
+    private static void writeBytes(File file, int count) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[count]);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void showFilesContent(File[] logFiles) {
+        for(File logFile : logFiles){
+            showFileContent(logFile);
+        }
+    }
+
+    private boolean findSpecificLogInFiles(String concreteLog, File[] logFiles) {
+        boolean found = false;
+        for(File logFile : logFiles){
+            found = findLogInFile(concreteLog, logFile);
+            if(found){
+                break;
+            }
+        }
+        return found;
+    }
+
+    private String findLineInFiles(String concreteLog, File[] logFiles) throws IOException {
+        for(File logFile : logFiles){
+            BufferedReader inFile = new BufferedReader(new FileReader(logFile));
+            try {
+                String line;
+                while((line = inFile.readLine()) != null) {
+                    if(line.contains(concreteLog)){
+                        return line;
+                    }
+                }
+            } finally {
+                inFile.close();
+            }
+        }
+        return null;
     }
 
     private boolean findLogInFile(String concreteLog, File logFile) {